@@ -9,6 +9,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.SystemClock;
+import android.util.Size;
 import android.util.TypedValue;
 import android.view.KeyEvent;
 import android.view.LayoutInflater;
@@ -18,7 +19,7 @@ import android.widget.AdapterView;
 import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.camera.core.ImageProxy;
+import androidx.camera.core.ImageInfo;
 import androidx.navigation.Navigation;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
 import java.io.IOException;
@@ -37,6 +38,8 @@ import org.openbot.tflite.Network;
 import org.openbot.tracking.MultiBoxTracker;
 import org.openbot.utils.Constants;
 import org.openbot.utils.Enums;
+import org.openbot.utils.LatencyTracer;
+import org.openbot.utils.MetricsRegistry;
 import org.openbot.utils.PermissionUtils;
 import org.openbot.vehicle.Control;
 import timber.log.Timber;
@@ -49,7 +52,9 @@ public class AutopilotFragment extends CameraFragment {
     private HandlerThread handlerThread;
 
     private long lastProcessingTimeMs;
-    private boolean computingNetwork = false;
+    private final MetricsRegistry.Counter skippedFrames =
+            MetricsRegistry.getInstance().counter("autopilot.skipped_frames");
+    private volatile boolean computingNetwork = false;
 
     private static final float TEXT_SIZE_DIP = 10;
 
@@ -99,7 +104,6 @@ public class AutopilotFragment extends CameraFragment {
                 getModelNames(f -> f.type.equals(Model.TYPE.CMDNAV) && f.pathType != Model.PATH_TYPE.URL);
         initModelSpinner(binding.modelSpinner, models, preferencesManager.getAutopilotModel());
         initServerSpinner(binding.serverSpinner);
-        setAnalyserResolution(Enums.Preview.HD.getValue());
         binding.deviceSpinner.setOnItemSelectedListener(
                 new AdapterView.OnItemSelectedListener() {
                     @Override
@@ -400,24 +404,40 @@ public class AutopilotFragment extends CameraFragment {
 
     private long frameNum = 0;
 
+    // The network input is only 256x96, SD frames are large enough.
     @Override
-    protected void processFrame(Bitmap bitmap, ImageProxy image) {
+    protected Size getPreferredAnalyserResolution() {
+        return Enums.Preview.SD.getValue();
+    }
+
+    // Frames are only converted when the network is ready to take one.
+    @Override
+    protected boolean needsBitmap() {
+        return binding != null && binding.autoSwitch.isChecked() && !computingNetwork;
+    }
+
+    @Override
+    protected void processFrame(Bitmap bitmap, ImageInfo imageInfo) {
         if (tracker == null) updateCropImageInfo();
 
         ++frameNum;
         if (binding != null && binding.autoSwitch.isChecked()) {
             // If network is busy, return.
-            if (computingNetwork) {
+            if (computingNetwork || bitmap == null) {
+                skippedFrames.inc();
                 return;
             }
 
             computingNetwork = true;
             Timber.i("Putting image " + frameNum + " for detection in bg thread.");
+            final long frameId = LatencyTracer.getInstance().currentFrame();
 
             runInBackground(
                     () -> {
+                        LatencyTracer.getInstance().attach(frameId);
                         final Canvas canvas = new Canvas(croppedBitmap);
                         canvas.drawBitmap(bitmap, frameToCropTransform, null);
+                        LatencyTracer.getInstance().mark(LatencyTracer.Stage.CROP);
 
                         if (autopilot != null) {
                             Timber.i("Running autopilot on image %s", frameNum);
@@ -426,6 +446,7 @@ public class AutopilotFragment extends CameraFragment {
                             lastProcessingTimeMs = SystemClock.elapsedRealtime() - startTime;
                         }
 
+                        LatencyTracer.getInstance().detach();
                         computingNetwork = false;
                     });
             if (lastProcessingTimeMs > 0)
@@ -433,14 +454,19 @@ public class AutopilotFragment extends CameraFragment {
                         .runOnUiThread(
                                 () ->
                                         binding.inferenceInfo.setText(
-                                                String.format(Locale.US, "%d fps", 1000 / lastProcessingTimeMs)));
+                                                String.format(
+                                                        Locale.US,
+                                                        "%d fps %s",
+                                                        1000 / lastProcessingTimeMs,
+                                                        LatencyTracer.getInstance().getOverlayText())));
         }
     }
 
     protected void handleDriveCommand(Control control) {
-        vehicle.setControl(control);
-        float left = vehicle.getLeftSpeed();
-        float right = vehicle.getRightSpeed();
+        vehicle.setPolicyControl(control);
+        // Show the command of the policy; the vehicle only reaches it after smoothing.
+        float left = control.getLeft() * vehicle.getSpeedMultiplier();
+        float right = control.getRight() * vehicle.getSpeedMultiplier();
         requireActivity()
                 .runOnUiThread(
                         () ->
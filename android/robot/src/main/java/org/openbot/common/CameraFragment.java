@@ -15,6 +15,7 @@ import androidx.annotation.Nullable;
 import androidx.camera.core.AspectRatio;
 import androidx.camera.core.CameraSelector;
 import androidx.camera.core.ImageAnalysis;
+import androidx.camera.core.ImageInfo;
 import androidx.camera.core.ImageProxy;
 import androidx.camera.core.Preview;
 import androidx.camera.lifecycle.ProcessCameraProvider;
@@ -22,13 +23,17 @@ import androidx.camera.view.PreviewView;
 import androidx.core.content.ContextCompat;
 import androidx.viewbinding.ViewBinding;
 import com.google.common.util.concurrent.ListenableFuture;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import org.openbot.R;
+import org.openbot.env.CameraFrameSource;
 import org.openbot.env.ImageUtils;
 import org.openbot.utils.Constants;
 import org.openbot.utils.Enums;
+import org.openbot.utils.LatencyTracer;
+import org.openbot.utils.MetricsRegistry;
 import org.openbot.utils.PermissionUtils;
 import org.openbot.utils.YuvToRgbConverter;
 import timber.log.Timber;
@@ -40,10 +45,17 @@ public abstract class CameraFragment extends ControlsFragment {
   private Preview preview;
   protected int lensFacing;
   private ProcessCameraProvider cameraProvider;
-  private Size analyserResolution = Enums.Preview.HD.getValue();
-  private YuvToRgbConverter converter;
+  private Size analyserResolution;
+  private final YuvToRgbConverter converter = new YuvToRgbConverter();
   private Bitmap bitmapBuffer;
+  private volatile Size analysisSize;
+  private ByteBuffer rgbaBuffer;
   private int rotationDegrees;
+  // Identifies this fragment's binding in CameraFrameSource
+  private final Runnable switchCameraListener =
+      () -> requireActivity().runOnUiThread(this::toggleCamera);
+  private final MetricsRegistry.Counter frameCounter =
+      MetricsRegistry.getInstance().counter("camera.frames");
 
   protected View inflateFragment(int resId, LayoutInflater inflater, ViewGroup container) {
     return addCamera(inflater.inflate(resId, container, false), inflater, container);
@@ -64,6 +76,7 @@ public abstract class CameraFragment extends ControlsFragment {
             : CameraSelector.LENS_FACING_BACK;
     previewView = cameraView.findViewById(R.id.viewFinder);
     rootView.addView(view);
+    analyserResolution = toAnalyserOrientation(getPreferredAnalyserResolution());
 
     if (!PermissionUtils.hasCameraPermission(requireActivity())) {
       requestPermissionLauncherCamera.launch(Constants.PERMISSION_CAMERA);
@@ -98,9 +111,7 @@ public abstract class CameraFragment extends ControlsFragment {
         ContextCompat.getMainExecutor(requireContext()));
   }
 
-  @SuppressLint({"UnsafeExperimentalUsageError", "UnsafeOptInUsageError"})
   private void bindCameraUseCases() {
-    converter = new YuvToRgbConverter(requireContext());
     bitmapBuffer = null;
     preview = new Preview.Builder().setTargetAspectRatio(AspectRatio.RATIO_16_9).build();
     final boolean rotated = ImageUtils.getScreenOrientation(requireActivity()) % 180 == 90;
@@ -110,31 +121,52 @@ public abstract class CameraFragment extends ControlsFragment {
     preview.setSurfaceProvider(previewView.getSurfaceProvider());
     CameraSelector cameraSelector =
         new CameraSelector.Builder().requireLensFacing(lensFacing).build();
-    ImageAnalysis imageAnalysis;
-
-    if (analyserResolution == null)
-      imageAnalysis =
-          new ImageAnalysis.Builder().setTargetAspectRatio(AspectRatio.RATIO_16_9).build();
-    else
-      imageAnalysis = new ImageAnalysis.Builder().setTargetResolution(analyserResolution).build();
-    // insert your code here.
+
+    final int outputImageFormat = getOutputImageFormat();
+    ImageAnalysis.Builder analysisBuilder =
+        new ImageAnalysis.Builder()
+            .setBackpressureStrategy(getBackpressureStrategy())
+            .setOutputImageFormat(outputImageFormat);
+    if (analyserResolution == null) analysisBuilder.setTargetAspectRatio(AspectRatio.RATIO_16_9);
+    else analysisBuilder.setTargetResolution(analyserResolution);
+    ImageAnalysis imageAnalysis = analysisBuilder.build();
     imageAnalysis.setAnalyzer(
         cameraExecutor,
         image -> {
-          if (bitmapBuffer == null)
-            bitmapBuffer =
-                Bitmap.createBitmap(image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
-
+          final long frameId = LatencyTracer.getInstance().beginFrame();
+          frameCounter.inc();
+          analysisSize = new Size(image.getWidth(), image.getHeight());
           rotationDegrees = image.getImageInfo().getRotationDegrees();
-          converter.yuvToRgb(image.getImage(), bitmapBuffer);
+
+          Bitmap bitmap = null;
+          if (needsBitmap()) {
+            if (bitmapBuffer == null
+                || bitmapBuffer.getWidth() != image.getWidth()
+                || bitmapBuffer.getHeight() != image.getHeight())
+              bitmapBuffer =
+                  Bitmap.createBitmap(image.getWidth(), image.getHeight(), Bitmap.Config.ARGB_8888);
+            if (outputImageFormat == ImageAnalysis.OUTPUT_IMAGE_FORMAT_RGBA_8888)
+              copyRgba(image, bitmapBuffer);
+            else converter.yuvToRgb(image, bitmapBuffer);
+            bitmap = bitmapBuffer;
+            LatencyTracer.getInstance().mark(frameId, LatencyTracer.Stage.YUV_CONVERSION);
+          }
+          onImageAvailable(image);
+          // The WebRTC stream gets a copy of YUV frames, so the image is closed right away and the
+          // next analysis frame is not held back by the encoder.
+          if (outputImageFormat == ImageAnalysis.OUTPUT_IMAGE_FORMAT_YUV_420_888)
+            CameraFrameSource.getInstance().deliver(image, rotationDegrees);
+          ImageInfo imageInfo = image.getImageInfo();
           image.close();
 
-          processFrame(bitmapBuffer, image);
+          processFrame(bitmap, imageInfo);
         });
     try {
       if (cameraProvider != null) {
         cameraProvider.unbindAll();
         cameraProvider.bindToLifecycle(this, cameraSelector, preview, imageAnalysis);
+        CameraFrameSource.getInstance().setCameraActive(true);
+        CameraFrameSource.getInstance().setSwitchCameraListener(switchCameraListener);
       }
     } catch (Exception e) {
       Timber.e("Use case binding failed: %s", e.toString());
@@ -162,6 +194,7 @@ public abstract class CameraFragment extends ControlsFragment {
   @Override
   public void onDestroy() {
     super.onDestroy();
+    CameraFrameSource.getInstance().releaseCamera(switchCameraListener);
     cameraExecutor.shutdown();
   }
 
@@ -170,8 +203,9 @@ public abstract class CameraFragment extends ControlsFragment {
     return preview.getAttachedSurfaceResolution();
   }
 
+  /** @return the size of the analysis frames, or null before the first frame arrived */
   public Size getMaxAnalyseImageSize() {
-    return new Size(bitmapBuffer.getWidth(), bitmapBuffer.getHeight());
+    return analysisSize;
   }
 
   public void toggleCamera() {
@@ -184,14 +218,86 @@ public abstract class CameraFragment extends ControlsFragment {
   }
 
   public void setAnalyserResolution(Size resolutionSize) {
-    if (resolutionSize == null) analyserResolution = null;
-    else {
-      if (getResources().getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE)
-        this.analyserResolution = new Size(resolutionSize.getHeight(), resolutionSize.getWidth());
-      else this.analyserResolution = resolutionSize;
-    }
+    analyserResolution = toAnalyserOrientation(resolutionSize);
     bindCameraUseCases();
   }
 
-  protected abstract void processFrame(Bitmap image, ImageProxy imageProxy);
+  private Size toAnalyserOrientation(Size resolutionSize) {
+    if (resolutionSize != null
+        && getResources().getConfiguration().orientation == Configuration.ORIENTATION_LANDSCAPE)
+      return new Size(resolutionSize.getHeight(), resolutionSize.getWidth());
+    return resolutionSize;
+  }
+
+  /** Copies an RGBA_8888 analysis image, whose rows may be padded, into the bitmap. */
+  private void copyRgba(ImageProxy image, Bitmap bitmap) {
+    ImageProxy.PlaneProxy plane = image.getPlanes()[0];
+    ByteBuffer buffer = plane.getBuffer().duplicate();
+    int rowLength = image.getWidth() * 4;
+    if (plane.getRowStride() != rowLength) {
+      if (rgbaBuffer == null || rgbaBuffer.capacity() != rowLength * image.getHeight())
+        rgbaBuffer = ByteBuffer.allocateDirect(rowLength * image.getHeight());
+      rgbaBuffer.clear();
+      for (int row = 0; row < image.getHeight(); row++) {
+        buffer.limit(row * plane.getRowStride() + rowLength);
+        buffer.position(row * plane.getRowStride());
+        rgbaBuffer.put(buffer);
+      }
+      buffer = rgbaBuffer;
+      buffer.flip();
+    }
+    bitmap.copyPixelsFromBuffer(buffer);
+  }
+
+  /**
+   * Called on the camera thread for every frame, after {@link #onImageAvailable} and after the
+   * image was closed. The frame size is {@link #getMaxAnalyseImageSize()}.
+   *
+   * @param image the frame as ARGB bitmap, or null if {@link #needsBitmap()} returned false. The
+   *     bitmap is reused for the next frame.
+   * @param imageInfo rotation and timestamp of the frame
+   */
+  protected abstract void processFrame(Bitmap image, ImageInfo imageInfo);
+
+  /**
+   * Called on the camera thread for every frame while the image planes are still readable. The
+   * image must not be closed or kept beyond this call. Its planes are in the format of {@link
+   * #getOutputImageFormat()}.
+   */
+  protected void onImageAvailable(ImageProxy image) {}
+
+  /**
+   * Resolution the analysis frames are requested at, in portrait orientation; null for the default
+   * resolution with a 16:9 aspect ratio. Read when the camera view is created; use {@link
+   * #setAnalyserResolution} to change it later.
+   */
+  protected Size getPreferredAnalyserResolution() {
+    return Enums.Preview.HD.getValue();
+  }
+
+  /**
+   * {@link ImageAnalysis#STRATEGY_KEEP_ONLY_LATEST} drops frames while {@link #processFrame} is
+   * busy, {@link ImageAnalysis#STRATEGY_BLOCK_PRODUCER} queues them so none are lost.
+   */
+  protected int getBackpressureStrategy() {
+    return ImageAnalysis.STRATEGY_KEEP_ONLY_LATEST;
+  }
+
+  /**
+   * {@link ImageAnalysis#OUTPUT_IMAGE_FORMAT_YUV_420_888} (default) or {@link
+   * ImageAnalysis#OUTPUT_IMAGE_FORMAT_RGBA_8888}, where the camera pipeline does the conversion.
+   * Only YUV frames are shared with the WebRTC stream.
+   */
+  protected int getOutputImageFormat() {
+    return ImageAnalysis.OUTPUT_IMAGE_FORMAT_YUV_420_888;
+  }
+
+  /**
+   * Whether the current frame has to be converted to the bitmap passed to {@link #processFrame}.
+   * Subclasses that only use it in some states return false otherwise, so the conversion is
+   * skipped.
+   */
+  protected boolean needsBitmap() {
+    return true;
+  }
 }
@@ -39,6 +39,7 @@ import org.openbot.utils.Constants;
 import org.openbot.utils.Enums;
 import org.openbot.utils.FileUtils;
 import org.openbot.utils.FormatUtils;
+import org.openbot.utils.MetricsRegistry;
 import org.openbot.utils.PermissionUtils;
 import org.openbot.vehicle.Control;
 import org.openbot.vehicle.Vehicle;
@@ -334,9 +335,17 @@ public abstract class ControlsFragment extends Fragment implements ServerListene
         .collect(Collectors.toList());
   }
 
+  private final MetricsRegistry.SnapshotListener metricsListener =
+      snapshot -> {
+        BotToControllerEventBus.emitEvent(ConnectionUtils.createStatus("METRICS", snapshot));
+        serverCommunication.sendMetrics(snapshot);
+      };
+
   @Override
   public void onResume() {
     serverCommunication.start();
+    MetricsRegistry.getInstance().addListener(metricsListener);
+    MetricsRegistry.getInstance().startReporting(Constants.METRICS_REPORT_PERIOD_MS);
     super.onResume();
   }
 
@@ -352,6 +361,8 @@ public abstract class ControlsFragment extends Fragment implements ServerListene
   public synchronized void onPause() {
     Timber.d("onPause");
     serverCommunication.stop();
+    MetricsRegistry.getInstance().removeListener(metricsListener);
+    MetricsRegistry.getInstance().stopReporting();
     vehicle.setControl(0, 0);
     super.onPause();
   }
@@ -0,0 +1,215 @@
+package org.openbot.env;
+
+import android.content.Context;
+import android.os.SystemClock;
+import androidx.camera.core.ImageProxy;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+import org.webrtc.CapturerObserver;
+import org.webrtc.JavaI420Buffer;
+import org.webrtc.SurfaceTextureHelper;
+import org.webrtc.VideoCapturer;
+import org.webrtc.VideoFrame;
+
+/*
+A WebRTC VideoCapturer fed by the CameraX ImageAnalysis use case of CameraFragment, so a single
+camera session serves both on-device inference and streaming to the controller.
+
+When the fragment is showing, WebRtcServer uses this source instead of opening its own camera.
+Each delivered image is copied into an I420 buffer (interleaved U/V planes are de-interleaved), so
+the ImageProxy can be closed right away. Frames are center-cropped to the aspect ratio of the
+capture format and scaled down to it.
+ */
+public class CameraFrameSource implements VideoCapturer {
+  private static CameraFrameSource _frameSource;
+
+  private CapturerObserver capturerObserver;
+  private volatile boolean capturing = false;
+  private volatile boolean cameraActive = false;
+  private volatile Runnable switchCameraListener;
+
+  private int targetWidth;
+  private int targetHeight;
+  private long minFrameIntervalNs;
+  private long lastFrameTimeNs;
+
+  public static synchronized CameraFrameSource getInstance() {
+    if (_frameSource == null) _frameSource = new CameraFrameSource();
+    return _frameSource;
+  }
+
+  private CameraFrameSource() {}
+
+  /** Called by CameraFragment when its ImageAnalysis use case is bound or released. */
+  public void setCameraActive(boolean cameraActive) {
+    this.cameraActive = cameraActive;
+  }
+
+  public boolean isCameraActive() {
+    return cameraActive;
+  }
+
+  public synchronized void setSwitchCameraListener(Runnable switchCameraListener) {
+    this.switchCameraListener = switchCameraListener;
+  }
+
+  /**
+   * Called by CameraFragment when it releases the camera. Nothing is changed if another fragment
+   * bound the camera in the meantime, i.e. the listener is no longer the one of the caller.
+   */
+  public synchronized void releaseCamera(Runnable switchCameraListener) {
+    if (this.switchCameraListener != switchCameraListener) return;
+    this.switchCameraListener = null;
+    cameraActive = false;
+  }
+
+  public void switchCamera() {
+    Runnable listener = switchCameraListener;
+    if (listener != null) listener.run();
+  }
+
+  /**
+   * Hands a copy of an analysis image to WebRTC. The image is not retained, so the caller closes it
+   * right away and the camera can deliver the next analysis frame without waiting for the encoder.
+   */
+  public void deliver(ImageProxy image, int rotationDegrees) {
+    CapturerObserver observer = capturerObserver;
+    if (!capturing || observer == null) return;
+
+    long timestampNs = TimeUnit.MILLISECONDS.toNanos(SystemClock.elapsedRealtime());
+    if (timestampNs - lastFrameTimeNs < minFrameIntervalNs) return;
+    lastFrameTimeNs = timestampNs;
+
+    int width = image.getWidth();
+    int height = image.getHeight();
+    VideoFrame.Buffer buffer = toI420(image.getPlanes(), width, height);
+
+    if (targetWidth > 0 && targetHeight > 0) {
+      VideoFrame.Buffer scaled = cropAndScale(buffer, width, height);
+      if (scaled != buffer) {
+        buffer.release();
+        buffer = scaled;
+      }
+    }
+
+    VideoFrame frame = new VideoFrame(buffer, rotationDegrees, timestampNs);
+    observer.onFrameCaptured(frame);
+    frame.release();
+  }
+
+  /**
+   * Center-crops the buffer to the aspect ratio of the capture format and scales it down to that
+   * format, without scaling up. The format is matched to the orientation of the image first.
+   *
+   * @return the cropped and scaled buffer, or the buffer itself if it already fits
+   */
+  private VideoFrame.Buffer cropAndScale(VideoFrame.Buffer buffer, int width, int height) {
+    boolean swap = (targetWidth > targetHeight) != (width > height);
+    int outWidth = swap ? targetHeight : targetWidth;
+    int outHeight = swap ? targetWidth : targetHeight;
+
+    int cropWidth = width;
+    int cropHeight = height;
+    if ((long) width * outHeight > (long) height * outWidth) {
+      cropWidth = (int) ((long) height * outWidth / outHeight) & ~1;
+    } else {
+      cropHeight = (int) ((long) width * outHeight / outWidth) & ~1;
+    }
+    int scaledWidth = Math.min(outWidth, cropWidth) & ~1;
+    int scaledHeight = Math.min(outHeight, cropHeight) & ~1;
+    if (scaledWidth == width && scaledHeight == height) return buffer;
+    return buffer.cropAndScale(
+        ((width - cropWidth) / 2) & ~1,
+        ((height - cropHeight) / 2) & ~1,
+        cropWidth,
+        cropHeight,
+        scaledWidth,
+        scaledHeight);
+  }
+
+  private static JavaI420Buffer toI420(ImageProxy.PlaneProxy[] planes, int width, int height) {
+    JavaI420Buffer i420 = JavaI420Buffer.allocate(width, height);
+
+    // Duplicates, so the positions of the image buffers are left alone for other readers.
+    ByteBuffer srcY = planes[0].getBuffer().duplicate();
+    ByteBuffer dstY = i420.getDataY();
+    int srcStrideY = planes[0].getRowStride();
+    int dstStrideY = i420.getStrideY();
+    for (int row = 0; row < height; row++) {
+      srcY.limit(Math.min(srcY.capacity(), row * srcStrideY + width));
+      srcY.position(row * srcStrideY);
+      dstY.position(row * dstStrideY);
+      dstY.put(srcY);
+    }
+
+    int chromaWidth = (width + 1) / 2;
+    int chromaHeight = (height + 1) / 2;
+    copyChroma(planes[1], i420.getDataU(), i420.getStrideU(), chromaWidth, chromaHeight);
+    copyChroma(planes[2], i420.getDataV(), i420.getStrideV(), chromaWidth, chromaHeight);
+    return i420;
+  }
+
+  private static void copyChroma(
+      ImageProxy.PlaneProxy plane, ByteBuffer dst, int dstStride, int width, int height) {
+    ByteBuffer src = plane.getBuffer().duplicate();
+    int rowStride = plane.getRowStride();
+    int pixelStride = plane.getPixelStride();
+    if (pixelStride == 1) {
+      for (int row = 0; row < height; row++) {
+        src.limit(Math.min(src.capacity(), row * rowStride + width));
+        src.position(row * rowStride);
+        dst.position(row * dstStride);
+        dst.put(src);
+      }
+      dst.position(0);
+      return;
+    }
+    for (int row = 0; row < height; row++) {
+      int srcOffset = row * rowStride;
+      int dstOffset = row * dstStride;
+      for (int col = 0; col < width; col++) {
+        dst.put(dstOffset + col, src.get(srcOffset + col * pixelStride));
+      }
+    }
+  }
+
+  // VideoCapturer Interface
+  @Override
+  public void initialize(
+      SurfaceTextureHelper surfaceTextureHelper,
+      Context context,
+      CapturerObserver capturerObserver) {
+    this.capturerObserver = capturerObserver;
+  }
+
+  @Override
+  public void startCapture(int width, int height, int framerate) {
+    changeCaptureFormat(width, height, framerate);
+    capturing = true;
+    capturerObserver.onCapturerStarted(true);
+  }
+
+  @Override
+  public void stopCapture() {
+    capturing = false;
+    if (capturerObserver != null) capturerObserver.onCapturerStopped();
+  }
+
+  @Override
+  public void changeCaptureFormat(int width, int height, int framerate) {
+    targetWidth = width;
+    targetHeight = height;
+    minFrameIntervalNs = framerate > 0 ? TimeUnit.SECONDS.toNanos(1) / framerate : 0;
+  }
+
+  @Override
+  public void dispose() {
+    capturing = false;
+    capturerObserver = null;
+  }
+
+  @Override
+  public boolean isScreencast() {
+    return false;
+  }
+}
@@ -6,6 +6,8 @@ import android.content.Context;
 import android.content.pm.PackageManager;
 import android.graphics.SurfaceTexture;
 import android.media.ToneGenerator;
+import android.os.Handler;
+import android.os.Looper;
 import android.util.Log;
 import android.util.Size;
 import android.view.SurfaceHolder;
@@ -14,15 +16,19 @@ import android.view.TextureView;
 import android.view.View;
 import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
+import com.pedro.rtplibrary.util.BitrateAdapter;
 import com.pedro.rtplibrary.view.OpenGlView;
 import com.pedro.rtsp.utils.ConnectCheckerRtsp;
 import com.pedro.rtspserver.RtspServerCamera1;
 import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
 import org.openbot.customview.AutoFitSurfaceView;
 import org.openbot.customview.AutoFitTextureView;
 import org.openbot.utils.AndGate;
 import org.openbot.utils.ConnectionUtils;
 import org.openbot.utils.DelayedRunner;
+import org.openbot.utils.MetricsRegistry;
 import org.webrtc.SurfaceViewRenderer;
 import timber.log.Timber;
 
@@ -38,6 +44,19 @@ public class RtspServer
   private Context context;
   private Size resolution = new Size(640, 360);
   private final int PORT = 1935;
+  private static final int FPS = 20;
+  private static final int MAX_BITRATE = 1200 * 1024;
+  // How long the encoder is kept alive for a reconnecting controller.
+  private static final long IDLE_TIMEOUT_MS = TimeUnit.SECONDS.toMillis(30);
+
+  private BitrateAdapter bitrateAdapter;
+  private Size streamResolution;
+  private boolean surfaceAvailable = false;
+  private long reconnects = 0;
+  private final Handler idleHandler = new Handler(Looper.getMainLooper());
+  private final Runnable idleStop = this::releaseCamera;
+  private final MetricsRegistry.Gauge bitrateGauge =
+      MetricsRegistry.getInstance().gauge("rtsp.bitrate");
 
   public RtspServer() {}
 
@@ -135,6 +154,21 @@ public class RtspServer
 
   // Local methods
   private void stopServer() {
+    // If only the controller went away, keep the encoder running so that a reconnecting client
+    // does not have to wait for the camera and codec to be set up again.
+    if (surfaceAvailable && isRunning() && resolution.equals(streamResolution)) {
+      Timber.d("Controller disconnected, keeping RTSP encoder alive");
+      sendVideoStoppedStatus();
+      // Release the camera and encoder if the controller doesn't come back.
+      idleHandler.removeCallbacks(idleStop);
+      idleHandler.postDelayed(idleStop, IDLE_TIMEOUT_MS);
+      return;
+    }
+    releaseCamera();
+  }
+
+  private void releaseCamera() {
+    idleHandler.removeCallbacks(idleStop);
     try {
       if (rtspServerCamera1 != null) {
         if (rtspServerCamera1.isRecording()) {
@@ -147,6 +181,7 @@ public class RtspServer
 
         rtspServerCamera1.stopPreview();
         rtspServerCamera1 = null;
+        streamResolution = null;
       }
     } catch (Exception e) {
       Log.d(TAG, "Got error stopping server: " + e);
@@ -158,6 +193,19 @@ public class RtspServer
   }
 
   private void startServer(Size resolution, int port) {
+    idleHandler.removeCallbacks(idleStop);
+    if (isRunning() && resolution.equals(streamResolution)) {
+      // Encoder was kept alive from the previous connection
+      reconnects++;
+      startClient();
+      return;
+    }
+
+    if (isRunning()) {
+      // MediaCodec cannot change resolution on the fly
+      rtspServerCamera1.stopStream();
+    }
+
     if (rtspServerCamera1 == null) {
       Timber.d("Resolution %dx%d", resolution.getWidth(), resolution.getHeight());
 
@@ -177,8 +225,12 @@ public class RtspServer
     if (!rtspServerCamera1.isStreaming()) {
       if (rtspServerCamera1.prepareAudio(64 * 1024, 32000, false, true, true)
           && rtspServerCamera1.prepareVideo(
-              resolution.getWidth(), resolution.getHeight(), 20, 1200 * 1024, 2, 0)) {
+              resolution.getWidth(), resolution.getHeight(), FPS, MAX_BITRATE, 2, 0)) {
 
+        bitrateAdapter =
+            new BitrateAdapter(bitrate -> rtspServerCamera1.setVideoBitrateOnFly(bitrate));
+        bitrateAdapter.setMaxBitrate(MAX_BITRATE);
+        streamResolution = resolution;
         rtspServerCamera1.startStream("");
 
         // Delay starting the client for a second to make sure the server is started.
@@ -202,13 +254,48 @@ public class RtspServer
 
   @Override
   public void onConnectionFailedRtsp(final String reason) {
-    rtspServerCamera1.stopStream();
+    // A single client failing should not tear down the encoder, other clients may be watching
+    // and the failed one is likely to reconnect.
+    Log.w(TAG, "RTSP client connection failed: " + reason);
     beep();
   }
 
   @Override
   public void onNewBitrateRtsp(long bitrate) {
     Log.i(TAG, "Bitrate set to " + bitrate);
+    bitrateGauge.set(bitrate);
+    if (bitrateAdapter != null && rtspServerCamera1 != null) {
+      bitrateAdapter.adaptBitrate(bitrate);
+      sendStreamStats(bitrate);
+    }
+  }
+
+  /** Encoder and network counters for the running stream, or an empty object if not streaming. */
+  public JSONObject getStreamStats() {
+    JSONObject stats = new JSONObject();
+    if (rtspServerCamera1 == null) return stats;
+    try {
+      stats.put("clients", rtspServerCamera1.getNumClients());
+      stats.put("bitrate", rtspServerCamera1.getBitrate());
+      stats.put("queue", rtspServerCamera1.getCacheSize());
+      stats.put("congestion", rtspServerCamera1.hasCongestion());
+      stats.put("sentFrames", rtspServerCamera1.getSentVideoFrames());
+      stats.put("droppedFrames", rtspServerCamera1.getDroppedVideoFrames());
+      stats.put("reconnects", reconnects);
+    } catch (JSONException e) {
+      e.printStackTrace();
+    }
+    return stats;
+  }
+
+  private void sendStreamStats(long bitrate) {
+    JSONObject stats = getStreamStats();
+    try {
+      stats.put("actualBitrate", bitrate);
+    } catch (JSONException e) {
+      e.printStackTrace();
+    }
+    BotToControllerEventBus.emitEvent(ConnectionUtils.createStatus("VIDEO_STATS", stats));
   }
 
   @Override
@@ -228,6 +315,7 @@ public class RtspServer
   @Override
   public void surfaceCreated(@NonNull SurfaceHolder holder) {
     Log.d(TAG, "Surface created...");
+    surfaceAvailable = true;
     andGate.set("surfaceCreated", true);
   }
 
@@ -241,6 +329,7 @@ public class RtspServer
 
   @Override
   public void surfaceDestroyed(@NonNull SurfaceHolder holder) {
+    surfaceAvailable = false;
     andGate.set("surfaceCreated", false);
     sendVideoStoppedStatus();
     andGate.set("surfaceCreated", false);
@@ -249,6 +338,7 @@ public class RtspServer
   // SurfaceTextureListener callbacks
   @Override
   public void onSurfaceTextureAvailable(@NonNull SurfaceTexture surface, int width, int height) {
+    surfaceAvailable = true;
     andGate.set("surfaceCreated", true);
   }
 
@@ -257,6 +347,7 @@ public class RtspServer
 
   @Override
   public boolean onSurfaceTextureDestroyed(@NonNull SurfaceTexture surface) {
+    surfaceAvailable = false;
     sendVideoStoppedStatus();
     andGate.set("surfaceCreated", false);
     return false;
@@ -34,6 +34,7 @@ public class SharedPreferencesManager {
   private static final String DEFAULT_OBJECT_TYPE = "person";
   // object tracker switch for speed adjusted by estimated object distance
   private static final String OBJECT_NAV_DYNAMIC_SPEED = "OBJECT_NAV_DYNAMICSPEED";
+  private static final String OBJECT_NAV_KEYFRAME_TRACKING = "OBJECT_NAV_KEYFRAME_TRACKING";
   private static final int DEFAULT_DEVICE = Network.Device.CPU.ordinal();
   private static final String DEVICE = "DEVICE";
   private static final int DEFAULT_NUM_THREAD = 4;
@@ -42,6 +43,10 @@ public class SharedPreferencesManager {
   private static final String SHEET_EXPANDED = "SHEET_EXPANDED";
   private static final String DELAY = "DELAY";
   private static final String PROJECTS_LIST = "PROJECTS_LIST";
+  // render the point goal navigation policy input from the ARCore camera texture
+  private static final String ARCORE_GPU_POLICY_INPUT = "ARCORE_GPU_POLICY_INPUT";
+  private static final int DEFAULT_AR_PREVIEW = Enums.ArPreview.FULL.ordinal();
+  private static final String AR_PREVIEW = "AR_PREVIEW";
 
   private final SharedPreferences preferences;
 
@@ -153,6 +158,30 @@ public class SharedPreferencesManager {
     return preferences.getBoolean(OBJECT_NAV_DYNAMIC_SPEED, false);
   }
 
+  public void setKeyframeTracking(boolean isEnabled) {
+    preferences.edit().putBoolean(OBJECT_NAV_KEYFRAME_TRACKING, isEnabled).apply();
+  }
+
+  public boolean getKeyframeTracking() {
+    return preferences.getBoolean(OBJECT_NAV_KEYFRAME_TRACKING, true);
+  }
+
+  public void setGpuPolicyInput(boolean isEnabled) {
+    preferences.edit().putBoolean(ARCORE_GPU_POLICY_INPUT, isEnabled).apply();
+  }
+
+  public boolean getGpuPolicyInput() {
+    return preferences.getBoolean(ARCORE_GPU_POLICY_INPUT, false);
+  }
+
+  public int getArPreview() {
+    return preferences.getInt(AR_PREVIEW, DEFAULT_AR_PREVIEW);
+  }
+
+  public void setArPreview(int mode) {
+    preferences.edit().putInt(AR_PREVIEW, mode).apply();
+  }
+
   public void setLogMode(int mode) {
     preferences.edit().putInt(LOG_MODE, mode).apply();
   }
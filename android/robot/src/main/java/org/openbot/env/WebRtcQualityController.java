@@ -0,0 +1,232 @@
+package org.openbot.env;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openbot.utils.ConnectionUtils;
+import org.openbot.utils.MetricsRegistry;
+import org.webrtc.PeerConnection;
+import org.webrtc.RTCStats;
+import org.webrtc.RTCStatsReport;
+import org.webrtc.RtpParameters;
+import org.webrtc.RtpSender;
+import org.webrtc.VideoCapturer;
+import timber.log.Timber;
+
+/*
+Adapts the WebRTC stream to the network. The peer connection stats are polled periodically and
+the round trip time and packet loss are compared against targets. If the link is congested we step
+down a quality ladder (resolution, frame rate and encoder bitrate); if it has been healthy for a
+while we step back up. The top of the ladder is the resolution requested via setResolution.
+
+The selected level is reported to the controller as a "VIDEO_QUALITY" status.
+ */
+public class WebRtcQualityController {
+  private static final long POLL_INTERVAL_MS = 1000;
+
+  // Targets
+  private static final double MAX_RTT_SEC = 0.3;
+  private static final double MAX_LOSS = 0.05;
+  private static final double GOOD_RTT_SEC = 0.15;
+  private static final double GOOD_LOSS = 0.02;
+
+  // Hysteresis, in number of consecutive polls
+  private static final int BAD_SAMPLES_TO_DECREASE = 2;
+  private static final int GOOD_SAMPLES_TO_INCREASE = 5;
+
+  // Each level is {scale of requested resolution in percent, fps, max bitrate in kbps}
+  private static final int[][] LEVELS = {
+    {100, 30, 2500},
+    {100, 24, 1500},
+    {75, 20, 1000},
+    {50, 15, 600},
+    {50, 10, 300},
+    {25, 10, 150},
+  };
+
+  private final MetricsRegistry.Gauge levelGauge =
+      MetricsRegistry.getInstance().gauge("webrtc.quality_level");
+  private final MetricsRegistry.Gauge bitrateGauge =
+      MetricsRegistry.getInstance().gauge("webrtc.max_bitrate_kbps");
+
+  // Shared by all controllers, so servers that are not disposed don't leave threads behind.
+  private static final ScheduledExecutorService executor =
+      Executors.newSingleThreadScheduledExecutor();
+  private ScheduledFuture<?> pollTask;
+
+  private PeerConnection peerConnection;
+  private VideoCapturer videoCapturer;
+  private int maxWidth;
+  private int maxHeight;
+
+  private int level = 0;
+  private int badSamples = 0;
+  private int goodSamples = 0;
+  private long lastPacketsSent = -1;
+  private long lastPacketsLost = -1;
+
+  public synchronized void start(
+      PeerConnection peerConnection, VideoCapturer videoCapturer, int maxWidth, int maxHeight) {
+    stop();
+    this.peerConnection = peerConnection;
+    this.videoCapturer = videoCapturer;
+    this.maxWidth = maxWidth;
+    this.maxHeight = maxHeight;
+    level = 0;
+    badSamples = 0;
+    goodSamples = 0;
+    lastPacketsSent = -1;
+    lastPacketsLost = -1;
+    pollTask =
+        executor.scheduleAtFixedRate(
+            this::poll, POLL_INTERVAL_MS, POLL_INTERVAL_MS, TimeUnit.MILLISECONDS);
+    applyLevel();
+  }
+
+  public synchronized void stop() {
+    if (pollTask != null) {
+      pollTask.cancel(false);
+      pollTask = null;
+    }
+    peerConnection = null;
+    videoCapturer = null;
+  }
+
+  public synchronized void setMaxResolution(int width, int height) {
+    maxWidth = width;
+    maxHeight = height;
+    if (peerConnection != null) applyLevel();
+  }
+
+  private synchronized void poll() {
+    if (peerConnection == null) return;
+    peerConnection.getStats(this::onStats);
+  }
+
+  private synchronized void onStats(RTCStatsReport report) {
+    if (peerConnection == null) return;
+
+    double rtt = -1;
+    double loss = -1;
+    long packetsSent = -1;
+    long packetsLost = -1;
+
+    for (RTCStats stats : report.getStatsMap().values()) {
+      Map<String, Object> members = stats.getMembers();
+      switch (stats.getType()) {
+        case "remote-inbound-rtp":
+          if ("video".equals(members.get("kind"))) {
+            rtt = Math.max(rtt, getDouble(members, "roundTripTime"));
+            loss = Math.max(loss, getDouble(members, "fractionLost"));
+            packetsLost = Math.max(packetsLost, getLong(members, "packetsLost"));
+          }
+          break;
+        case "outbound-rtp":
+          if ("video".equals(members.get("kind"))) {
+            packetsSent = Math.max(packetsSent, getLong(members, "packetsSent"));
+          }
+          break;
+        case "candidate-pair":
+          if ("succeeded".equals(members.get("state")) && rtt < 0) {
+            rtt = getDouble(members, "currentRoundTripTime");
+          }
+          break;
+      }
+    }
+
+    // Fall back to loss computed from counters if fractionLost is not reported.
+    if (loss < 0 && packetsSent >= 0 && packetsLost >= 0 && lastPacketsSent >= 0) {
+      long sent = packetsSent - lastPacketsSent;
+      long lost = packetsLost - lastPacketsLost;
+      if (sent > 0) loss = Math.max(0, (double) lost / (sent + lost));
+    }
+    lastPacketsSent = packetsSent;
+    lastPacketsLost = packetsLost;
+
+    if (rtt < 0 && loss < 0) return; // no feedback from the controller yet
+
+    update(rtt, loss);
+  }
+
+  private void update(double rtt, double loss) {
+    boolean congested = rtt > MAX_RTT_SEC || loss > MAX_LOSS;
+    boolean healthy = (rtt < 0 || rtt < GOOD_RTT_SEC) && (loss < 0 || loss < GOOD_LOSS);
+
+    if (congested) {
+      goodSamples = 0;
+      if (++badSamples >= BAD_SAMPLES_TO_DECREASE && level < LEVELS.length - 1) {
+        level++;
+        badSamples = 0;
+        Timber.i("Network congested (rtt %.3fs, loss %.3f), reducing video quality", rtt, loss);
+        applyLevel();
+      }
+    } else if (healthy) {
+      badSamples = 0;
+      if (++goodSamples >= GOOD_SAMPLES_TO_INCREASE && level > 0) {
+        level--;
+        goodSamples = 0;
+        Timber.i("Network healthy (rtt %.3fs, loss %.3f), increasing video quality", rtt, loss);
+        applyLevel();
+      }
+    } else {
+      badSamples = 0;
+      goodSamples = 0;
+    }
+  }
+
+  private void applyLevel() {
+    int[] settings = LEVELS[level];
+    // Keep dimensions even, encoders do not like odd sizes.
+    int width = (maxWidth * settings[0] / 100) & ~1;
+    int height = (maxHeight * settings[0] / 100) & ~1;
+    int fps = settings[1];
+    int bitrateKbps = settings[2];
+
+    if (videoCapturer != null) {
+      videoCapturer.changeCaptureFormat(width, height, fps);
+    }
+
+    for (RtpSender sender : peerConnection.getSenders()) {
+      if (sender.track() == null || !"video".equals(sender.track().kind())) continue;
+      RtpParameters parameters = sender.getParameters();
+      for (RtpParameters.Encoding encoding : parameters.encodings) {
+        encoding.maxBitrateBps = bitrateKbps * 1000;
+        encoding.maxFramerate = fps;
+      }
+      sender.setParameters(parameters);
+    }
+
+    levelGauge.set(level);
+    bitrateGauge.set(bitrateKbps);
+    sendQualityStatus(width, height, fps, bitrateKbps);
+  }
+
+  private void sendQualityStatus(int width, int height, int fps, int bitrateKbps) {
+    try {
+      JSONObject quality =
+          new JSONObject()
+              .put("level", level)
+              .put("width", width)
+              .put("height", height)
+              .put("fps", fps)
+              .put("bitrate", bitrateKbps);
+      BotToControllerEventBus.emitEvent(ConnectionUtils.createStatus("VIDEO_QUALITY", quality));
+    } catch (JSONException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static double getDouble(Map<String, Object> members, String key) {
+    Object value = members.get(key);
+    return value instanceof Number ? ((Number) value).doubleValue() : -1;
+  }
+
+  private static long getLong(Map<String, Object> members, String key) {
+    Object value = members.get(key);
+    return value instanceof Number ? ((Number) value).longValue() : -1;
+  }
+}
@@ -83,6 +83,7 @@ public class WebRtcServer implements IVideoServer {
   private Context context;
   private VideoCapturer videoCapturer;
 
+  private final WebRtcQualityController qualityController = new WebRtcQualityController();
   private final SignalingHandler signalingHandler = new SignalingHandler();
 
   public WebRtcServer() {}
@@ -161,6 +162,7 @@ public class WebRtcServer implements IVideoServer {
   @Override
   public void setResolution(int w, int h) {
     resolution = new Size(w, h);
+    qualityController.setMaxResolution(w, h);
     andGate.set("resolution set", true);
   }
   // end Interface
@@ -177,6 +179,8 @@ public class WebRtcServer implements IVideoServer {
     doCall();
     startClient();
     monitorCameraControlEvents();
+    qualityController.start(
+        peerConnection, videoCapturer, resolution.getWidth(), resolution.getHeight());
   }
 
   private void monitorCameraControlEvents() {
@@ -185,7 +189,11 @@ public class WebRtcServer implements IVideoServer {
         event -> {
           switch (event.getString("command")) {
             case "SWITCH_CAMERA":
-              ((CameraVideoCapturer) videoCapturer).switchCamera(null);
+              if (videoCapturer instanceof CameraFrameSource) {
+                ((CameraFrameSource) videoCapturer).switchCamera();
+              } else {
+                ((CameraVideoCapturer) videoCapturer).switchCamera(null);
+              }
               break;
           }
         },
@@ -229,6 +237,7 @@ public class WebRtcServer implements IVideoServer {
   }
 
   private void stopServer() {
+    qualityController.stop();
     mediaStream.removeTrack(videoTrackFromCamera);
     mediaStream.removeTrack(localAudioTrack);
     view.release();
@@ -386,7 +395,7 @@ public class WebRtcServer implements IVideoServer {
         context /*getApplicationContext()*/,
         videoSource.getCapturerObserver());
 
-    videoCapturer.startCapture(VIDEO_RESOLUTION_WIDTH, VIDEO_RESOLUTION_HEIGHT, FPS);
+    videoCapturer.startCapture(resolution.getWidth(), resolution.getHeight(), FPS);
 
     videoTrackFromCamera = factory.createVideoTrack(VIDEO_TRACK_ID, videoSource);
     videoTrackFromCamera.setEnabled(true);
@@ -426,6 +435,12 @@ public class WebRtcServer implements IVideoServer {
   }
 
   private VideoCapturer createVideoCapturer() {
+    // If a camera fragment already owns the camera, stream its analysis frames instead of
+    // opening the camera a second time.
+    if (CameraFrameSource.getInstance().isCameraActive()) {
+      return CameraFrameSource.getInstance();
+    }
+
     VideoCapturer videoCapturer;
     if (useCamera2()) {
       videoCapturer = createCameraCapturer(new Camera2Enumerator(context));
@@ -0,0 +1,323 @@
+package org.openbot.env;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Converts YUV_420_888 images to ARGB_8888 pixels. All YUV conversions of the app go through this
+ * class. The planes can be byte arrays (e.g. copied camera frames), NV21 data or the ByteBuffers of
+ * an {@link android.media.Image} or ImageProxy, which are read in place. Row and pixel strides are
+ * honored, and the output can be a scaled crop of the image, so only the pixels a consumer needs
+ * are converted.
+ *
+ * <p>Large outputs are split into bands of rows that are converted in parallel on a fork/join pool;
+ * small ones are converted on the calling thread, where splitting would cost more than it saves.
+ * See {@link Backend}.
+ */
+public final class YuvConverter {
+
+  /** Where the rows of an image are converted. */
+  public enum Backend {
+    /** On the calling thread. */
+    SERIAL,
+    /** In bands of rows on a fork/join pool, the calling thread takes part. */
+    PARALLEL,
+    /** PARALLEL for large outputs on multi-core devices, SERIAL otherwise. */
+    AUTO
+  }
+
+  // This value is 2 ^ 18 - 1, and is used to clamp the RGB values before their ranges
+  // are normalized to eight bits.
+  static final int kMaxChannelValue = 262143;
+  // Outputs with fewer pixels are converted serially.
+  private static final int MIN_PARALLEL_PIXELS = 64 * 1024;
+  private static final int MIN_ROWS_PER_TASK = 16;
+
+  private static ForkJoinPool pool;
+
+  private YuvConverter() {}
+
+  /**
+   * The planes of a YUV_420_888 image. Either byte arrays or ByteBuffers are used; ByteBuffers
+   * backed by an array are read through the array. An instance can be reused for every frame.
+   */
+  public static class Planes {
+    private byte[] yArray;
+    private byte[] uArray;
+    private byte[] vArray;
+    private int yOffset;
+    private int uOffset;
+    private int vOffset;
+    private ByteBuffer yBuffer;
+    private ByteBuffer uBuffer;
+    private ByteBuffer vBuffer;
+    private int width;
+    private int height;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+
+    public Planes setArrays(
+        byte[] y,
+        byte[] u,
+        byte[] v,
+        int width,
+        int height,
+        int yRowStride,
+        int uvRowStride,
+        int uvPixelStride) {
+      setArrays(y, 0, u, 0, v, 0);
+      setGeometry(width, height, yRowStride, uvRowStride, uvPixelStride);
+      return this;
+    }
+
+    /**
+     * Uses the buffers from their current positions, e.g. the plane buffers of an {@link
+     * android.media.Image}. The positions are not changed.
+     */
+    public Planes setBuffers(
+        ByteBuffer y,
+        ByteBuffer u,
+        ByteBuffer v,
+        int width,
+        int height,
+        int yRowStride,
+        int uvRowStride,
+        int uvPixelStride) {
+      if (y.hasArray() && u.hasArray() && v.hasArray()) {
+        setArrays(
+            y.array(),
+            y.arrayOffset() + y.position(),
+            u.array(),
+            u.arrayOffset() + u.position(),
+            v.array(),
+            v.arrayOffset() + v.position());
+      } else {
+        yArray = uArray = vArray = null;
+        // Slices index from the current position.
+        yBuffer = y.slice();
+        uBuffer = u.slice();
+        vBuffer = v.slice();
+      }
+      setGeometry(width, height, yRowStride, uvRowStride, uvPixelStride);
+      return this;
+    }
+
+    /** NV21 (YUV420SP): the Y plane followed by interleaved V and U samples. */
+    public Planes setNv21(byte[] data, int width, int height) {
+      int frameSize = width * height;
+      setArrays(data, 0, data, frameSize + 1, data, frameSize);
+      setGeometry(width, height, width, width, 2);
+      return this;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    private void setArrays(byte[] y, int yOffset, byte[] u, int uOffset, byte[] v, int vOffset) {
+      yArray = y;
+      uArray = u;
+      vArray = v;
+      this.yOffset = yOffset;
+      this.uOffset = uOffset;
+      this.vOffset = vOffset;
+      yBuffer = uBuffer = vBuffer = null;
+    }
+
+    private void setGeometry(
+        int width, int height, int yRowStride, int uvRowStride, int uvPixelStride) {
+      this.width = width;
+      this.height = height;
+      this.yRowStride = yRowStride;
+      this.uvRowStride = uvRowStride;
+      this.uvPixelStride = uvPixelStride;
+    }
+  }
+
+  /** Converts the full image into {@code out}, row by row. */
+  public static void convert(Planes planes, int[] out) {
+    convert(Backend.AUTO, planes, 1, 0, 0, planes.width, planes.height, out);
+  }
+
+  /**
+   * Converts only the pixels of a scaled and cropped image, without converting the full image
+   * first. Output pixel (i, j) is sampled at the center of the area it covers in the input, i.e. at
+   * ((cropLeft + i + 0.5) / scale, (cropTop + j + 0.5) / scale), where the crop is given in
+   * coordinates of the scaled image.
+   */
+  public static void convert(
+      Planes planes,
+      float scale,
+      int cropLeft,
+      int cropTop,
+      int outWidth,
+      int outHeight,
+      int[] out) {
+    convert(Backend.AUTO, planes, scale, cropLeft, cropTop, outWidth, outHeight, out);
+  }
+
+  /** Like {@link #convert(Planes, float, int, int, int, int, int[])} with the given backend. */
+  public static void convert(
+      Backend backend,
+      Planes planes,
+      float scale,
+      int cropLeft,
+      int cropTop,
+      int outWidth,
+      int outHeight,
+      int[] out) {
+    if (backend == Backend.AUTO) {
+      backend =
+          outWidth * outHeight >= MIN_PARALLEL_PIXELS
+                  && Runtime.getRuntime().availableProcessors() > 1
+              ? Backend.PARALLEL
+              : Backend.SERIAL;
+    }
+    if (backend == Backend.PARALLEL) {
+      ForkJoinPool pool = getPool();
+      // A few bands per thread, so threads that finish early can take over work.
+      int rowsPerTask = Math.max(MIN_ROWS_PER_TASK, outHeight / (4 * pool.getParallelism()));
+      pool.invoke(
+          new Conversion(
+              planes, scale, cropLeft, cropTop, outWidth, out, 0, outHeight, rowsPerTask));
+    } else {
+      new Conversion(planes, scale, cropLeft, cropTop, outWidth, out, 0, outHeight, outHeight)
+          .convertRows();
+    }
+  }
+
+  /** Converts a single pixel. */
+  public static int yuvToArgb(int y, int u, int v) {
+    // Adjust and check YUV values
+    y = (y - 16) < 0 ? 0 : (y - 16);
+    u -= 128;
+    v -= 128;
+
+    // This is the floating point equivalent. We do the conversion in integer
+    // because some Android devices do not have floating point in hardware.
+    // nR = (int)(1.164 * nY + 2.018 * nU);
+    // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
+    // nB = (int)(1.164 * nY + 1.596 * nV);
+    int y1192 = 1192 * y;
+    int r = (y1192 + 1634 * v);
+    int g = (y1192 - 833 * v - 400 * u);
+    int b = (y1192 + 2066 * u);
+
+    // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
+    r = r > kMaxChannelValue ? kMaxChannelValue : (r < 0 ? 0 : r);
+    g = g > kMaxChannelValue ? kMaxChannelValue : (g < 0 ? 0 : g);
+    b = b > kMaxChannelValue ? kMaxChannelValue : (b < 0 ? 0 : b);
+
+    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+  }
+
+  private static synchronized ForkJoinPool getPool() {
+    if (pool == null) {
+      pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+    }
+    return pool;
+  }
+
+  /** Converts a band of output rows; splits itself when run on the pool. */
+  private static class Conversion extends RecursiveAction {
+    private final Planes planes;
+    private final float scale;
+    private final int cropLeft;
+    private final int cropTop;
+    private final int outWidth;
+    private final int[] out;
+    private final int fromRow;
+    private final int toRow;
+    private final int rowsPerTask;
+
+    Conversion(
+        Planes planes,
+        float scale,
+        int cropLeft,
+        int cropTop,
+        int outWidth,
+        int[] out,
+        int fromRow,
+        int toRow,
+        int rowsPerTask) {
+      this.planes = planes;
+      this.scale = scale;
+      this.cropLeft = cropLeft;
+      this.cropTop = cropTop;
+      this.outWidth = outWidth;
+      this.out = out;
+      this.fromRow = fromRow;
+      this.toRow = toRow;
+      this.rowsPerTask = rowsPerTask;
+    }
+
+    @Override
+    protected void compute() {
+      if (toRow - fromRow <= rowsPerTask) {
+        convertRows();
+        return;
+      }
+      int middle = (fromRow + toRow) >>> 1;
+      invokeAll(
+          new Conversion(
+              planes, scale, cropLeft, cropTop, outWidth, out, fromRow, middle, rowsPerTask),
+          new Conversion(
+              planes, scale, cropLeft, cropTop, outWidth, out, middle, toRow, rowsPerTask));
+    }
+
+    void convertRows() {
+      Planes p = planes;
+      int yp = fromRow * outWidth;
+      for (int j = fromRow; j < toRow; j++) {
+        int sy = sourceIndex(cropTop + j, p.height);
+        int pY = p.yRowStride * sy;
+        int pUV = p.uvRowStride * (sy >> 1);
+
+        if (p.yArray != null) {
+          byte[] yData = p.yArray;
+          byte[] uData = p.uArray;
+          byte[] vData = p.vArray;
+          pY += p.yOffset;
+          int pU = pUV + p.uOffset;
+          int pV = pUV + p.vOffset;
+          for (int i = 0; i < outWidth; i++) {
+            int sx = sourceIndex(cropLeft + i, p.width);
+            int uvOffset = (sx >> 1) * p.uvPixelStride;
+            out[yp++] =
+                yuvToArgb(
+                    0xff & yData[pY + sx],
+                    0xff & uData[pU + uvOffset],
+                    0xff & vData[pV + uvOffset]);
+          }
+        } else {
+          ByteBuffer yData = p.yBuffer;
+          ByteBuffer uData = p.uBuffer;
+          ByteBuffer vData = p.vBuffer;
+          for (int i = 0; i < outWidth; i++) {
+            int sx = sourceIndex(cropLeft + i, p.width);
+            int uvOffset = pUV + (sx >> 1) * p.uvPixelStride;
+            out[yp++] =
+                yuvToArgb(
+                    0xff & yData.get(pY + sx),
+                    0xff & uData.get(uvOffset),
+                    0xff & vData.get(uvOffset));
+          }
+        }
+      }
+    }
+
+    /** @return the input row or column sampled for an output row or column of the scaled image */
+    private int sourceIndex(int scaledIndex, int size) {
+      if (scale == 1) {
+        return scaledIndex;
+      }
+      return Math.min((int) ((scaledIndex + 0.5f) / scale), size - 1);
+    }
+  }
+}
@@ -3,6 +3,7 @@ package org.openbot.googleServices;
 import android.animation.ObjectAnimator;
 import android.app.Activity;
 import android.content.Context;
+import android.os.SystemClock;
 import android.widget.Adapter;
 import android.widget.ImageView;
 
@@ -14,9 +15,14 @@ import com.google.android.gms.auth.api.signin.GoogleSignInClient;
 import com.google.android.gms.auth.api.signin.GoogleSignInOptions;
 import com.google.android.gms.common.api.ApiException;
 import com.google.android.gms.tasks.Task;
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
 import com.google.api.client.googleapis.extensions.android.gms.auth.GoogleAccountCredential;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.media.MediaHttpUploader;
 import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpHeaders;
 import com.google.api.client.http.javanet.NetHttpTransport;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.client.util.DateTime;
@@ -34,17 +40,22 @@ import com.google.gson.GsonBuilder;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.openbot.databinding.FragmentProjectsBinding;
 import org.openbot.env.SharedPreferencesManager;
@@ -53,6 +64,7 @@ import org.openbot.modelManagement.ModelAdapter;
 import org.openbot.modelManagement.ModelManagementFragment;
 import org.openbot.projects.DriveProjectsAdapter;
 import org.openbot.projects.GoogleSignInCallback;
+import org.openbot.projects.ProjectCache;
 import org.openbot.projects.ProjectsDataInObject;
 import org.openbot.projects.ProjectsFragment;
 import org.openbot.tflite.Model;
@@ -68,18 +80,37 @@ public class GoogleServices extends Fragment {
     // Set up logging tag for debugging purposes
     private ModelAdapter adapter;
     private static final String TAG = "GoogleServices";
+    // Upload granularity of log files, for progress and cancellation
+    private static final int UPLOAD_CHUNK_SIZE = 4 * MediaHttpUploader.MINIMUM_CHUNK_SIZE;
+    // Drive requests (listing, metadata) and transfers (uploads, downloads) run on separate bounded
+    // pools, so a listing that waits for downloads never blocks them.
+    private static final ExecutorService driveExecutor = createExecutor(2);
+    private static final ExecutorService transferExecutor = createExecutor(4);
+    private static final long FILE_CACHE_TTL_MS = 60 * 1000;
+    private static final Map<String, File> fileCache = new LinkedHashMap<>();
+    private static long fileCacheTime = 0;
     private final Activity mActivity;
     private final Context mContext;
+    private final ProjectCache projectCache;
     private final GoogleSignInCallback mCallback;
     public final GoogleSignInClient mGoogleSignInClient;
     private final ProjectsFragment projectsFragment;
     private final FirebaseAuth firebaseAuth;
     public ArrayList<ProjectsDataInObject> projectsList = new ArrayList<>();
+    private Future<?> projectSync;
     private final SharedPreferencesManager sharedPreferencesManager;
 
     public static GoogleServices getInstance() {
         return null;
     }
+
+    private static ExecutorService createExecutor(int threads) {
+        ThreadPoolExecutor executor =
+                new ThreadPoolExecutor(threads, threads, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
     /**
      * Constructor for the GoogleServices class
      *
@@ -91,6 +122,7 @@ public class GoogleServices extends Fragment {
         // Set instance variables
         mActivity = activity;
         mContext = context;
+        projectCache = ProjectCache.getInstance(context);
         mCallback = callback;
         projectsFragment = new ProjectsFragment();
         firebaseAuth = FirebaseAuth.getInstance();
@@ -213,6 +245,8 @@ public class GoogleServices extends Fragment {
 
     /**
      * Retrieves a list of Google Drive files that are not trashed and have the file extension ".js".
+     * Projects whose modified time is unchanged are taken from the local project list, only new or
+     * changed ones are downloaded, in parallel.
      *
      * @param binding
      * @param adapter
@@ -222,114 +256,202 @@ public class GoogleServices extends Fragment {
         // get a Google Drive service instance.
         Drive googleDriveService = getDriveService();
         if (googleDriveService != null) {
-            // create a new thread to perform the network call in the background.
-            new Thread(
+            final ArrayList<ProjectsDataInObject> projects = projectsList;
+            final List<ProjectsDataInObject> localProjects = new ArrayList<>(projects);
+            cancelProjectSync();
+            projectSync = driveExecutor.submit(
                     () -> {
-                        String pageToken = null;
-                        do {
-                            try {
-                                // query for files on Google Drive that are not in the trash folder and have a
-                                // ".js" extension.
-                                FileList result =
-                                        googleDriveService
-                                                .files()
-                                                .list()
-                                                .setSpaces("drive")
-                                                .setFields("nextPageToken, files(id, name, createdTime, modifiedTime)")
-                                                .setPageToken(pageToken)
-                                                .setQ("trashed = false")
-                                                .execute();
-                                List<File> driveProjectFiles = result.getFiles();
-                                // Create a HashSet to store the drive project IDs.
-                                Set<String> driveProjectId = new HashSet<>();
-                                // Create a HashSet to store the local project IDs.
-                                Set<String> localProjectId = new HashSet<>();
-                                // Create a HashSet to store the local project filename.
-                                Set<String> localProjectName = new HashSet<>();
-
-                                for (ProjectsDataInObject obj : projectsList) {
-                                    localProjectId.add(obj.getProjectId());
-                                }
-                                // Iterate through the files
-                                for (File file : driveProjectFiles) {
-                                    if (file.getName().endsWith(".js")) {
-                                        driveProjectId.add(file.getId());
-                                        String projectName = file.getName();
-//                                        System.out.println("name"+projectName);
-                                        String projectId = file.getId();
-                                        DateTime projectDate = file.getModifiedTime();
-
-                                        // Read the content of the file
-                                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                                        googleDriveService
-                                                .files()
-                                                .get(file.getId())
-                                                .executeMediaAndDownloadTo(outputStream);
-                                        String projectCommands = outputStream.toString();
-
-                                        if (!localProjectId.contains(file.getId())) {
-                                            // Create a Project object and add it to the ArrayList
-                                            //System.out.printf("UpdatedFileName",projectName);
-
-                                            projectsList.add(
-                                                    new ProjectsDataInObject(
-                                                            projectId, projectName, projectDate, projectCommands));
-                                        }
-                                        else if(localProjectId.contains(file.getId())){
-                                            int projectIndex = -1;
-                                            for (int i = 0; i < projectsList.size(); i++) {
-                                                if (projectsList.get(i).getProjectId().equals(projectId)) {
-                                                    // Project with the same ID exists, store its index
-                                                    projectIndex = i;
-                                                    break; // No need to continue iterating
-                                                }
-                                            }
-                                            projectsList.remove(projectIndex);
-                                            projectsList.add(
-                                                    new ProjectsDataInObject(
-                                                            projectId, projectName, projectDate, projectCommands));
-
-
-//                                          projectsList.add(new ProjectsDataInObject(projectId,projectName,projectDate,projectCommands));
-                                        }
+                        List<ProjectsDataInObject> driveProjects = null;
+                        try {
+                            driveProjects =
+                                    syncProjects(googleDriveService, localProjects, binding);
+                        } catch (IOException e) {
+                            // log any errors that occur and keep showing the local projects.
+                            e.printStackTrace();
+                        } catch (InterruptedException e) {
+                            // The sync was cancelled, e.g. because the project list was closed.
+                            Thread.currentThread().interrupt();
+                            return;
+                        }
+                        final List<ProjectsDataInObject> result = driveProjects;
+                        // update the UI on the main thread to reflect the changes in the list of drive
+                        // files.
+                        mActivity.runOnUiThread(
+                                () -> {
+                                    if (result != null) {
+                                        projects.clear();
+                                        projects.addAll(result);
+                                        sharedPreferencesManager.setProjectLIst(projects);
                                     }
-                                }
+                                    adapter.notifyDataSetChanged();
+                                    projectsFragment.updateMessage(projects, binding);
+                                });
+                    });
+        }
+    }
 
-                                // Iterate over the local projects and remove any that are not present in the
-                                // driveProjectId set
-                                // MyProject
-                                Iterator<ProjectsDataInObject> iterator = projectsList.iterator();
-                                while (iterator.hasNext()) {
-                                    ProjectsDataInObject project = iterator.next();
-                                    if (!driveProjectId.contains(project.getProjectId())) {
-                                        iterator.remove();
-                                    }
-                                    sharedPreferencesManager.setProjectLIst(projectsList);
-                                }
+    /** Cancels a running sync of the project list, including its downloads. */
+    public void cancelProjectSync() {
+        if (projectSync != null) {
+            projectSync.cancel(true);
+            projectSync = null;
+        }
+    }
+
+    /**
+     * Lists the ".js" projects on Google Drive and returns them with their content. Content of
+     * projects that did not change since they were last synced is reused. A project that can't be
+     * downloaded keeps its local or cached content. Download progress is shown on the binding.
+     */
+    private List<ProjectsDataInObject> syncProjects(
+            Drive googleDriveService,
+            List<ProjectsDataInObject> localProjects,
+            FragmentProjectsBinding binding)
+            throws IOException, InterruptedException {
+        Map<String, ProjectsDataInObject> localById = new HashMap<>();
+        for (ProjectsDataInObject project : localProjects) {
+            localById.put(project.getProjectId(), project);
+        }
+
+        List<ProjectsDataInObject> driveProjects = new ArrayList<>();
+        List<Future<ProjectsDataInObject>> downloads = new ArrayList<>();
+        List<File> downloadedFiles = new ArrayList<>();
+        for (File file : listFiles(googleDriveService, true)) {
+            if (!file.getName().endsWith(".js")) continue;
+            ProjectsDataInObject local = localById.get(file.getId());
+            if (local != null && isUnchanged(local, file)) {
+                driveProjects.add(local);
+                continue;
+            }
+            String cached = projectCache.getSource(file.getId(), file.getModifiedTime());
+            if (cached != null) {
+                driveProjects.add(
+                        new ProjectsDataInObject(
+                                file.getId(), file.getName(), file.getModifiedTime(), cached));
+                continue;
+            }
+            downloadedFiles.add(file);
+            downloads.add(
+                    transferExecutor.submit(
+                            () -> {
+                                String content = downloadContent(googleDriveService, file);
+                                // Compile and store it, so running the project needs no download.
+                                projectCache.put(
+                                        file.getId(), file.getName(), file.getModifiedTime(), content);
+                                return new ProjectsDataInObject(
+                                        file.getId(), file.getName(), file.getModifiedTime(), content);
+                            }));
+        }
 
-                                // update the UI on the main thread to reflect the changes in the list of drive
-                                // files.
-                                mActivity.runOnUiThread(
-                                        () -> {
-                                            adapter.notifyDataSetChanged();
-                                            projectsFragment.updateMessage(projectsList, binding);
-                                        });
-                                // update page token to get the next set of files if available.
-                                pageToken = result.getNextPageToken();
-                            } catch (IOException e) {
-                                // log any errors that occur and set page token to null to exit the loop.
-                                e.printStackTrace();
-                                pageToken = null;
-                                mActivity.runOnUiThread(
-                                        () -> {
-                                            adapter.notifyDataSetChanged();
-                                            projectsFragment.updateMessage(projectsList, binding);
-                                        });
+        try {
+            for (int i = 0; i < downloads.size(); i++) {
+                showSyncProgress(binding, i, downloads.size());
+                try {
+                    driveProjects.add(downloads.get(i).get());
+                } catch (ExecutionException e) {
+                    Timber.tag(TAG).e(e.getCause(), "Project download failed");
+                    // Keep the last known version, so a network error doesn't remove the project.
+                    File file = downloadedFiles.get(i);
+                    ProjectsDataInObject local = localById.get(file.getId());
+                    String cached = projectCache.getSource(file.getId(), null);
+                    if (local != null && local.getProjectCommands() != null) {
+                        driveProjects.add(local);
+                    } else if (cached != null) {
+                        driveProjects.add(
+                                new ProjectsDataInObject(
+                                        file.getId(), file.getName(), null, cached));
+                    }
+                }
+            }
+        } finally {
+            // Interrupts the downloads that are still running if the sync was cancelled.
+            for (Future<ProjectsDataInObject> download : downloads) download.cancel(true);
+        }
+        return driveProjects;
+    }
+
+    private void showSyncProgress(FragmentProjectsBinding binding, int done, int total) {
+        mActivity.runOnUiThread(() -> projectsFragment.updateProgress(done, total, binding));
+    }
+
+    private static boolean isUnchanged(ProjectsDataInObject project, File file) {
+        return project.getProjectDate() != null
+                && file.getModifiedTime() != null
+                && project.getProjectDate().getValue() == file.getModifiedTime().getValue()
+                && project.getProjectName().equals(file.getName())
+                && project.getProjectCommands() != null;
+    }
+
+    private static String downloadContent(Drive googleDriveService, File file) throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        Drive.Files.Get request = googleDriveService.files().get(file.getId());
+        request.getMediaHttpDownloader()
+                .setProgressListener(
+                        downloader -> {
+                            // Set by cancelProjectSync(); failing here stops the download.
+                            if (Thread.currentThread().isInterrupted()) {
+                                throw new InterruptedIOException(
+                                        "Download of " + file.getName() + " cancelled");
                             }
-                            // continue querying for files while there is a valid page token.
-                        } while (pageToken != null);
-                    })
-                    .start();
+                            Timber.tag(TAG)
+                                    .v(
+                                            "Download %s: %.0f%%",
+                                            file.getName(),
+                                            downloader.getProgress() * 100);
+                        });
+        request.executeMediaAndDownloadTo(outputStream);
+        return outputStream.toString();
+    }
+
+    /**
+     * Lists all files that are not trashed. The listing is kept as a local metadata cache (file id
+     * to name and modified time) for a short time, so that looking up the playground folder, the
+     * config file or a project's XML file doesn't list the whole Drive again.
+     *
+     * @param refresh list the files even if the cached listing is still recent
+     */
+    private static List<File> listFiles(Drive googleDriveService, boolean refresh)
+            throws IOException {
+        synchronized (fileCache) {
+            if (!refresh && SystemClock.elapsedRealtime() - fileCacheTime < FILE_CACHE_TTL_MS) {
+                return new ArrayList<>(fileCache.values());
+            }
+            Map<String, File> files = new LinkedHashMap<>();
+            String pageToken = null;
+            do {
+                FileList result =
+                        googleDriveService
+                                .files()
+                                .list()
+                                .setSpaces("drive")
+                                .setFields("nextPageToken, files(id, name, createdTime, modifiedTime)")
+                                .setPageSize(1000)
+                                .setPageToken(pageToken)
+                                .setQ("trashed = false")
+                                .execute();
+                for (File file : result.getFiles()) files.put(file.getId(), file);
+                // update page token to get the next set of files if available.
+                pageToken = result.getNextPageToken();
+            } while (pageToken != null);
+            fileCache.clear();
+            fileCache.putAll(files);
+            fileCacheTime = SystemClock.elapsedRealtime();
+            return new ArrayList<>(files.values());
+        }
+    }
+
+    /** @return id of the first file with the given name, or null */
+    private static String findFileId(Drive googleDriveService, String name) throws IOException {
+        for (File file : listFiles(googleDriveService, false)) {
+            if (name.equals(file.getName())) return file.getId();
+        }
+        return null;
+    }
+
+    /** Forces the next lookup to list the files again, after files were created or deleted. */
+    private static void invalidateFileCache() {
+        synchronized (fileCache) {
+            fileCacheTime = 0;
         }
     }
 
@@ -341,7 +463,7 @@ public class GoogleServices extends Fragment {
     private void downloadFileFromGDrive(String fileId) {
         Drive googleDriveService = getDriveService();
         if (googleDriveService != null) {
-            new Thread(
+            transferExecutor.execute(
                     () -> {
                         try {
                             // Get the Google Drive file with the given ID
@@ -351,8 +473,7 @@ public class GoogleServices extends Fragment {
                         } catch (IOException e) {
                             e.printStackTrace();
                         }
-                    })
-                    .start();
+                    });
         } else {
             Timber.tag("Google Drive").e("SignIn error - not logged in");
         }
@@ -373,6 +494,7 @@ public class GoogleServices extends Fragment {
                 file.setName(newTitle);
                 // Update the file with the new title.
                 googleDriveService.files().update(fileId, file).execute();
+                invalidateFileCache();
                 Timber.tag("Google Drive File").d("File renamed successfully");
             } catch (IOException e) {
                 // log any errors that occur when renaming the file.
@@ -392,24 +514,36 @@ public class GoogleServices extends Fragment {
             String projectName,
             DriveProjectsAdapter adapter,
             FragmentProjectsBinding binding) {
-        // Create an ExecutorService with a single thread
-        ExecutorService executor = Executors.newSingleThreadExecutor();
-        executor.execute(
+        driveExecutor.execute(
                 () -> {
                     Drive googleDriveService = getDriveService();
                     if (googleDriveService != null) {
                         try {
                             // Get the XML file ID associated with the project name
                             String xmlFileId = getXmlFileId(projectName, googleDriveService);
-                            // Delete the file with the given ID
-                            googleDriveService.files().delete(fileId).execute();
-                            // If XML file ID exists, delete the XML file as well
+                            // Delete the file and the XML file, if it exists, in one batch request.
+                            BatchRequest batch = googleDriveService.batch();
+                            JsonBatchCallback<Void> callback =
+                                    new JsonBatchCallback<Void>() {
+                                        @Override
+                                        public void onSuccess(Void unused, HttpHeaders responseHeaders) {
+                                            Timber.tag("Google Drive File").d("File deleted successfully");
+                                        }
+
+                                        @Override
+                                        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                                            Timber.tag("Google Drive File").e(error.getMessage());
+                                        }
+                                    };
+                            googleDriveService.files().delete(fileId).queue(batch, callback);
                             if (xmlFileId != null) {
-                                googleDriveService.files().delete(xmlFileId).execute();
+                                googleDriveService.files().delete(xmlFileId).queue(batch, callback);
                             }
+                            batch.execute();
+                            invalidateFileCache();
+                            projectCache.remove(fileId);
                             // Access Drive files again to update the adapter and binding
                             accessDriveFiles(adapter, binding);
-                            Timber.tag("Google Drive File").d("File deleted successfully");
                         } catch (IOException error) {
                             // log any errors that occur when deleting the file.
                             error.printStackTrace();
@@ -420,77 +554,31 @@ public class GoogleServices extends Fragment {
     }
 
     /**
-     * This method queries Google Drive for files that are not in the trash folder and have a .js
-     * extension. It iterates through the files to find the one whose name matches the provided
-     * projectName with the .xml extension. The corresponding XML file ID is returned if found.
+     * Returns the id of the XML file that belongs to the given ".js" project, looked up in the
+     * cached file listing.
      *
      * @param projectName
      * @param googleDriveService
      * @return
      */
     private String getXmlFileId(String projectName, Drive googleDriveService) {
-        String pageToken = null;
-        String xmlProjectId = null;
-        do {
-            try {
-                // query for files on Google Drive that are not in the trash folder and have a
-                // ".js" extension.
-                FileList result =
-                        googleDriveService
-                                .files()
-                                .list()
-                                .setSpaces("drive")
-                                .setFields("nextPageToken, files(id, name, createdTime, modifiedTime)")
-                                .setPageToken(pageToken)
-                                .setQ("trashed = false")
-                                .execute();
-                List<File> driveProjectFiles = result.getFiles();
-                // Iterate through the files and check for the XML file associated with the project name
-                for (File file : driveProjectFiles) {
-                    if ((projectName.replace(".js", ".xml")).equals(file.getName())) {
-                        xmlProjectId = file.getId();
-                    }
-                }
-                // update page token to get the next set of files if available.
-                pageToken = result.getNextPageToken();
-            } catch (IOException e) {
-                // log any errors that occur and set page token to null to exit the loop.
-                e.printStackTrace();
-                pageToken = null;
-            }
-            // continue querying for files while there is a valid page token.
-        } while (pageToken != null);
-        return xmlProjectId;
+        try {
+            return findFileId(googleDriveService, projectName.replace(".js", ".xml"));
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     private String checkPlaygroundFolder() {
         Drive getDriveService = getDriveService();
-        String pageToken = null;
-        do {
-            try {
-                if (getDriveService != null) {
-                    FileList result =
-                            getDriveService
-                                    .files()
-                                    .list()
-                                    .setSpaces("drive")
-                                    .setPageToken(pageToken)
-                                    .setQ("trashed = false")
-                                    .execute();
-                    List<File> driveProjectFiles = result.getFiles();
-                    for (File driveProjectFile : driveProjectFiles) {
-                        if (driveProjectFile.getName().equals("openBot-Playground")) {
-                            return driveProjectFile.getId();
-                        }
-                    }
-                    pageToken = result.getNextPageToken();
-                }
-            } catch (IOException e) {
-                e.printStackTrace();
-                pageToken = null;
-            }
-        } while (pageToken != null);
-        return null;
+        if (getDriveService == null) return null;
+        try {
+            return findFileId(getDriveService, "openBot-Playground");
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
     }
 
     /**
@@ -501,58 +589,30 @@ public class GoogleServices extends Fragment {
     public void createAndUploadJsonFile(List<Model> modelList) {
         // Get the Drive service instance and convert the modelList to JSON string using Gson.
         Drive getDriveService = getDriveService();
+        if (getDriveService == null) return;
         Gson gson = new GsonBuilder().create();
         String modelListContent = gson.toJson(modelList);
 
-        // Start a new thread to perform the Drive API operations.
-        new Thread(
+        driveExecutor.execute(
                 () -> {
-                    String pageToken = null;
-                    do {
-                        try {
-                            if (getDriveService != null) {
-                                FileList result =
-                                        getDriveService
-                                                .files()
-                                                .list()
-                                                .setSpaces("drive")
-                                                .setPageToken(pageToken)
-                                                .setQ("trashed = false")
-                                                .execute();
-                                List<File> driveProjectFiles = result.getFiles();
-                                boolean getOpenBotPlayGroundFile = false;
-                                boolean getConfigFIle = false;
-                                String configFileId = null;
-                                String openBotPlayGroundFileId = null;
-                                for (File driveProjectFile : driveProjectFiles) {
-                                    if (driveProjectFile.getName().equals("openBot-Playground")) {
-                                        getOpenBotPlayGroundFile = true;
-                                        openBotPlayGroundFileId = driveProjectFile.getId();
-                                    }
-                                    if (driveProjectFile.getName().equals("config.json")) {
-                                        getConfigFIle = true;
-                                        configFileId = driveProjectFile.getId();
-                                    }
-                                }
-
-                                // Perform necessary actions based on file existence.
-                                if (getOpenBotPlayGroundFile && getConfigFIle)
-                                    // Update existing config.json with model list.
-                                    updateModelListFile(modelListContent, configFileId);
-                                if (getOpenBotPlayGroundFile && !getConfigFIle)
-                                    // Create config.json and add model list.
-                                    createModelListFile(modelListContent, openBotPlayGroundFileId);
-                                if (!getOpenBotPlayGroundFile && !getConfigFIle)
-                                    // Create 'openBot' folder and add config.json with model list.
-                                    createOpenBotFolder(modelListContent, null);
-                                pageToken = result.getNextPageToken();
-                            }
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                            pageToken = null;
-                        }
-                    } while (pageToken != null);
-                }).start();
+                    try {
+                        String openBotPlayGroundFileId = findFileId(getDriveService, "openBot-Playground");
+                        String configFileId = findFileId(getDriveService, "config.json");
+
+                        // Perform necessary actions based on file existence.
+                        if (openBotPlayGroundFileId != null && configFileId != null)
+                            // Update existing config.json with model list.
+                            updateModelListFile(modelListContent, configFileId);
+                        if (openBotPlayGroundFileId != null && configFileId == null)
+                            // Create config.json and add model list.
+                            createModelListFile(modelListContent, openBotPlayGroundFileId);
+                        if (openBotPlayGroundFileId == null && configFileId == null)
+                            // Create 'openBot' folder and add config.json with model list.
+                            createOpenBotFolder(modelListContent, null);
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                });
     }
 
     /**
@@ -563,23 +623,27 @@ public class GoogleServices extends Fragment {
      */
     public void createOpenBotFolder(String modelListContent, java.io.File zipFile) {
         Drive driveService = getDriveService();
-        File fileMetadata = new File();
-        fileMetadata.setName("openBot-Playground");
-        fileMetadata.setMimeType("application/vnd.google-apps.folder");
-
         if (driveService != null) {
             try {
-                File file = driveService.files().create(fileMetadata)
-                        .setFields("id")
-                        .execute();
-                if (modelListContent != null) createModelListFile(modelListContent, file.getId());
-                else uploadLogData(zipFile);
+                String folderId = createPlaygroundFolder(driveService);
+                if (modelListContent != null) createModelListFile(modelListContent, folderId);
+                else uploadLogData(zipFile, null);
             } catch (IOException e) {
                 e.printStackTrace();
             }
         }
     }
 
+    /** @return the id of the new 'openBot-Playground' folder */
+    private String createPlaygroundFolder(Drive driveService) throws IOException {
+        File fileMetadata = new File();
+        fileMetadata.setName("openBot-Playground");
+        fileMetadata.setMimeType("application/vnd.google-apps.folder");
+        File file = driveService.files().create(fileMetadata).setFields("id").execute();
+        invalidateFileCache();
+        return file.getId();
+    }
+
     /**
      * Creates a 'config.json' file containing the model list content within the specified folder on Google Drive.
      *
@@ -594,15 +658,16 @@ public class GoogleServices extends Fragment {
         fileMetadata.setName("config.json").setParents(Collections.singletonList(playGroundFolderId));
         ByteArrayContent content = ByteArrayContent.fromString("application/json", modelListContent);
 
-        new Thread(() -> {
+        transferExecutor.execute(() -> {
             try {
                 if (getDriveService != null) {
                     File file = getDriveService.files().create(fileMetadata, content).setFields("id").execute();
+                    invalidateFileCache();
                 }
             } catch (IOException e) {
                 e.printStackTrace();
             }
-        }).start();
+        });
     }
 
     /**
@@ -613,7 +678,7 @@ public class GoogleServices extends Fragment {
      */
     public void updateModelListFile(String modelListContent, String fileId) {
         Drive driveService = getDriveService();
-        new Thread(() -> {
+        transferExecutor.execute(() -> {
             if (driveService != null) {
                 try {
                     // Convert the JSON content to a byte array content and update the file's content.
@@ -624,37 +689,61 @@ public class GoogleServices extends Fragment {
                     e.printStackTrace();
                 }
             }
-        }).start();
+        });
+    }
+
+    /** Receives the state of a log upload, on the upload thread. */
+    public interface UploadListener {
+        /** @param fraction share of the file uploaded so far, from 0 to 1 */
+        void onProgress(double fraction);
+
+        void onComplete(boolean uploaded);
     }
 
     /**
-     * Uploads a log data zip file to Google Drive, creating a new file or using an existing folder.
+     * Uploads a log data zip file to the 'openBot-Playground' folder on Google Drive, creating the
+     * folder if needed. The file is sent in chunks; cancelling the returned future with
+     * mayInterruptIfRunning ends the upload after the current chunk.
      *
-     * @param zipFile The log data zip file to be uploaded.
+     * @param zipFile  The log data zip file to be uploaded.
+     * @param listener Receives the upload progress, may be null.
+     * @return the pending upload
      */
-    public void uploadLogData(java.io.File zipFile) {
+    public Future<?> uploadLogData(java.io.File zipFile, UploadListener listener) {
         Drive getDriveService = getDriveService();
-        String playGroundFolderId = checkPlaygroundFolder();
-
-        // Check if the 'openBot' folder exists, upload the zip file to it.
-        if (playGroundFolderId != null) {
-            File fileMetadata = new File();
-            String fileName = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
-            fileMetadata.setName(fileName).setParents(Collections.singletonList(playGroundFolderId));
-            FileContent fileContent = new FileContent("application/zip", zipFile);
-            new Thread(() -> {
-                try {
-                    if (getDriveService != null) {
-                        File file = getDriveService.files().create(fileMetadata, fileContent).setFields("id").execute();
-                    }
-                } catch (IOException e) {
-                    e.printStackTrace();
+        String fileName = new SimpleDateFormat("yyyyMMdd_HHmmss", Locale.getDefault()).format(new Date());
+        return transferExecutor.submit(() -> {
+            boolean uploaded = false;
+            try {
+                if (getDriveService != null) {
+                    // Check if the 'openBot' folder exists, otherwise create it.
+                    String playGroundFolderId = checkPlaygroundFolder();
+                    if (playGroundFolderId == null) playGroundFolderId = createPlaygroundFolder(getDriveService);
+                    File fileMetadata = new File();
+                    fileMetadata.setName(fileName).setParents(Collections.singletonList(playGroundFolderId));
+                    FileContent fileContent = new FileContent("application/zip", zipFile);
+                    Drive.Files.Create request = getDriveService.files().create(fileMetadata, fileContent).setFields("id");
+                    request.getMediaHttpUploader()
+                            .setChunkSize(UPLOAD_CHUNK_SIZE)
+                            .setProgressListener(uploader -> {
+                                // Set by Future.cancel(true); failing here stops the upload.
+                                if (Thread.currentThread().isInterrupted()) {
+                                    throw new InterruptedIOException("Upload of " + fileName + " cancelled");
+                                }
+                                if (listener != null
+                                        && uploader.getUploadState() == MediaHttpUploader.UploadState.MEDIA_IN_PROGRESS) {
+                                    listener.onProgress(uploader.getProgress());
+                                }
+                            });
+                    request.execute();
+                    invalidateFileCache();
+                    uploaded = true;
                 }
-            }).start();
-        } else {
-            // If the folder doesn't exist, create it and upload the zip file
-            createOpenBotFolder(null, zipFile);
-        }
+            } catch (IOException e) {
+                Timber.tag(TAG).w(e, "Upload of %s failed", fileName);
+            }
+            if (listener != null) listener.onComplete(uploaded);
+        });
     }
 
     /**
@@ -666,61 +755,44 @@ public class GoogleServices extends Fragment {
     public void getConfigFileContent(ObjectAnimator rotation, ImageView icon, ModelAdapter updateModelListAdapter) {
         Drive driveService = getDriveService();
         Gson gson = new GsonBuilder().setPrettyPrinting().create();
-        new Thread(() -> {
-            String pageToken = null;
-            do {
-                try {
-                    if (driveService != null) {
-                        FileList result =
-                                driveService
-                                        .files()
-                                        .list()
-                                        .setSpaces("drive")
-                                        .setPageToken(pageToken)
-                                        .setQ("trashed = false")
-                                        .execute();
-                        List<File> driveProjectFiles = result.getFiles();
-                        String updatedModelList;
-                        for (File driveProjectFile : driveProjectFiles) {
-                            if (driveProjectFile.getName().equals("config.json")) {
-                                // Read the content of the file
-                                ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
-                                driveService
-                                        .files()
-                                        .get(driveProjectFile.getId())
-                                        .executeMediaAndDownloadTo(outputStream);
-                                updatedModelList = outputStream.toString();
-
-                                List<Model> modelList = gson.fromJson(updatedModelList, new TypeToken<List<Model>>() {
-                                }.getType());
-
-                                for (int i = 0; i < modelList.size(); i++) {
-                                    if (modelList.get(i).pathType == Model.PATH_TYPE.FILE && !FileUtils.checkFileExistence(mActivity, modelList.get(i).name)) {
-                                        modelList.get(i).setPathType(Model.PATH_TYPE.URL);
-                                    }
-                                }
-                                FileUtils.updateModelConfig(mActivity, mContext, modelList, false);
-                                 mActivity.runOnUiThread(() -> {
-                                    updateModelListAdapter.setItems(modelList);
-                                    updateModelListAdapter.notifyDataSetChanged();
-                                        });
-                                break;
-                            }
-                        }
-                        // Pause rotation animation and reset icon.
-                        rotation.pause();
-                        icon.setRotation(0f);
+        driveExecutor.execute(() -> {
+            try {
+                if (driveService != null) {
+                    // The user asked for a sync, so don't rely on the cached listing.
+                    listFiles(driveService, true);
+                    String configFileId = findFileId(driveService, "config.json");
+                    if (configFileId != null) {
+                        // Read the content of the file
+                        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+                        driveService
+                                .files()
+                                .get(configFileId)
+                                .executeMediaAndDownloadTo(outputStream);
+                        String updatedModelList = outputStream.toString();
 
-                    } else {
-                        rotation.pause();
-                        icon.setRotation(0f);
+                        List<Model> modelList = gson.fromJson(updatedModelList, new TypeToken<List<Model>>() {
+                        }.getType());
 
+                        for (int i = 0; i < modelList.size(); i++) {
+                            if (modelList.get(i).pathType == Model.PATH_TYPE.FILE && !FileUtils.checkFileExistence(mActivity, modelList.get(i).name)) {
+                                modelList.get(i).setPathType(Model.PATH_TYPE.URL);
+                            }
+                        }
+                        FileUtils.updateModelConfig(mActivity, mContext, modelList, false);
+                         mActivity.runOnUiThread(() -> {
+                            updateModelListAdapter.setItems(modelList);
+                            updateModelListAdapter.notifyDataSetChanged();
+                                });
                     }
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    pageToken = null;
                 }
-            } while (pageToken != null);
-        }).start();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            // Pause rotation animation and reset icon.
+            mActivity.runOnUiThread(() -> {
+                rotation.pause();
+                icon.setRotation(0f);
+            });
+        });
     }
 }
\ No newline at end of file
@@ -1,5 +1,6 @@
 package org.openbot.logging;
 
+import android.app.Activity;
 import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
@@ -16,6 +17,7 @@ import android.os.IBinder;
 import android.os.Messenger;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.util.Size;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
@@ -24,7 +26,7 @@ import androidx.activity.result.ActivityResultLauncher;
 import androidx.activity.result.contract.ActivityResultContracts;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
-import androidx.camera.core.ImageProxy;
+import androidx.camera.core.ImageInfo;
 import androidx.navigation.Navigation;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
 import com.google.firebase.auth.FirebaseUser;
@@ -35,6 +37,7 @@ import java.util.Date;
 import java.util.List;
 import java.util.Locale;
 import java.util.Objects;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import org.jetbrains.annotations.NotNull;
 import org.openbot.R;
@@ -72,6 +75,8 @@ public class LoggerFragment extends CameraFragment {
   private boolean maintainAspectRatio;
   private String saveAs;
   private GoogleServices googleServices;
+  // Upload of the last log to Google Drive, cancelled when the fragment is destroyed
+  private Future<?> logUpload;
 
   @Override
   public View onCreateView(
@@ -267,6 +272,15 @@ public class LoggerFragment extends CameraFragment {
     super.onPause();
   }
 
+  @Override
+  public void onDestroy() {
+    if (logUpload != null) {
+      logUpload.cancel(true);
+      logUpload = null;
+    }
+    super.onDestroy();
+  }
+
   protected synchronized void runInBackground(final Runnable r) {
     if (handler != null) {
       handler.post(r);
@@ -369,7 +383,8 @@ public class LoggerFragment extends CameraFragment {
               case "Server" :
                 if (!isCancel) serverCommunication.upload(zip(folder));
                 break;
-              case "GoogleDrive" : googleServices.uploadLogData(zip(folder));
+              case "GoogleDrive" :
+                if (!isCancel) logUpload = googleServices.uploadLogData(zip(folder), uploadListener);
                 break;
             }
             TimeUnit.MILLISECONDS.sleep(500);
@@ -381,6 +396,35 @@ public class LoggerFragment extends CameraFragment {
     loggingEnabled = false;
   }
 
+  // Shows the progress of a log upload to Google Drive on the logger switch
+  private final GoogleServices.UploadListener uploadListener =
+      new GoogleServices.UploadListener() {
+        @Override
+        public void onProgress(double fraction) {
+          showUploadProgress((int) (fraction * 100));
+        }
+
+        @Override
+        public void onComplete(boolean uploaded) {
+          showUploadProgress(-1);
+          if (!uploaded) Timber.w("Log upload to Google Drive did not complete");
+        }
+      };
+
+  /** @param percent upload progress, or -1 to show the label of the logger switch again */
+  private void showUploadProgress(int percent) {
+    Activity activity = getActivity();
+    if (activity == null) return;
+    activity.runOnUiThread(
+        () -> {
+          if (!isAdded()) return;
+          binding.loggerSwitch.setText(
+              percent >= 0
+                  ? getString(R.string.log_upload_progress, percent)
+                  : getString(R.string.log_data));
+        });
+  }
+
   private File zip(File folder) {
     String zipFileName = folder + ".zip";
     File zip = new File(zipFileName);
@@ -612,16 +656,25 @@ public class LoggerFragment extends CameraFragment {
 
   private long frameNum = 0;
 
+  // Frames are only converted while they are logged.
+  @Override
+  protected boolean needsBitmap() {
+    return binding != null
+        && binding.loggerSwitch.isChecked()
+        && (binding.previewCheckBox.isChecked() || binding.trainingDataCheckBox.isChecked());
+  }
+
   @Override
-  protected void processFrame(Bitmap bitmap, ImageProxy image) {
+  protected void processFrame(Bitmap bitmap, ImageInfo imageInfo) {
     ++frameNum;
     if (binding != null) {
+      Size size = getMaxAnalyseImageSize();
       if (isAdded())
         requireActivity()
             .runOnUiThread(
                 () ->
                     binding.frameInfo.setText(
-                        String.format(Locale.US, "%d x %d", image.getWidth(), image.getHeight())));
+                        String.format(Locale.US, "%d x %d", size.getWidth(), size.getHeight())));
 
       if (!binding.loggerSwitch.isChecked()) return;
 
@@ -634,7 +687,7 @@ public class LoggerFragment extends CameraFragment {
           ImageUtils.saveBitmap(
               bitmap, logFolder + File.separator + "images", frameNum + "_preview.jpeg");
       }
-      if (binding.trainingDataCheckBox.isChecked()) {
+      if (binding.trainingDataCheckBox.isChecked() && bitmap != null) {
         if (frameToCropTransform == null)
           frameToCropTransform =
               ImageUtils.getTransformationMatrix(
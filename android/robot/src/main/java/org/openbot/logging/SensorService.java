@@ -30,7 +30,10 @@ import java.io.IOException;
 import org.openbot.R;
 import org.openbot.env.Logger;
 import org.openbot.env.SharedPreferencesManager;
+import org.openbot.utils.Constants;
 import org.openbot.utils.Enums;
+import org.openbot.utils.LatencyTracer;
+import org.openbot.utils.MetricsRegistry;
 
 public class SensorService extends Service implements SensorEventListener {
   private SensorManager sensorManager;
@@ -64,6 +67,16 @@ public class SensorService extends Service implements SensorEventListener {
   private BufferedWriter sonarLog;
   private BufferedWriter wheelsLog;
   private BufferedWriter bumperLog;
+  private String latencyLogFolder;
+  // Written on the metrics reporter thread, guarded by metricsLogLock
+  private BufferedWriter metricsLog;
+  private final Object metricsLogLock = new Object();
+  private final MetricsRegistry.SnapshotListener metricsListener =
+      snapshot -> {
+        synchronized (metricsLogLock) {
+          if (metricsLog != null) appendLog(metricsLog, snapshot.toString());
+        }
+      };
 
   private boolean trackingLocation = false;
   private boolean hasStarted = false;
@@ -197,6 +210,19 @@ public class SensorService extends Service implements SensorEventListener {
     frameLog = openLog(logFolder, "rgbFrames.txt");
     appendLog(frameLog, "timestamp[ns],frame");
 
+    latencyLogFolder = logFolder;
+    LatencyTracer.getInstance().reset();
+
+    synchronized (metricsLogLock) {
+      if (metricsLog != null) {
+        closeLog(metricsLog);
+      } else {
+        MetricsRegistry.getInstance().addListener(metricsListener);
+        MetricsRegistry.getInstance().startReporting(Constants.METRICS_REPORT_PERIOD_MS);
+      }
+      metricsLog = openLog(logFolder, "metricsLog.txt");
+    }
+
     inferenceLog = openLog(logFolder, "inferenceTime.txt");
     appendLog(inferenceLog, "frame, inferenceTime [ns]");
 
@@ -463,6 +489,17 @@ public class SensorService extends Service implements SensorEventListener {
     if (sonarLog != null) closeLog(sonarLog);
     if (wheelsLog != null) closeLog(wheelsLog);
     if (bumperLog != null) closeLog(bumperLog);
+    if (latencyLogFolder != null) LatencyTracer.getInstance().export(latencyLogFolder);
+    MetricsRegistry.getInstance().removeListener(metricsListener);
+    synchronized (metricsLogLock) {
+      if (metricsLog != null) {
+        // Reporting is started together with the log.
+        MetricsRegistry.getInstance().stopReporting();
+        appendLog(metricsLog, MetricsRegistry.getInstance().snapshot().toString());
+        closeLog(metricsLog);
+        metricsLog = null;
+      }
+    }
   }
 
   public BufferedWriter openLog(String path, String filename) {
@@ -17,6 +17,7 @@ import androidx.preference.ListPreference;
 import androidx.preference.PreferenceFragmentCompat;
 import androidx.preference.SwitchPreferenceCompat;
 import org.openbot.R;
+import org.openbot.env.SharedPreferencesManager;
 import org.openbot.utils.Constants;
 import org.openbot.utils.PermissionUtils;
 
@@ -143,6 +144,28 @@ public class SettingsFragment extends PreferenceFragmentCompat {
           });
     }
 
+    // Stored with the other app settings, not in the default preferences of this screen
+    SharedPreferencesManager preferencesManager = new SharedPreferencesManager(requireContext());
+    SwitchPreferenceCompat gpuPolicyInput = findPreference("ar_gpu_policy_input");
+    if (gpuPolicyInput != null) {
+      gpuPolicyInput.setChecked(preferencesManager.getGpuPolicyInput());
+      gpuPolicyInput.setOnPreferenceChangeListener(
+          (preference, newValue) -> {
+            preferencesManager.setGpuPolicyInput((Boolean) newValue);
+            return true;
+          });
+    }
+
+    ListPreference arPreview = findPreference("ar_preview");
+    if (arPreview != null) {
+      arPreview.setValue(String.valueOf(preferencesManager.getArPreview()));
+      arPreview.setOnPreferenceChangeListener(
+          (preference, newValue) -> {
+            preferencesManager.setArPreview(Integer.parseInt(newValue.toString()));
+            return true;
+          });
+    }
+
     ListPreference streamMode = findPreference("video_server");
 
     if (streamMode != null)
@@ -46,6 +46,7 @@ import java.util.List;
 import java.util.stream.Collectors;
 import org.openbot.R;
 import org.openbot.databinding.FragmentModelManagementBinding;
+import org.openbot.env.SharedPreferencesManager;
 import org.openbot.googleServices.GoogleServices;
 import org.openbot.main.OnItemClickListener;
 import org.openbot.projects.GoogleSignInCallback;
@@ -278,6 +279,21 @@ public class ModelManagementFragment extends Fragment
                 new ArrayAdapter<>(
                         requireContext(), android.R.layout.simple_dropdown_item_1line, modelTypes);
 
+        // Fetch and check the models selected for driving in the background, and check all
+        // downloaded ones, so selecting them later does not block or fail on first load.
+        ModelPrefetcher prefetcher = ModelPrefetcher.getInstance(requireContext());
+        prefetcher.addListener(prefetchListener);
+        SharedPreferencesManager preferencesManager = new SharedPreferencesManager(requireContext());
+        List<String> selectedModels =
+                Arrays.asList(
+                        preferencesManager.getAutopilotModel(),
+                        preferencesManager.getObjectNavModel(),
+                        preferencesManager.getDefaultModel());
+        for (Model model : masterList) {
+            if (model.pathType == Model.PATH_TYPE.FILE || selectedModels.contains(model.name))
+                prefetcher.prefetch(model);
+        }
+
         binding.modelSpinner.setAdapter(modelAdapter);
         binding.autoSync.setOnClickListener(v -> {
             rotation.start();
@@ -388,6 +404,7 @@ public class ModelManagementFragment extends Fragment
                     model.setPath(requireActivity().getFilesDir() + File.separator + model.name);
                     model.setPathType(Model.PATH_TYPE.FILE);
                     FileUtils.updateModelConfig(requireActivity(), requireContext(), masterList, false);
+                    ModelPrefetcher.getInstance(requireContext()).prefetch(model);
                     //adapter.notifyDataSetChanged();
                     googleServices.createAndUploadJsonFile(masterList);
                     break;
@@ -396,6 +413,27 @@ public class ModelManagementFragment extends Fragment
         }
     }
 
+    private final ModelPrefetcher.Listener prefetchListener =
+            (model, file, result) -> {
+                if (!isAdded()) return;
+                if (model.pathType == Model.PATH_TYPE.URL) {
+                    onModelDownloaded(true, model);
+                    showModels(loadModelList(binding.modelSpinner.getSelectedItem().toString()));
+                }
+                if (!result.valid)
+                    Toast.makeText(
+                                    requireContext().getApplicationContext(),
+                                    model.name + ": " + result.message,
+                                    Toast.LENGTH_LONG)
+                            .show();
+            };
+
+    @Override
+    public void onDestroyView() {
+        super.onDestroyView();
+        ModelPrefetcher.getInstance(requireContext()).removeListener(prefetchListener);
+    }
+
     @Override
     public void onModelDelete(Model mItem) {
         AlertDialog.Builder builder = new AlertDialog.Builder(requireActivity());
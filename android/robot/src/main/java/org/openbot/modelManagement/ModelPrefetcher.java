@@ -0,0 +1,184 @@
+package org.openbot.modelManagement;
+
+import android.content.Context;
+import android.net.ConnectivityManager;
+import android.os.Handler;
+import android.os.Looper;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.openbot.tflite.Model;
+import org.openbot.tflite.ModelValidator;
+import timber.log.Timber;
+
+/**
+ * Background queue that downloads models which will likely be needed and validates them before
+ * they are selected for driving. Downloads are only started on unmetered networks and resume
+ * partial files. Google Drive models need a signed in account and are left to the user.
+ */
+public class ModelPrefetcher {
+
+  public interface Listener {
+    /**
+     * Called on the main thread once a model was prefetched. If the model had a remote path, the
+     * file is now at {@code file} and the model should be switched to it.
+     */
+    void onModelPrefetched(Model model, File file, ModelValidator.Result result);
+  }
+
+  private static final String PART_SUFFIX = ".part";
+  private static final int HTTP_RANGE_NOT_SATISFIABLE = 416;
+  private static ModelPrefetcher instance;
+
+  private final Context context;
+  private final ExecutorService executor = Executors.newSingleThreadExecutor();
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  private final Set<String> queued = Collections.synchronizedSet(new HashSet<>());
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
+
+  public static synchronized ModelPrefetcher getInstance(Context context) {
+    if (instance == null) instance = new ModelPrefetcher(context.getApplicationContext());
+    return instance;
+  }
+
+  private ModelPrefetcher(Context context) {
+    this.context = context;
+  }
+
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(Listener listener) {
+    listeners.remove(listener);
+  }
+
+  /** Queues the model for download (remote models) and validation (downloaded models). */
+  public void prefetch(Model model) {
+    if (model == null || model.path == null) return;
+    if (model.pathType == Model.PATH_TYPE.ASSET) return;
+    if (model.pathType == Model.PATH_TYPE.URL && !isPrefetchableUrl(model.path)) return;
+    if (model.pathType == Model.PATH_TYPE.FILE && ModelValidator.getCachedResult(model) != null) {
+      return;
+    }
+    if (!queued.add(model.name)) return;
+    executor.execute(
+        () -> {
+          try {
+            run(model);
+          } finally {
+            queued.remove(model.name);
+          }
+        });
+  }
+
+  public void prefetch(List<Model> models) {
+    for (Model model : models) prefetch(model);
+  }
+
+  private void run(Model model) {
+    File file;
+    Model local;
+    if (model.pathType == Model.PATH_TYPE.URL) {
+      if (isMetered()) {
+        Timber.d("Metered network, not prefetching %s", model.name);
+        return;
+      }
+      file = new File(context.getFilesDir(), model.name);
+      try {
+        download(model.path, file);
+      } catch (IOException e) {
+        Timber.e(e, "Prefetch of %s failed", model.name);
+        return;
+      }
+      local =
+          new Model(
+              model.id,
+              model.classType,
+              model.type,
+              model.name,
+              Model.PATH_TYPE.FILE,
+              file.getPath(),
+              model.getInputSize().toString());
+    } else {
+      file = new File(model.path);
+      local = model;
+    }
+
+    ModelValidator.Result result = ModelValidator.validate(context, local);
+    mainHandler.post(
+        () -> {
+          for (Listener listener : listeners) listener.onModelPrefetched(model, file, result);
+        });
+  }
+
+  /** Downloads into a partial file, resuming it if possible, and moves it in place when done. */
+  private static void download(String url, File toFile) throws IOException {
+    File partFile = new File(toFile.getPath() + PART_SUFFIX);
+    long offset = partFile.length();
+    boolean restart = false;
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    try {
+      if (offset > 0) connection.setRequestProperty("Range", "bytes=" + offset + "-");
+      int status = connection.getResponseCode();
+      boolean append = status == HttpURLConnection.HTTP_PARTIAL;
+      if (status == HTTP_RANGE_NOT_SATISFIABLE && offset > 0) {
+        // Nothing is left to resume: either the partial file is complete, or it is longer than
+        // the file on the server and has to be downloaded again.
+        restart = offset != getCompleteLength(connection);
+      } else if (status != HttpURLConnection.HTTP_OK && !append) {
+        throw new IOException("HTTP " + status + " for " + url);
+      } else {
+        try (InputStream in = connection.getInputStream();
+            OutputStream out = new FileOutputStream(partFile, append)) {
+          byte[] buffer = new byte[64 * 1024];
+          int read;
+          while ((read = in.read(buffer)) != -1) {
+            out.write(buffer, 0, read);
+          }
+        }
+      }
+    } finally {
+      connection.disconnect();
+    }
+    if (restart) {
+      if (!partFile.delete()) throw new IOException("Could not delete " + partFile);
+      download(url, toFile);
+      return;
+    }
+    if (!partFile.renameTo(toFile)) throw new IOException("Could not move " + partFile);
+  }
+
+  /** @return the file length from the Content-Range header of a 416 response, or -1 if unknown */
+  private static long getCompleteLength(HttpURLConnection connection) {
+    String range = connection.getHeaderField("Content-Range");
+    if (range == null || range.indexOf('/') < 0) return -1;
+    try {
+      return Long.parseLong(range.substring(range.indexOf('/') + 1).trim());
+    } catch (NumberFormatException e) {
+      return -1;
+    }
+  }
+
+  private static boolean isPrefetchableUrl(String path) {
+    return (path.startsWith("http://") || path.startsWith("https://"))
+        && !path.startsWith("https://drive.google.com");
+  }
+
+  private boolean isMetered() {
+    ConnectivityManager cm =
+        (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+    return cm == null || cm.isActiveNetworkMetered();
+  }
+}
@@ -21,6 +21,7 @@ import android.widget.Toast;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 import androidx.camera.core.CameraSelector;
+import androidx.camera.core.ImageInfo;
 import androidx.camera.core.ImageProxy;
 import androidx.navigation.Navigation;
 import com.google.android.material.bottomsheet.BottomSheetBehavior;
@@ -37,10 +38,14 @@ import org.openbot.env.ImageUtils;
 import org.openbot.tflite.Detector;
 import org.openbot.tflite.Model;
 import org.openbot.tflite.Network;
+import org.openbot.tracking.KeyframeScheduler;
 import org.openbot.tracking.MultiBoxTracker;
+import org.openbot.tracking.TemplateTracker;
 import org.openbot.utils.CameraUtils;
 import org.openbot.utils.Constants;
 import org.openbot.utils.Enums;
+import org.openbot.utils.LatencyTracer;
+import org.openbot.utils.MetricsRegistry;
 import org.openbot.utils.MovingAverage;
 import org.openbot.utils.PermissionUtils;
 import org.openbot.vehicle.Control;
@@ -66,6 +71,13 @@ public class ObjectNavFragment extends CameraFragment {
   private Matrix cropToFrameTransform;
 
   private MultiBoxTracker tracker;
+  // Follows the target between detector runs; only used on the camera thread.
+  private final TemplateTracker templateTracker = new TemplateTracker();
+  private final KeyframeScheduler keyframeScheduler = new KeyframeScheduler();
+  private final RectF targetLocation = new RectF();
+  private volatile boolean templateStale = false;
+  // Read on the camera thread
+  private volatile boolean keyframeTracking;
 
   private Model model;
   private Network.Device device = Network.Device.CPU;
@@ -73,6 +85,8 @@ public class ObjectNavFragment extends CameraFragment {
   private String classType = "person";
 
   private long lastProcessingTimeMs = -1;
+  private final MetricsRegistry.Counter skippedFrames =
+      MetricsRegistry.getInstance().counter("objectnav.skipped_frames");
   private long frameNum = 0;
 
   private final boolean isBenchmarkMode = false;
@@ -234,6 +248,13 @@ public class ObjectNavFragment extends CameraFragment {
           preferencesManager.setDynamicSpeed(binding.dynamicSpeed.isChecked());
           tracker.setDynamicSpeed(preferencesManager.getDynamicSpeed());
         });
+    keyframeTracking = preferencesManager.getKeyframeTracking();
+    binding.keyframeTracking.setChecked(keyframeTracking);
+    binding.keyframeTracking.setOnClickListener(
+        v -> {
+          preferencesManager.setKeyframeTracking(binding.keyframeTracking.isChecked());
+          keyframeTracking = binding.keyframeTracking.isChecked();
+        });
   }
 
   private void mirrorControl() {
@@ -426,25 +447,55 @@ public class ObjectNavFragment extends CameraFragment {
     binding.controllerContainer.speedMode.setAlpha(b ? 0.5f : 1f);
 
     resetFpsUi();
+    templateStale = false;
+    templateTracker.reset();
+    keyframeScheduler.reset();
     if (!b) handler.postDelayed(() -> vehicle.setControl(0, 0), Math.max(lastProcessingTimeMs, 50));
   }
 
   @Override
-  protected void processFrame(Bitmap bitmap, ImageProxy image) {
+  protected void onImageAvailable(ImageProxy image) {
+    if (keyframeTracking && binding != null && binding.autoSwitch.isChecked())
+      templateTracker.setFrame(image, lensFacing == CameraSelector.LENS_FACING_FRONT);
+  }
+
+  @Override
+  protected void processFrame(Bitmap bitmap, ImageInfo imageInfo) {
     if (tracker == null) updateCropImageInfo();
 
     ++frameNum;
+    final long captureTime = SystemClock.elapsedRealtime();
     if (binding != null && binding.autoSwitch.isChecked()) {
-      // If network is busy, return.
-      if (computingNetwork) {
+      keyframeScheduler.onFrame(captureTime);
+      if (templateStale) {
+        // A detection finished since the last frame, take a fresh template of the target.
+        templateStale = false;
+        keyframeScheduler.onDetection(lastProcessingTimeMs);
+        tracker.predict(captureTime);
+        if (tracker.getTargetLocation(targetLocation)) templateTracker.init(targetLocation);
+        else templateTracker.reset();
+      }
+
+      // While the network is busy or between keyframes, keep steering towards the tracked target.
+      final boolean canTrack = tracker.hasTarget() && templateTracker.hasTemplate();
+      final boolean keyframe = !keyframeTracking || keyframeScheduler.shouldDetect(canTrack);
+      if (computingNetwork || !keyframe) {
+        skippedFrames.inc();
+        if (tracker.hasTarget()) {
+          trackTarget(captureTime);
+          steerTowardsTarget();
+          binding.trackingOverlay.postInvalidate();
+        }
         return;
       }
 
       computingNetwork = true;
       Timber.i("Putting image " + frameNum + " for detection in bg thread.");
+      final long frameId = LatencyTracer.getInstance().currentFrame();
 
       runInBackground(
           () -> {
+            LatencyTracer.getInstance().attach(frameId);
             final Canvas canvas = new Canvas(croppedBitmap);
             if (lensFacing == CameraSelector.LENS_FACING_FRONT) {
               canvas.drawBitmap(
@@ -452,6 +503,7 @@ public class ObjectNavFragment extends CameraFragment {
             } else {
               canvas.drawBitmap(bitmap, frameToCropTransform, null);
             }
+            LatencyTracer.getInstance().mark(LatencyTracer.Stage.CROP);
 
             if (detector != null) {
               Timber.i("Running detection on image %s", frameNum);
@@ -490,16 +542,13 @@ public class ObjectNavFragment extends CameraFragment {
                 }
               }
 
-              tracker.trackResults(mappedRecognitions, frameNum);
-              Control target = tracker.updateTarget();
-              if (mirrorControl) {
-                handleDriveCommand(target.mirror());
-              } else {
-                handleDriveCommand(target);
-              }
+              tracker.trackResults(mappedRecognitions, captureTime);
+              templateStale = keyframeTracking;
+              steerTowardsTarget();
               binding.trackingOverlay.postInvalidate();
             }
 
+            LatencyTracer.getInstance().detach();
             computingNetwork = false;
           });
       if (lastProcessingTimeMs > 0) {
@@ -512,12 +561,33 @@ public class ObjectNavFragment extends CameraFragment {
     }
   }
 
+  /** Moves the target to where it is in the current frame without running the detector. */
+  private void trackTarget(long captureTime) {
+    tracker.predict(captureTime);
+    if (!keyframeTracking || !templateTracker.hasTemplate()) return;
+    keyframeScheduler.onTracked(templateTracker.track(targetLocation));
+    if (keyframeScheduler.isTracking()) tracker.updateTargetLocation(targetLocation, captureTime);
+  }
+
+  private void steerTowardsTarget() {
+    Control target = tracker.updateTarget();
+    if (mirrorControl) {
+      handleDriveCommand(target.mirror());
+    } else {
+      handleDriveCommand(target);
+    }
+  }
+
   private void updateFpsUi(double processingTimeMs) {
     requireActivity()
         .runOnUiThread(
             () ->
                 binding.inferenceInfo.setText(
-                    String.format(Locale.US, "%.1f fps", 1000.f / processingTimeMs)));
+                    String.format(
+                        Locale.US,
+                        "%.1f fps %s",
+                        1000.f / processingTimeMs,
+                        LatencyTracer.getInstance().getOverlayText())));
   }
 
   private void resetFpsUi() {
@@ -527,9 +597,10 @@ public class ObjectNavFragment extends CameraFragment {
   }
 
   protected void handleDriveCommand(Control control) {
-    vehicle.setControl(control);
-    float left = vehicle.getLeftSpeed();
-    float right = vehicle.getRightSpeed();
+    vehicle.setPolicyControl(control);
+    // Show the command of the policy; the vehicle only reaches it after smoothing.
+    float left = control.getLeft() * vehicle.getSpeedMultiplier();
+    float right = control.getRight() * vehicle.getSpeedMultiplier();
     requireActivity()
         .runOnUiThread(
             () ->
@@ -135,6 +135,7 @@ public class DefaultActivity extends CameraActivity implements OnImageAvailableL
   protected void processImage() {
     ++frameNum;
     final long currFrameNum = frameNum;
+    final long captureTime = SystemClock.elapsedRealtime();
     // trackingOverlay.postInvalidate();
 
     // If network is busy and we don't need to log any image, return.
@@ -230,7 +231,7 @@ public class DefaultActivity extends CameraActivity implements OnImageAvailableL
                 }
               }
 
-              tracker.trackResults(mappedRecognitions, currFrameNum);
+              tracker.trackResults(mappedRecognitions, captureTime);
               controllerHandler.handleDriveCommand(tracker.updateTarget());
               trackingOverlay.postInvalidate();
             } else if (autopilot != null) {
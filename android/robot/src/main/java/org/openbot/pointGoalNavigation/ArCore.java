@@ -2,6 +2,7 @@ package org.openbot.pointGoalNavigation;
 
 import android.content.Context;
 import android.media.Image;
+import android.opengl.EGL14;
 import android.opengl.GLES20;
 import android.opengl.GLSurfaceView;
 import android.os.Handler;
@@ -32,11 +33,15 @@ import com.google.ar.core.exceptions.UnavailableSdkTooOldException;
 import java.io.IOException;
 import java.util.EnumSet;
 import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.microedition.khronos.egl.EGLConfig;
 import javax.microedition.khronos.opengles.GL10;
 import org.openbot.pointGoalNavigation.rendering.BackgroundRenderer;
 import org.openbot.pointGoalNavigation.rendering.DisplayRotationHelper;
+import org.openbot.pointGoalNavigation.rendering.PolicyInputRenderer;
 import org.openbot.pointGoalNavigation.rendering.TwoDRenderer;
+import org.openbot.utils.Enums;
 import timber.log.Timber;
 
 /* This class is used to integrate ARCore
@@ -45,28 +50,69 @@ From: http://www.pngall.com/map-marker-png/download/17543
  */
 
 public class ArCore implements GLSurfaceView.Renderer {
+  // Size of the CPU image, see setCameraConfig()
+  private static final int IMAGE_WIDTH = 640;
+  private static final int IMAGE_HEIGHT = 480;
 
   private DisplayRotationHelper displayRotationHelper;
   private final BackgroundRenderer backgroundRenderer = new BackgroundRenderer();
+  private final PolicyInputRenderer policyInputRenderer =
+      new PolicyInputRenderer(
+          PointGoalNavigationFragment.POLICY_INPUT_WIDTH,
+          PointGoalNavigationFragment.POLICY_INPUT_HEIGHT);
+  private volatile boolean gpuPolicyInput = false;
   private Context appContext;
   private Session session;
   private Camera camera;
   private final TwoDRenderer twoDRenderer = new TwoDRenderer();
   private Pose currentPose;
   private float gpuTextureAspectRatio = 16.0f / 9.0f;
-  private ArCoreListener arCoreListener = null;
+  private volatile ArCoreListener arCoreListener = null;
   private final float[] anchorMatrix = new float[16];
   private Anchor startAnchor, targetAnchor;
   private Handler handlerMain;
   private GLSurfaceView surfaceView;
-  private boolean renderFrame = true;
+  private volatile Enums.ArPreview previewMode = Enums.ArPreview.FULL;
+  // Only used on the GL thread
+  private Enums.ArPreview appliedPreviewMode = null;
+  private boolean bufferPreserved = false;
+  private long lastPreviewMs = 0;
+  private final float[] projectionMatrix = new float[16];
+  private final float[] viewMatrix = new float[16];
+  private final float[] translation = new float[3];
+  private final float[] rotation = new float[4];
   private Pose startPose = null, targetPose = null;
+  // Frames are handed to the listener on this thread, so neither rendering nor the UI waits for it.
+  private final HandlerThread processingThread;
+  private final Handler processingHandler;
+  private final AtomicReference<ArCoreUpdate> pendingUpdate = new AtomicReference<>();
+  // One frame being filled, one waiting in the mailbox and one being processed
+  private final FramePool<ImageFrame> imageFramePool = new FramePool<>(3, ImageFrame::new);
+  // One depth frame waiting for the occupancy grid and one being integrated
+  private final FramePool<DepthFrame> depthFramePool = new FramePool<>(2, DepthFrame::new);
+  private volatile OccupancyGrid occupancyGrid = null;
+  private volatile PoseHistory poseHistory = null;
+  private boolean depthEnabled = false;
+  private final AtomicInteger droppedFrames = new AtomicInteger();
+  private volatile float frameLatencyMs;
 
   public ArCore(Context context, GLSurfaceView surfaceView, Handler handlerMain) {
     this.appContext = context;
     displayRotationHelper = new DisplayRotationHelper(context);
     this.handlerMain = handlerMain;
     this.surfaceView = surfaceView;
+    processingThread = new HandlerThread("ArCore Processing");
+    processingThread.start();
+    processingHandler = new Handler(processingThread.getLooper());
+
+    // The same crop of the CPU image as PointGoalNavigationFragment.convertFrameToPolicyInput
+    float scale = PointGoalNavigationFragment.POLICY_RESIZE_FACTOR;
+    float cropTop = PointGoalNavigationFragment.POLICY_CROP_TOP / scale;
+    policyInputRenderer.setCrop(
+        0,
+        cropTop / IMAGE_HEIGHT,
+        PointGoalNavigationFragment.POLICY_INPUT_WIDTH / scale / IMAGE_WIDTH,
+        (cropTop + PointGoalNavigationFragment.POLICY_INPUT_HEIGHT / scale) / IMAGE_HEIGHT);
 
     // set up renderer
     this.surfaceView.setPreserveEGLContextOnPause(true);
@@ -86,10 +132,13 @@ public class ArCore implements GLSurfaceView.Renderer {
     try {
       // Create the texture and pass it to ARCore session to be filled during update().
       backgroundRenderer.createOnGlThread(appContext);
+      policyInputRenderer.createOnGlThread(appContext);
     } catch (IOException e) {
       Timber.e(e, "Failed to create background renderer");
     }
     twoDRenderer.createOnGlThread(appContext, "render/gmap_marker.png");
+    // The swap behavior belongs to the new surface.
+    appliedPreviewMode = null;
   }
 
   @Override
@@ -127,8 +176,15 @@ public class ArCore implements GLSurfaceView.Renderer {
 
   @Override
   public void onDrawFrame(GL10 gl) {
-    // Clear screen to notify driver it should not load any pixels from previous frame.
-    GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+    Enums.ArPreview mode = previewMode;
+    if (mode != appliedPreviewMode) {
+      applyPreviewMode(mode);
+    }
+    boolean drawPreview = isPreviewDue(mode);
+    if (drawPreview || !bufferPreserved || mode == Enums.ArPreview.HEADLESS) {
+      // Clear screen to notify driver it should not load any pixels from previous frame.
+      GLES20.glClear(GLES20.GL_COLOR_BUFFER_BIT | GLES20.GL_DEPTH_BUFFER_BIT);
+    }
 
     if (session == null) {
       return;
@@ -179,7 +235,15 @@ public class ArCore implements GLSurfaceView.Renderer {
     // see https://developers.google.com/ar/reference/java/com/google/ar/core/Frame#getTimestamp()
 
     TrackingState trackingState = camera.getTrackingState();
-    if (trackingState != TrackingState.TRACKING) {
+    boolean tracking = trackingState == TrackingState.TRACKING;
+    // While ARCore is not tracking, the pose may be carried forward with wheel odometry.
+    PoseHistory history = poseHistory;
+    Pose odometryPose = null;
+    if (!tracking && history != null) {
+      odometryPose = history.addOdometryPose(timestamp);
+    }
+
+    if (!tracking && odometryPose == null) {
       Timber.d("ARCore is not tracking.");
 
       TrackingFailureReason trackingFailureReason = camera.getTrackingFailureReason();
@@ -190,97 +254,250 @@ public class ArCore implements GLSurfaceView.Renderer {
             }
           });
     } else {
-      Timber.d("ARCore is tracking.");
-
-      // Get poses.
-      currentPose = camera.getPose();
-      if (startAnchor != null) {
-        startPose = startAnchor.getPose();
-      }
-      if (targetAnchor != null) {
-        targetPose = targetAnchor.getPose();
+      Pose navigationPose;
+      if (tracking) {
+        Timber.d("ARCore is tracking.");
+
+        // Get poses.
+        currentPose = camera.getPose();
+        if (startAnchor != null) {
+          startPose = startAnchor.getPose();
+        }
+        if (targetAnchor != null) {
+          targetPose = targetAnchor.getPose();
+        }
+        if (history != null) {
+          history.addTrackedPose(timestamp, currentPose);
+        }
+        navigationPose = currentPose;
+      } else {
+        // The anchors keep their last tracked poses.
+        Timber.d("ARCore is not tracking, using wheel odometry.");
+        navigationPose = odometryPose;
       }
 
-      // Get image.
-      // TODO: If needed, we could possibly implement some performance optimization here:
-      // Do we really need to copy here? We could use several cycling textures instead of only
-      // 1 texture. This would allow to close the image faster.
-      Image image = null;
-      try {
-        image = frame.acquireCameraImage();
-      } catch (NotYetAvailableException e) {
-        Timber.d(e, "ARCore image not available.");
+      if (gpuPolicyInput && policyInputRenderer.isCreated()) {
+        // Only the policy input is rendered from the camera texture and read back, the CPU image
+        // is not acquired at all.
+        ImageFrame imageFrame = imageFramePool.acquire();
+        if (imageFrame != null) {
+          policyInputRenderer.draw(
+              frame,
+              backgroundRenderer.getTextureId(),
+              imageFrame.setPixels(
+                  PointGoalNavigationFragment.POLICY_INPUT_WIDTH,
+                  PointGoalNavigationFragment.POLICY_INPUT_HEIGHT));
+          postUpdate(
+              new ArCoreUpdate(
+                  new NavigationPoses(navigationPose, targetPose, startPose),
+                  imageFrame,
+                  new CameraIntrinsics(camera.getImageIntrinsics()),
+                  timestamp));
+        } else {
+          droppedFrames.incrementAndGet();
+        }
+      } else {
+        sendCameraImage(frame, navigationPose, timestamp);
       }
 
-      // Send arcore data
-      if (image != null) {
-        // TODO: We could use another data structure here to avoid additional copying later.
-        // (Important: We need to be fast here such that `image` is closed as fast
-        // as possible. Hence, we currently use ByteBuffer.get() and .put() to copy in a fast way.
-        // Is there a faster way?)
-        ImageFrame imageFrame = new ImageFrame(image);
-
-        runOnMainThread(
-            () -> {
-              if (arCoreListener != null) {
-                arCoreListener.onArCoreUpdate(
-                    new NavigationPoses(currentPose, targetPose, startPose),
-                    imageFrame,
-                    new CameraIntrinsics(camera.getImageIntrinsics()),
-                    timestamp);
-              }
-            });
+      OccupancyGrid grid = occupancyGrid;
+      if (tracking && depthEnabled && grid != null && grid.isIdle()) {
+        sendDepthImage(frame, grid, timestamp);
       }
+    }
+
+    if (!drawPreview) {
+      // Keep the background in sync with display changes for the next drawn preview.
+      backgroundRenderer.updateDisplayGeometry(frame);
+      return;
+    }
+
+    backgroundRenderer.draw(frame);
+
+    // visualize goal
+    if (targetAnchor != null && trackingState == TrackingState.TRACKING) {
+      // Get projection and camera matrix and draw.
+      camera.getProjectionMatrix(projectionMatrix, 0, 0.1f, 100.0f);
+      camera.getViewMatrix(viewMatrix, 0);
+
+      targetAnchor.getPose().getTranslation(translation, 0);
+      currentPose.getRotationQuaternion(rotation, 0);
+
+      Pose rotatedPose = new Pose(translation, rotation);
+      rotatedPose.toMatrix(anchorMatrix, 0);
+
+      float scaleFactor = 1.0f;
+      // Update and draw the model and its shadow.
+      twoDRenderer.updateModelMatrix(anchorMatrix, scaleFactor);
+      twoDRenderer.draw(viewMatrix, projectionMatrix);
+    }
+  }
 
-      // Release image
-      if (image != null) {
-        image.close();
+  /**
+   * Between previews at a low frame rate, the last preview must stay on screen, so the color buffer
+   * is preserved across swaps. Not all EGL configs support this; then every frame is drawn.
+   */
+  private void applyPreviewMode(Enums.ArPreview mode) {
+    boolean preserve = mode == Enums.ArPreview.LOW_FPS;
+    if (preserve != bufferPreserved) {
+      boolean applied =
+          EGL14.eglSurfaceAttrib(
+              EGL14.eglGetCurrentDisplay(),
+              EGL14.eglGetCurrentSurface(EGL14.EGL_DRAW),
+              EGL14.EGL_SWAP_BEHAVIOR,
+              preserve ? EGL14.EGL_BUFFER_PRESERVED : EGL14.EGL_BUFFER_DESTROYED);
+      if (applied) {
+        bufferPreserved = preserve;
+      } else if (preserve) {
+        Timber.w("Preserving the preview is not supported, drawing every frame.");
       }
     }
+    appliedPreviewMode = mode;
+  }
 
-    if (renderFrame) {
-      backgroundRenderer.draw(frame);
+  private boolean isPreviewDue(Enums.ArPreview mode) {
+    if (mode.getIntervalMs() < 0) {
+      return false;
+    }
+    if (mode.getIntervalMs() == 0 || !bufferPreserved) {
+      return true;
+    }
+    long now = SystemClock.uptimeMillis();
+    if (now - lastPreviewMs < mode.getIntervalMs()) {
+      return false;
+    }
+    lastPreviewMs = now;
+    return true;
+  }
 
-      // visualize goal
-      if (targetAnchor != null && trackingState == TrackingState.TRACKING) {
-        // Get projection matrix.
-        float[] projmtx = new float[16];
-        camera.getProjectionMatrix(projmtx, 0, 0.1f, 100.0f);
+  /** Copies the CPU camera image into a pooled frame and hands it to the processing thread. */
+  private void sendCameraImage(Frame frame, Pose navigationPose, long timestamp) {
+    Image image = null;
+    try {
+      image = frame.acquireCameraImage();
+    } catch (NotYetAvailableException e) {
+      Timber.d(e, "ARCore image not available.");
+    }
 
-        // Get camera matrix and draw.
-        float[] viewmtx = new float[16];
-        camera.getViewMatrix(viewmtx, 0);
+    // Send arcore data
+    if (image != null) {
+      // The planes are copied into a pooled frame, so no buffers are allocated per frame.
+      // (Important: We need to be fast here such that `image` is closed as fast
+      // as possible. Hence, we currently use ByteBuffer.get() and .put() to copy in a fast way.
+      // Is there a faster way?)
+      ImageFrame imageFrame = imageFramePool.acquire();
+      if (imageFrame != null) {
+        imageFrame.set(image);
+        postUpdate(
+            new ArCoreUpdate(
+                new NavigationPoses(navigationPose, targetPose, startPose),
+                imageFrame,
+                new CameraIntrinsics(camera.getImageIntrinsics()),
+                timestamp));
+      } else {
+        droppedFrames.incrementAndGet();
+      }
+    }
 
-        // Compute lighting from average intensity of the image.
-        // The first three components are color scaling factors.
-        // The last one is the average pixel intensity in gamma space.
-        final float[] colorCorrectionRgba = new float[4];
-        frame.getLightEstimate().getColorCorrection(colorCorrectionRgba, 0);
+    // Release image
+    if (image != null) {
+      image.close();
+    }
+  }
 
-        float translation[] = new float[3];
-        float rotation[] = new float[4];
-        targetAnchor.getPose().getTranslation(translation, 0);
-        currentPose.getRotationQuaternion(rotation, 0);
+  /**
+   * Copies the depth image into a pooled frame and hands it to the occupancy grid. The depth image
+   * may be older than the frame, so the camera pose at its capture time is looked up in the pose
+   * history.
+   *
+   * @param timestamp time of the frame, see {@link PoseHistory}
+   */
+  private void sendDepthImage(Frame frame, OccupancyGrid grid, long timestamp) {
+    DepthFrame depthFrame = depthFramePool.acquire();
+    if (depthFrame == null) {
+      return;
+    }
+    Image depthImage = null;
+    try {
+      depthImage = frame.acquireDepthImage();
+      // Image and frame timestamps share the ARCore time base, so their difference is the age of
+      // the depth image relative to the frame.
+      long depthTimestamp = timestamp - (frame.getTimestamp() - depthImage.getTimestamp());
+      Pose depthPose = currentPose;
+      PoseHistory history = poseHistory;
+      if (history != null) {
+        if (history.isFromOdometry(depthTimestamp)) {
+          // Only an estimate, which would put the obstacles in the wrong cells.
+          return;
+        }
+        Pose pose = history.getPose(depthTimestamp);
+        if (pose != null) depthPose = pose;
+      }
+      depthFrame.set(depthImage);
+      grid.submit(depthFrame, depthPose, new CameraIntrinsics(camera.getImageIntrinsics()));
+      depthFrame = null;
+    } catch (NotYetAvailableException e) {
+      Timber.d(e, "ARCore depth not available.");
+    } finally {
+      if (depthImage != null) {
+        depthImage.close();
+      }
+      if (depthFrame != null) {
+        depthFrame.release();
+      }
+    }
+  }
+
+  protected void runOnMainThread(final Runnable r) {
+    if (handlerMain != null) {
+      handlerMain.post(r);
+    }
+  }
 
-        Pose rotatedPose = new Pose(translation, rotation);
-        rotatedPose.toMatrix(anchorMatrix, 0);
+  /**
+   * Hands a frame to the processing thread. The mailbox holds a single frame: if the listener is
+   * still busy with an earlier one, that frame is replaced, so the renderer never waits for it.
+   */
+  private void postUpdate(ArCoreUpdate update) {
+    ArCoreUpdate replaced = pendingUpdate.getAndSet(update);
+    if (replaced == null) {
+      processingHandler.post(this::processUpdate);
+    } else {
+      replaced.imageFrame.release();
+      droppedFrames.incrementAndGet();
+    }
+  }
 
-        float scaleFactor = 1.0f;
-        // Update and draw the model and its shadow.
-        twoDRenderer.updateModelMatrix(anchorMatrix, scaleFactor);
-        twoDRenderer.draw(viewmtx, projmtx);
+  private void processUpdate() {
+    ArCoreUpdate update = pendingUpdate.getAndSet(null);
+    if (update == null) {
+      return;
+    }
+    ArCoreListener listener = arCoreListener;
+    try {
+      if (listener == null) {
+        return;
       }
+      listener.onArCoreUpdate(
+          update.navigationPoses, update.imageFrame, update.cameraIntrinsics, update.timestamp);
+    } finally {
+      // The frame buffers are filled with a later camera image from now on.
+      update.imageFrame.release();
     }
+
+    // Time from acquiring the frame until the listener is done with it
+    frameLatencyMs = (SystemClock.elapsedRealtimeNanos() - update.timestamp) / 1e6f;
+    Timber.d("AR frame latency: %.1f ms, dropped frames: %d", frameLatencyMs, droppedFrames.get());
   }
 
-  protected synchronized void runOnMainThread(final Runnable r) {
-    new Thread(
-            () -> {
-              if (handlerMain != null) {
-                handlerMain.post(r);
-              }
-            })
-        .start();
+  /** @return the latency of the last processed frame, from acquiring it until it was handled */
+  public float getFrameLatencyMs() {
+    return frameLatencyMs;
+  }
+
+  /** @return the number of frames that were replaced before the listener could handle them */
+  public int getDroppedFrames() {
+    return droppedFrames.get();
   }
 
   public void resume()
@@ -405,6 +622,15 @@ public class ArCore implements GLSurfaceView.Renderer {
             .setPlaneFindingMode(PlaneFindingMode.DISABLED)
             .setUpdateMode(Config.UpdateMode.BLOCKING);
 
+    // Depth is only computed if an occupancy grid uses it.
+    depthEnabled =
+        occupancyGrid != null && session.isDepthModeSupported(Config.DepthMode.AUTOMATIC);
+    if (depthEnabled) {
+      config.setDepthMode(Config.DepthMode.AUTOMATIC);
+    } else if (occupancyGrid != null) {
+      Timber.w("Depth is not supported, the occupancy grid stays empty.");
+    }
+
     session.configure(config);
   }
 
@@ -420,6 +646,11 @@ public class ArCore implements GLSurfaceView.Renderer {
   }
 
   public void closeSession() {
+    ArCoreUpdate pending = pendingUpdate.getAndSet(null);
+    if (pending != null) {
+      pending.imageFrame.release();
+    }
+    processingThread.quitSafely();
     // It's advised to first pause the session in the main thread and then close it in a background
     // thread.
     // Reference: https://developers.google.com/ar/reference/java/com/google/ar/core/Session#close()
@@ -444,6 +675,44 @@ public class ArCore implements GLSurfaceView.Renderer {
     targetAnchor = null;
   }
 
+  /**
+   * Renders the policy input from the camera texture on the GPU instead of copying and converting
+   * the CPU image. The listener then receives frames that hold the converted policy input (see
+   * {@link ImageFrame#hasPixels()}) instead of the camera image.
+   *
+   * <p>GLES 2 has no asynchronous read-back, so the renderer waits until the GPU has drawn the crop
+   * (160x90 pixels) on every frame. This short stall replaces acquiring, copying and converting the
+   * CPU image; it is therefore off by default and can be enabled in the settings.
+   */
+  public void setGpuPolicyInput(boolean enabled) {
+    gpuPolicyInput = enabled;
+  }
+
+  /**
+   * Feeds ARCore depth images to the occupancy grid, on devices that support depth. Must be set
+   * before {@link #resume()}.
+   */
+  public void setOccupancyGrid(OccupancyGrid occupancyGrid) {
+    this.occupancyGrid = occupancyGrid;
+  }
+
+  /**
+   * Records the camera poses of all frames in the history. While tracking is lost, the history
+   * carries the pose forward with wheel odometry and frames are still handed to the listener.
+   */
+  public void setPoseHistory(PoseHistory poseHistory) {
+    this.poseHistory = poseHistory;
+  }
+
+  /**
+   * Sets how often the camera preview and goal marker are drawn, e.g. rarely or never while the
+   * phone is mounted on the robot. ARCore keeps tracking and frames are handed to the listener at
+   * camera rate in all modes.
+   */
+  public void setPreviewMode(Enums.ArPreview previewMode) {
+    this.previewMode = previewMode;
+  }
+
   public void setArCoreListener(ArCoreListener arCoreListener) {
     this.arCoreListener = arCoreListener;
   }
@@ -451,4 +720,22 @@ public class ArCore implements GLSurfaceView.Renderer {
   public void removeArCoreListener() {
     this.arCoreListener = null;
   }
+
+  private static class ArCoreUpdate {
+    final NavigationPoses navigationPoses;
+    final ImageFrame imageFrame;
+    final CameraIntrinsics cameraIntrinsics;
+    final long timestamp;
+
+    ArCoreUpdate(
+        NavigationPoses navigationPoses,
+        ImageFrame imageFrame,
+        CameraIntrinsics cameraIntrinsics,
+        long timestamp) {
+      this.navigationPoses = navigationPoses;
+      this.imageFrame = imageFrame;
+      this.cameraIntrinsics = cameraIntrinsics;
+      this.timestamp = timestamp;
+    }
+  }
 }
@@ -4,13 +4,22 @@ import com.google.ar.core.TrackingFailureReason;
 
 public interface ArCoreListener {
 
+  /**
+   * Called on the ArCore processing thread with the latest frame. Frames that arrive while this is
+   * running replace each other, so only the newest one is handled next. The buffers of {@code rgb}
+   * are reused for later frames once this returns, so it must not be kept. With {@link
+   * ArCore#setGpuPolicyInput} enabled, {@code rgb} holds the converted policy input instead of the
+   * camera image.
+   */
   void onArCoreUpdate(
       NavigationPoses navigationPoses,
       ImageFrame rgb,
       CameraIntrinsics cameraIntrinsics,
       long timestamp);
 
+  /** Called on the main thread. */
   void onArCoreTrackingFailure(long timestamp, TrackingFailureReason trackingFailureReason);
 
+  /** Called on the main thread. */
   void onArCoreSessionPaused(long timestamp);
 }
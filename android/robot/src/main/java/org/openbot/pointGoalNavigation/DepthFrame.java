@@ -5,7 +5,7 @@ import android.media.Image;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 
-public class DepthFrame {
+public class DepthFrame extends PooledFrame {
 
   private int width;
   private int height;
@@ -13,7 +13,15 @@ public class DepthFrame {
   private int pixelStride;
   private ByteBuffer data;
 
+  /** Creates an empty frame for a {@link FramePool}; its buffer is allocated by {@link #set}. */
+  public DepthFrame() {}
+
   public DepthFrame(final Image depthImage) {
+    set(depthImage);
+  }
+
+  /** Copies the depth image into this frame, reusing the buffer of the previous image. */
+  public void set(final Image depthImage) {
     assert (depthImage.getFormat() == ImageFormat.DEPTH16);
     assert (depthImage.getPlanes().length == 1);
 
@@ -24,9 +32,11 @@ public class DepthFrame {
     pixelStride = depthImage.getPlanes()[0].getPixelStride();
 
     ByteBuffer byteBuffer = depthImage.getPlanes()[0].getBuffer();
-    data = ByteBuffer.allocate(byteBuffer.capacity());
+    if (data == null || data.capacity() < byteBuffer.remaining()) {
+      data = ByteBuffer.allocate(byteBuffer.remaining()).order(ByteOrder.nativeOrder());
+    }
+    data.clear();
     data.put(byteBuffer);
-    data = data.order(ByteOrder.nativeOrder());
   }
 
   // INFO: This constructor is only used for testing. This is bad practice.
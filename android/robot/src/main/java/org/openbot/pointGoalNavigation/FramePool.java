@@ -0,0 +1,40 @@
+package org.openbot.pointGoalNavigation;
+
+import java.util.ArrayDeque;
+
+/**
+ * Fixed set of preallocated frames that are filled by the producer (ArCore) and released by the
+ * consumer once handled. Frame buffers are allocated on first use and then reused, so the AR path
+ * does not allocate per frame. If all frames are in use, no frame is handed out and the producer
+ * drops the camera image.
+ */
+public class FramePool<T extends PooledFrame> {
+
+  public interface Factory<T> {
+    T create();
+  }
+
+  private final ArrayDeque<T> freeFrames;
+
+  public FramePool(int size, Factory<T> factory) {
+    freeFrames = new ArrayDeque<>(size);
+    for (int i = 0; i < size; i++) {
+      T frame = factory.create();
+      frame.setPool(this);
+      freeFrames.add(frame);
+    }
+  }
+
+  /** @return a free frame, or null if all frames are in use */
+  public synchronized T acquire() {
+    return freeFrames.poll();
+  }
+
+  @SuppressWarnings("unchecked")
+  synchronized void recycle(PooledFrame frame) {
+    // Releasing a frame twice must not hand it out twice.
+    if (!freeFrames.contains(frame)) {
+      freeFrames.add((T) frame);
+    }
+  }
+}
@@ -6,7 +6,7 @@ import java.nio.ByteBuffer;
 
 /* fillBytes() taken From: https://github.com/wangjiangyong/tflite_android_facedemo/blob/master/app/src/main/java/org/tensorflow/demo/CameraActivity.java */
 
-public class ImageFrame {
+public class ImageFrame extends PooledFrame {
 
   private byte[][] yuvBytes = new byte[3][];
   int width;
@@ -14,8 +14,19 @@ public class ImageFrame {
   private int yRowStride;
   private int uvRowStride;
   private int uvPixelStride;
+  // Set instead of the planes when the frame was already converted, e.g. on the GPU
+  private int[] pixels;
+  private boolean hasPixels = false;
+
+  /** Creates an empty frame for a {@link FramePool}; its buffers are allocated by {@link #set}. */
+  public ImageFrame() {}
 
   public ImageFrame(final Image image) {
+    set(image);
+  }
+
+  /** Copies the image into this frame, reusing the plane buffers of the previous image. */
+  public void set(final Image image) {
     assert (image.getFormat() == ImageFormat.YUV_420_888);
     assert (image.getPlanes().length == 3);
 
@@ -29,6 +40,31 @@ public class ImageFrame {
     yRowStride = planes[0].getRowStride();
     uvRowStride = planes[1].getRowStride();
     uvPixelStride = planes[1].getPixelStride();
+    hasPixels = false;
+  }
+
+  /**
+   * Makes this an already converted frame of the given size instead of a YUV image.
+   *
+   * @return the ARGB buffer to fill, reused between frames of the same size
+   */
+  public int[] setPixels(int width, int height) {
+    if (pixels == null || pixels.length != width * height) {
+      pixels = new int[width * height];
+    }
+    this.width = width;
+    this.height = height;
+    hasPixels = true;
+    return pixels;
+  }
+
+  /** @return whether the frame holds ARGB pixels ({@link #getPixels}) instead of YUV planes */
+  public boolean hasPixels() {
+    return hasPixels;
+  }
+
+  public int[] getPixels() {
+    return pixels;
   }
 
   public byte[][] getYuvBytes() {
@@ -60,8 +96,8 @@ public class ImageFrame {
     // advance the actual necessary dimensions of the yuv planes.
     for (int i = 0; i < planes.length; ++i) {
       final ByteBuffer buffer = planes[i].getBuffer();
-      if (yuvBytes[i] == null) {
-        yuvBytes[i] = new byte[buffer.capacity()];
+      if (yuvBytes[i] == null || yuvBytes[i].length != buffer.remaining()) {
+        yuvBytes[i] = new byte[buffer.remaining()];
       }
       buffer.get(yuvBytes[i]);
     }
@@ -0,0 +1,328 @@
+package org.openbot.pointGoalNavigation;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import com.google.ar.core.Pose;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+import org.openbot.vehicle.Control;
+
+/**
+ * Fixed-size 2D occupancy grid of the floor around the robot, built from ARCore depth images. The
+ * grid covers a square window in world coordinates (x, z) that moves along with the robot; cells
+ * that leave the window are cleared, so memory does not grow with the distance driven.
+ *
+ * <p>Depth frames are integrated on a background thread. For every few image columns, the nearest
+ * obstacle is marked as occupied and the cells up to it as free. Points more than {@link
+ * #FLOOR_BELOW_CAMERA} below the camera are floor and only mark free space. After each update the
+ * free distance ahead of the robot is computed, so the navigation loop can read it with {@link
+ * #getClearance()} in constant time and slow down or stop with {@link #limit(Control)}.
+ */
+public class OccupancyGrid {
+  // 128 x 128 cells of 5 cm, i.e. a 6.4 m window
+  private static final int SIZE = 128;
+  private static final float CELL_SIZE = 0.05f;
+  // Depth pixels used, in both directions
+  private static final int PIXEL_STRIDE = 4;
+  private static final float MAX_DEPTH = 4.0f;
+  // Height band relative to the camera in which points are obstacles
+  private static final float FLOOR_BELOW_CAMERA = 0.08f;
+  private static final float OBSTACLE_ABOVE_CAMERA = 0.5f;
+  // Log odds per observation and their limits
+  private static final int HIT = 12;
+  private static final int MISS = -4;
+  private static final int MIN_LOG_ODDS = -40;
+  private static final int MAX_LOG_ODDS = 60;
+  private static final int OCCUPIED = 20;
+  // Width of the corridor ahead of the robot that must be free
+  private static final float ROBOT_HALF_WIDTH = 0.15f;
+  // Commands are scaled down below SLOW_CLEARANCE and forward motion is stopped below
+  // STOP_CLEARANCE. Turning is always allowed, so the policy can steer away from obstacles.
+  private static final float STOP_CLEARANCE = 0.25f;
+  private static final float SLOW_CLEARANCE = 0.8f;
+  // A clearance older than this is unknown, e.g. when depth is not available.
+  private static final long MAX_CLEARANCE_AGE_MS = 500;
+
+  private final byte[] logOdds = new byte[SIZE * SIZE];
+  private final HandlerThread thread;
+  private final Handler handler;
+  private final AtomicReference<Update> pendingUpdate = new AtomicReference<>();
+  // World cell at the lower corner of the window
+  private volatile int originX;
+  private volatile int originZ;
+  private boolean hasOrigin = false;
+  private volatile float clearance = Float.POSITIVE_INFINITY;
+  private volatile long clearanceTime = 0;
+  // Reused on the update thread
+  private final float[] cameraPoint = new float[3];
+  private final float[] worldPoint = new float[3];
+
+  public OccupancyGrid() {
+    thread = new HandlerThread("Occupancy Grid");
+    thread.start();
+    handler = new Handler(thread.getLooper());
+  }
+
+  /**
+   * Queues a depth frame for integration. Only the newest frame is kept if the grid is still busy;
+   * the frame is released once it was integrated or replaced.
+   *
+   * @param cameraPose pose of the physical camera when the depth image was taken
+   * @param intrinsics intrinsics of the camera image the depth image is aligned with
+   */
+  public void submit(DepthFrame depth, Pose cameraPose, CameraIntrinsics intrinsics) {
+    Update replaced = pendingUpdate.getAndSet(new Update(depth, cameraPose, intrinsics));
+    if (replaced == null) {
+      handler.post(this::processUpdate);
+    } else {
+      replaced.depth.release();
+    }
+  }
+
+  /** @return whether another depth frame would be integrated right away */
+  public boolean isIdle() {
+    return pendingUpdate.get() == null;
+  }
+
+  /**
+   * @return the free distance in meters ahead of the robot as of the last integrated depth frame,
+   *     or {@link Float#POSITIVE_INFINITY} if it is unknown
+   */
+  public float getClearance() {
+    if (SystemClock.uptimeMillis() - clearanceTime > MAX_CLEARANCE_AGE_MS) {
+      return Float.POSITIVE_INFINITY;
+    }
+    return clearance;
+  }
+
+  /** @return whether the cell at the world position (x, z) is known to be occupied */
+  public boolean isOccupied(float x, float z) {
+    int cellX = toCell(x);
+    int cellZ = toCell(z);
+    return isInWindow(cellX, cellZ) && logOdds[index(cellX, cellZ)] > OCCUPIED;
+  }
+
+  /**
+   * Slows down forward motion when an obstacle is close ahead and stops it in front of one. The
+   * turning part of the command is kept.
+   */
+  public Control limit(Control control) {
+    float clearance = getClearance();
+    if (clearance >= SLOW_CLEARANCE) {
+      return control;
+    }
+    float forward = (control.getLeft() + control.getRight()) / 2;
+    float turn = (control.getLeft() - control.getRight()) / 2;
+    if (forward > 0) {
+      forward *= Math.max(0, (clearance - STOP_CLEARANCE) / (SLOW_CLEARANCE - STOP_CLEARANCE));
+    }
+    return new Control(forward + turn, forward - turn);
+  }
+
+  /** Forgets all cells, e.g. when a new session starts. */
+  public void clear() {
+    handler.post(
+        () -> {
+          Arrays.fill(logOdds, (byte) 0);
+          hasOrigin = false;
+          clearance = Float.POSITIVE_INFINITY;
+          clearanceTime = 0;
+        });
+  }
+
+  public void close() {
+    Update pending = pendingUpdate.getAndSet(null);
+    if (pending != null) {
+      pending.depth.release();
+    }
+    thread.quitSafely();
+  }
+
+  private void processUpdate() {
+    Update update = pendingUpdate.getAndSet(null);
+    if (update == null) {
+      return;
+    }
+    try {
+      integrate(update.depth, update.pose, update.intrinsics);
+    } finally {
+      update.depth.release();
+    }
+    clearance = computeClearance(update.pose);
+    clearanceTime = SystemClock.uptimeMillis();
+  }
+
+  private void integrate(DepthFrame depth, Pose pose, CameraIntrinsics intrinsics) {
+    float cameraX = pose.tx();
+    float cameraY = pose.ty();
+    float cameraZ = pose.tz();
+    moveWindow(toCell(cameraX), toCell(cameraZ));
+
+    // The depth image is aligned with the camera image, but smaller.
+    float scale = (float) depth.getWidth() / intrinsics.getSize().getWidth();
+    float fx = intrinsics.getFocalLength().x * scale;
+    float fy = intrinsics.getFocalLength().y * scale;
+    float cx = intrinsics.getPrincipalPoint().x * scale;
+    float cy = intrinsics.getPrincipalPoint().y * scale;
+
+    for (int col = PIXEL_STRIDE / 2; col < depth.getWidth(); col += PIXEL_STRIDE) {
+      float obstacleDistance = Float.POSITIVE_INFINITY;
+      float obstacleX = 0;
+      float obstacleZ = 0;
+      float floorDistance = 0;
+      float floorX = 0;
+      float floorZ = 0;
+      for (int row = PIXEL_STRIDE / 2; row < depth.getHeight(); row += PIXEL_STRIDE) {
+        float d = (depth.getPixelValue(row, col) & 0xffff) / 1000.f;
+        if (d <= 0 || d > MAX_DEPTH) {
+          continue;
+        }
+        // ARCore camera frame: x right, y up, looking along -z
+        cameraPoint[0] = (col - cx) / fx * d;
+        cameraPoint[1] = -(row - cy) / fy * d;
+        cameraPoint[2] = -d;
+        pose.transformPoint(cameraPoint, 0, worldPoint, 0);
+
+        float height = worldPoint[1] - cameraY;
+        float dx = worldPoint[0] - cameraX;
+        float dz = worldPoint[2] - cameraZ;
+        float distance = (float) Math.sqrt(dx * dx + dz * dz);
+        if (height < -FLOOR_BELOW_CAMERA) {
+          if (distance > floorDistance) {
+            floorDistance = distance;
+            floorX = worldPoint[0];
+            floorZ = worldPoint[2];
+          }
+        } else if (height < OBSTACLE_ABOVE_CAMERA && distance < obstacleDistance) {
+          obstacleDistance = distance;
+          obstacleX = worldPoint[0];
+          obstacleZ = worldPoint[2];
+        }
+      }
+
+      if (obstacleDistance < Float.POSITIVE_INFINITY) {
+        traceRay(cameraX, cameraZ, obstacleX, obstacleZ, true);
+      } else if (floorDistance > 0) {
+        traceRay(cameraX, cameraZ, floorX, floorZ, false);
+      }
+    }
+  }
+
+  /** Marks the cells from the camera to the end point as free, and the end point as occupied. */
+  private void traceRay(float fromX, float fromZ, float toX, float toZ, boolean hit) {
+    int x = toCell(fromX);
+    int z = toCell(fromZ);
+    int endX = toCell(toX);
+    int endZ = toCell(toZ);
+    int dx = Math.abs(endX - x);
+    int dz = -Math.abs(endZ - z);
+    int stepX = x < endX ? 1 : -1;
+    int stepZ = z < endZ ? 1 : -1;
+    int error = dx + dz;
+    while (x != endX || z != endZ) {
+      addLogOdds(x, z, MISS);
+      int error2 = 2 * error;
+      if (error2 >= dz) {
+        error += dz;
+        x += stepX;
+      }
+      if (error2 <= dx) {
+        error += dx;
+        z += stepZ;
+      }
+    }
+    addLogOdds(endX, endZ, hit ? HIT : MISS);
+  }
+
+  private void addLogOdds(int cellX, int cellZ, int delta) {
+    if (!isInWindow(cellX, cellZ)) {
+      return;
+    }
+    int i = index(cellX, cellZ);
+    logOdds[i] = (byte) Math.max(MIN_LOG_ODDS, Math.min(MAX_LOG_ODDS, logOdds[i] + delta));
+  }
+
+  /**
+   * Centers the window on the given cell. The array is indexed modulo its size, so moving the
+   * window only clears the rows and columns that come into view.
+   */
+  private void moveWindow(int centerX, int centerZ) {
+    int newOriginX = centerX - SIZE / 2;
+    int newOriginZ = centerZ - SIZE / 2;
+    if (!hasOrigin
+        || Math.abs(newOriginX - originX) >= SIZE
+        || Math.abs(newOriginZ - originZ) >= SIZE) {
+      Arrays.fill(logOdds, (byte) 0);
+    } else {
+      for (int x = Math.min(originX, newOriginX); x < Math.max(originX, newOriginX); x++) {
+        // Columns that leave the window are reused for the ones that come into view.
+        int column = Math.floorMod(x, SIZE);
+        for (int row = 0; row < SIZE; row++) {
+          logOdds[row * SIZE + column] = 0;
+        }
+      }
+      for (int z = Math.min(originZ, newOriginZ); z < Math.max(originZ, newOriginZ); z++) {
+        int row = Math.floorMod(z, SIZE);
+        Arrays.fill(logOdds, row * SIZE, (row + 1) * SIZE, (byte) 0);
+      }
+    }
+    originX = newOriginX;
+    originZ = newOriginZ;
+    hasOrigin = true;
+  }
+
+  /**
+   * Walks along the corridor ahead of the robot, as wide as the robot, up to the first occupied
+   * cell. The robot drives towards the viewing direction of the camera.
+   */
+  private float computeClearance(Pose pose) {
+    float[] zAxis = pose.getZAxis();
+    float forwardX = -zAxis[0];
+    float forwardZ = -zAxis[2];
+    float norm = (float) Math.sqrt(forwardX * forwardX + forwardZ * forwardZ);
+    if (norm < 1e-3f) {
+      // Camera looking straight up or down
+      return Float.POSITIVE_INFINITY;
+    }
+    forwardX /= norm;
+    forwardZ /= norm;
+
+    for (float s = CELL_SIZE; s <= MAX_DEPTH; s += CELL_SIZE / 2) {
+      for (float l = -ROBOT_HALF_WIDTH; l <= ROBOT_HALF_WIDTH; l += CELL_SIZE / 2) {
+        float x = pose.tx() + forwardX * s - forwardZ * l;
+        float z = pose.tz() + forwardZ * s + forwardX * l;
+        if (isOccupied(x, z)) {
+          return s;
+        }
+      }
+    }
+    return Float.POSITIVE_INFINITY;
+  }
+
+  private boolean isInWindow(int cellX, int cellZ) {
+    int x = cellX - originX;
+    int z = cellZ - originZ;
+    return x >= 0 && x < SIZE && z >= 0 && z < SIZE;
+  }
+
+  private static int toCell(float coordinate) {
+    return (int) Math.floor(coordinate / CELL_SIZE);
+  }
+
+  private static int index(int cellX, int cellZ) {
+    return Math.floorMod(cellZ, SIZE) * SIZE + Math.floorMod(cellX, SIZE);
+  }
+
+  private static class Update {
+    final DepthFrame depth;
+    final Pose pose;
+    final CameraIntrinsics intrinsics;
+
+    Update(DepthFrame depth, Pose pose, CameraIntrinsics intrinsics) {
+      this.depth = depth;
+      this.pose = pose;
+      this.intrinsics = intrinsics;
+    }
+  }
+}
@@ -26,6 +26,7 @@ import java.io.IOException;
 import org.openbot.R;
 import org.openbot.common.ControlsFragment;
 import org.openbot.databinding.FragmentPointGoalNavigationBinding;
+import org.openbot.env.ImageUtils;
 import org.openbot.main.MainViewModel;
 import org.openbot.tflite.Model;
 import org.openbot.tflite.Model.CLASS;
@@ -34,6 +35,7 @@ import org.openbot.tflite.Model.TYPE;
 import org.openbot.tflite.Navigation;
 import org.openbot.tflite.Network.Device;
 import org.openbot.utils.Constants;
+import org.openbot.utils.Enums;
 import org.openbot.utils.PermissionUtils;
 import org.openbot.vehicle.Control;
 import org.openbot.vehicle.Vehicle;
@@ -46,10 +48,24 @@ public class PointGoalNavigationFragment extends ControlsFragment implements ArC
   private Handler handlerMain;
   private ArCore arCore;
   private FragmentPointGoalNavigationBinding binding;
-  private boolean isRunning = false;
+  // Read by onArCoreUpdate on the ArCore processing thread
+  private volatile boolean isRunning = false;
+  // Serializes commands from the processing thread with stopping the robot, so no command of a
+  // frame that was already being processed reaches the vehicle after it was stopped.
+  private final Object runLock = new Object();
   private boolean isPermissionRequested = false;
-  private Navigation navigationPolicy;
-  static final int kMaxChannelValue = 262143;
+  private volatile Navigation navigationPolicy;
+  // Stops the robot in front of obstacles seen in the ARCore depth images
+  private OccupancyGrid occupancyGrid;
+  // Camera poses of the recent frames, bridging short tracking losses with wheel odometry
+  private PoseHistory poseHistory;
+  // The navigation policy sees a 160x90 crop of the 640x480 frame scaled to 213x160.
+  public static final float POLICY_RESIZE_FACTOR = 160.f / 480.f;
+  public static final int POLICY_CROP_TOP = 30;
+  public static final int POLICY_INPUT_WIDTH = 160;
+  public static final int POLICY_INPUT_HEIGHT = 90;
+  // Only used on the ArCore processing thread
+  private final int[] policyInput = new int[POLICY_INPUT_WIDTH * POLICY_INPUT_HEIGHT];
 
   public PointGoalNavigationFragment() {
     // Required empty public constructor
@@ -87,6 +103,12 @@ public class PointGoalNavigationFragment extends ControlsFragment implements ArC
     handlerMain = new Handler(Looper.getMainLooper());
 
     arCore = new ArCore(requireContext(), binding.surfaceView, handlerMain);
+    arCore.setGpuPolicyInput(preferencesManager.getGpuPolicyInput());
+    arCore.setPreviewMode(Enums.ArPreview.values()[preferencesManager.getArPreview()]);
+    occupancyGrid = new OccupancyGrid();
+    arCore.setOccupancyGrid(occupancyGrid);
+    poseHistory = new PoseHistory(vehicle);
+    arCore.setPoseHistory(poseHistory);
 
     showStartDialog();
   }
@@ -102,76 +124,83 @@ public class PointGoalNavigationFragment extends ControlsFragment implements ArC
           computeDistance(navigationPoses.getTargetPose(), navigationPoses.getCurrentPose());
 
       if (goalDistance < 0.15f) {
-        stop();
-        audioPlayer.playFromStringID(R.string.goal_reached);
-        showInfoDialog(getString(R.string.goal_reached));
+        if (!stop()) return;
+        handlerMain.post(
+            () -> {
+              audioPlayer.playFromStringID(R.string.goal_reached);
+              showInfoDialog(getString(R.string.goal_reached));
+            });
       } else {
         float deltaYaw =
             computeDeltaYaw(navigationPoses.getCurrentPose(), navigationPoses.getTargetPose());
 
-        Bitmap bitmap = convertRGBFrameToScaledBitmap(rgb, 160.f / 480.f);
-        bitmap = Bitmap.createBitmap(bitmap, 0, 30, 160, 90);
+        convertFrameToPolicyInput(rgb, policyInput);
 
         Control control =
             navigationPolicy.recognizeImage(
-                bitmap, goalDistance, (float) Math.sin(deltaYaw), (float) Math.cos(deltaYaw));
+                policyInput, goalDistance, (float) Math.sin(deltaYaw), (float) Math.cos(deltaYaw));
 
         Timber.d("control: (" + control.getLeft() + ", " + control.getRight() + ")");
-        vehicle.setControl(control);
+        synchronized (runLock) {
+          if (isRunning) vehicle.setPolicyControl(occupancyGrid.limit(control));
+        }
       }
     }
   }
 
+  /**
+   * Converts the part of the frame the policy sees: the frame scaled by {@link
+   * #POLICY_RESIZE_FACTOR} and cropped to the policy input size at row {@link #POLICY_CROP_TOP}.
+   * Only these pixels are converted, straight from the YUV planes. Frames that were rendered on the
+   * GPU (see {@link ArCore#setGpuPolicyInput}) already hold exactly these pixels.
+   */
+  public static void convertFrameToPolicyInput(ImageFrame frame, int[] out) {
+    if (frame.hasPixels()) {
+      System.arraycopy(frame.getPixels(), 0, out, 0, POLICY_INPUT_WIDTH * POLICY_INPUT_HEIGHT);
+      return;
+    }
+    ImageUtils.convertYUV420ToARGB8888ScaledCrop(
+        frame.getYuvBytes()[0],
+        frame.getYuvBytes()[1],
+        frame.getYuvBytes()[2],
+        frame.getWidth(),
+        frame.getHeight(),
+        frame.getYRowStride(),
+        frame.getUvRowStride(),
+        frame.getUvPixelStride(),
+        POLICY_RESIZE_FACTOR,
+        0,
+        POLICY_CROP_TOP,
+        POLICY_INPUT_WIDTH,
+        POLICY_INPUT_HEIGHT,
+        out);
+  }
+
+  /** Converts the frame scaled by the resize factor, converting only the pixels of the result. */
   public static Bitmap convertRGBFrameToScaledBitmap(ImageFrame bImg, float resizeFactor) {
-    int previewHeight = bImg.getHeight();
-    int previewWidth = bImg.getWidth();
-    if (bImg == null || previewHeight == 0 || previewWidth == 0 || resizeFactor < 0) {
+    if (bImg == null || bImg.getHeight() == 0 || bImg.getWidth() == 0 || resizeFactor <= 0) {
       throw new IllegalArgumentException();
     }
 
-    int width = (int) (resizeFactor * previewWidth);
-    int height = (int) (resizeFactor * previewHeight);
-
-    Bitmap rgbFrameBitmap =
-        Bitmap.createBitmap(previewWidth, previewHeight, Bitmap.Config.ARGB_8888);
-    int[] rgbBytes = new int[previewWidth * previewHeight];
-
-    convertYUV420ToARGB8888(
+    int width = (int) (resizeFactor * bImg.getWidth());
+    int height = (int) (resizeFactor * bImg.getHeight());
+    int[] rgbBytes = new int[width * height];
+    ImageUtils.convertYUV420ToARGB8888ScaledCrop(
         bImg.getYuvBytes()[0],
         bImg.getYuvBytes()[1],
         bImg.getYuvBytes()[2],
-        previewWidth,
-        previewHeight,
+        bImg.getWidth(),
+        bImg.getHeight(),
         bImg.getYRowStride(),
         bImg.getUvRowStride(),
         bImg.getUvPixelStride(),
+        resizeFactor,
+        0,
+        0,
+        width,
+        height,
         rgbBytes);
-
-    rgbFrameBitmap.setPixels(rgbBytes, 0, previewWidth, 0, 0, previewWidth, previewHeight);
-    return Bitmap.createScaledBitmap(rgbFrameBitmap, width, height, true);
-  }
-
-  public static void convertYUV420ToARGB8888(
-      byte[] yData,
-      byte[] uData,
-      byte[] vData,
-      int width,
-      int height,
-      int yRowStride,
-      int uvRowStride,
-      int uvPixelStride,
-      int[] out) {
-    int yp = 0;
-    for (int j = 0; j < height; j++) {
-      int pY = yRowStride * j;
-      int pUV = uvRowStride * (j >> 1);
-
-      for (int i = 0; i < width; i++) {
-        int uv_offset = pUV + (i >> 1) * uvPixelStride;
-
-        out[yp++] = YUV2RGB(0xff & yData[pY + i], 0xff & uData[uv_offset], 0xff & vData[uv_offset]);
-      }
-    }
+    return Bitmap.createBitmap(rgbBytes, width, height, Bitmap.Config.ARGB_8888);
   }
 
   public static float computeDeltaYaw(Pose pose, Pose goalPose) {
@@ -195,34 +224,9 @@ public class PointGoalNavigationFragment extends ControlsFragment implements ArC
     return (float) yaw;
   }
 
-  private static int YUV2RGB(int y, int u, int v) {
-    // Adjust and check YUV values
-    y = Math.max((y - 16), 0);
-    u -= 128;
-    v -= 128;
-
-    // This is the floating point equivalent. We do the conversion in integer
-    // because some Android devices do not have floating point in hardware.
-    // nR = (int)(1.164 * nY + 2.018 * nU);
-    // nG = (int)(1.164 * nY - 0.813 * nV - 0.391 * nU);
-    // nB = (int)(1.164 * nY + 1.596 * nV);
-    int y1192 = 1192 * y;
-    int r = (y1192 + 1634 * v);
-    int g = (y1192 - 833 * v - 400 * u);
-    int b = (y1192 + 2066 * u);
-
-    // Clipping RGB values to be inside boundaries [ 0 , kMaxChannelValue ]
-    r = r > kMaxChannelValue ? kMaxChannelValue : (Math.max(r, 0));
-    g = g > kMaxChannelValue ? kMaxChannelValue : (Math.max(g, 0));
-    b = b > kMaxChannelValue ? kMaxChannelValue : (Math.max(b, 0));
-
-    return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
-  }
-
   @Override
   public void onArCoreTrackingFailure(long timestamp, TrackingFailureReason trackingFailureReason) {
-    if (isRunning) {
-      stop();
+    if (stop()) {
       audioPlayer.playFromStringID(R.string.tracking_lost);
       showInfoDialog(getString(R.string.tracking_lost));
     }
@@ -230,15 +234,24 @@ public class PointGoalNavigationFragment extends ControlsFragment implements ArC
 
   @Override
   public void onArCoreSessionPaused(long timestamp) {
-    if (isRunning) stop();
+    stop();
     audioPlayer.playFromStringID(R.string.ar_core_session_paused);
     showInfoDialog(getString(R.string.ar_core_session_paused));
   }
 
-  private void stop() {
-    arCore.detachAnchors();
-    vehicle.stopBot();
-    isRunning = false;
+  /**
+   * Stops the robot if it is navigating. Called from the main and the ArCore processing thread.
+   *
+   * @return whether the robot was navigating
+   */
+  private boolean stop() {
+    synchronized (runLock) {
+      if (!isRunning) return false;
+      isRunning = false;
+      arCore.detachAnchors();
+      vehicle.stopBot();
+      return true;
+    }
   }
 
   private static float computeDistance(Pose goalPose, Pose robotPose) {
@@ -274,6 +287,8 @@ public class PointGoalNavigationFragment extends ControlsFragment implements ArC
     super.onStop();
 
     arCore.removeArCoreListener();
+    // A frame may still be processed; it must not move the robot anymore.
+    stop();
   }
 
   @Override
@@ -287,6 +302,11 @@ public class PointGoalNavigationFragment extends ControlsFragment implements ArC
     super.onDestroy();
 
     arCore.closeSession();
+    // limit() is only called under the lock while running, so the grid is not in use.
+    synchronized (runLock) {
+      isRunning = false;
+      occupancyGrid.close();
+    }
   }
 
   private void resume() {
@@ -452,6 +472,8 @@ public class PointGoalNavigationFragment extends ControlsFragment implements ArC
       return;
     }
 
-    isRunning = true;
+    synchronized (runLock) {
+      isRunning = true;
+    }
   }
 }
@@ -0,0 +1,21 @@
+package org.openbot.pointGoalNavigation;
+
+/** A frame whose buffers are reused through a {@link FramePool}. */
+public abstract class PooledFrame {
+
+  private FramePool<?> pool;
+
+  void setPool(FramePool<?> pool) {
+    this.pool = pool;
+  }
+
+  /**
+   * Returns the frame to its pool, so its buffers are filled with a later frame. The frame must not
+   * be used afterwards. Frames that do not belong to a pool are left to the garbage collector.
+   */
+  public void release() {
+    if (pool != null) {
+      pool.recycle(this);
+    }
+  }
+}
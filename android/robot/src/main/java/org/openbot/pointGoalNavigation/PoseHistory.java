@@ -0,0 +1,180 @@
+package org.openbot.pointGoalNavigation;
+
+import com.google.ar.core.Pose;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.openbot.vehicle.Vehicle;
+
+/**
+ * Ring buffer of the recent camera poses, so the pose at the capture time of any frame or sensor
+ * sample can be looked up. Timestamps are {@link android.os.SystemClock#elapsedRealtimeNanos()}.
+ *
+ * <p>Poses come from ARCore while it is tracking. When tracking is lost, the last pose is carried
+ * forward with the wheel odometry of the vehicle for up to {@link #MAX_ODOMETRY_NS}, so short
+ * losses can be bridged. The buffer has a single writer (the ARCore render thread). Samples are
+ * immutable and published through an atomic array, so readers never lock and never see a sample
+ * that is only partly written.
+ */
+public class PoseHistory {
+  private static final int CAPACITY = 256;
+  private static final long MAX_ODOMETRY_NS = 2_000_000_000L;
+  // A lookup after the last sample returns it if it is at most this old
+  private static final long MAX_EXTRAPOLATION_NS = 100_000_000L;
+
+  // Approximate geometry of the OpenBot DIY body
+  private static final float DEFAULT_WHEEL_DIAMETER = 0.065f;
+  private static final float DEFAULT_WHEEL_TRACK = 0.16f;
+
+  private final Vehicle vehicle;
+  private final float wheelDiameter;
+  private final float wheelTrack;
+  private final AtomicReferenceArray<Sample> samples = new AtomicReferenceArray<>(CAPACITY);
+  // Number of samples written so far; only the writer changes it
+  private volatile long count = 0;
+  private long lastTrackedTimestamp = 0;
+
+  public PoseHistory(Vehicle vehicle) {
+    this(vehicle, DEFAULT_WHEEL_DIAMETER, DEFAULT_WHEEL_TRACK);
+  }
+
+  /**
+   * @param wheelDiameter in meters
+   * @param wheelTrack distance between the left and right wheels in meters
+   */
+  public PoseHistory(Vehicle vehicle, float wheelDiameter, float wheelTrack) {
+    this.vehicle = vehicle;
+    this.wheelDiameter = wheelDiameter;
+    this.wheelTrack = wheelTrack;
+  }
+
+  /** Adds a pose ARCore is tracking. Must only be called from the writer thread. */
+  public void addTrackedPose(long timestamp, Pose pose) {
+    lastTrackedTimestamp = timestamp;
+    write(new Sample(timestamp, pose, false));
+  }
+
+  /**
+   * Carries the last pose forward with the wheel odometry while ARCore is not tracking. Must only
+   * be called from the writer thread.
+   *
+   * @return the estimated pose, or null if there is no recent tracked pose or no wheel odometry
+   */
+  public Pose addOdometryPose(long timestamp) {
+    Sample last = getNewest();
+    if (last == null
+        || lastTrackedTimestamp == 0
+        || timestamp - lastTrackedTimestamp > MAX_ODOMETRY_NS
+        || !(vehicle.isHasWheelOdometryFront() || vehicle.isHasWheelOdometryBack())) {
+      return null;
+    }
+    float dt = (timestamp - last.timestamp) / 1e9f;
+    if (dt <= 0) {
+      return null;
+    }
+
+    // Wheel speeds in m/s
+    float metersPerRevolution = (float) Math.PI * wheelDiameter;
+    float left = vehicle.getLeftWheelRpm() / 60 * metersPerRevolution;
+    float right = vehicle.getRightWheelRpm() / 60 * metersPerRevolution;
+    float distance = (left + right) / 2 * dt;
+    // Counterclockwise seen from above is a positive rotation around the world y axis.
+    float yaw = (right - left) / wheelTrack * dt;
+
+    // The robot drives towards the viewing direction (-z) of the camera, projected on the floor.
+    float[] zAxis = last.pose.getZAxis();
+    float norm = (float) Math.sqrt(zAxis[0] * zAxis[0] + zAxis[2] * zAxis[2]);
+    float dx = norm > 1e-3f ? -zAxis[0] / norm * distance : 0;
+    float dz = norm > 1e-3f ? -zAxis[2] / norm * distance : 0;
+    Pose pose =
+        Pose.makeTranslation(last.pose.tx() + dx, last.pose.ty(), last.pose.tz() + dz)
+            .compose(Pose.makeRotation(0, (float) Math.sin(yaw / 2), 0, (float) Math.cos(yaw / 2)))
+            .compose(last.pose.extractRotation());
+    write(new Sample(timestamp, pose, true));
+    return pose;
+  }
+
+  /**
+   * Looks up the pose at the given time, interpolated between the samples around it.
+   *
+   * @return the pose, or null if the time is not covered by the history
+   */
+  public Pose getPose(long timestamp) {
+    Sample[] around = findSamples(timestamp);
+    if (around == null) {
+      return null;
+    }
+    Sample previous = around[0];
+    Sample next = around[1];
+    if (next == null) {
+      return timestamp - previous.timestamp <= MAX_EXTRAPOLATION_NS ? previous.pose : null;
+    }
+    if (previous.timestamp == next.timestamp) {
+      return next.pose;
+    }
+    float t = (float) (timestamp - previous.timestamp) / (next.timestamp - previous.timestamp);
+    return Pose.makeInterpolated(previous.pose, next.pose, t);
+  }
+
+  /** @return whether the pose at the given time was estimated from wheel odometry */
+  public boolean isFromOdometry(long timestamp) {
+    Sample[] around = findSamples(timestamp);
+    return around != null && around[0].fromOdometry;
+  }
+
+  /**
+   * @return the last sample at or before the timestamp and the first one after it (null if there
+   *     is none), or null if the timestamp is older than the history
+   */
+  private Sample[] findSamples(long timestamp) {
+    long n = count;
+    // The oldest slot may be overwritten meanwhile, so it is not used.
+    long low = Math.max(0, n - CAPACITY + 1);
+    long high = n - 1;
+    if (high < low) {
+      return null;
+    }
+    Sample newest = get(high);
+    if (timestamp >= newest.timestamp) {
+      return new Sample[] {newest, null};
+    }
+    // Binary search for the first sample after the timestamp
+    while (low < high) {
+      long mid = (low + high) >>> 1;
+      if (get(mid).timestamp <= timestamp) {
+        low = mid + 1;
+      } else {
+        high = mid;
+      }
+    }
+    if (low == Math.max(0, n - CAPACITY + 1)) {
+      return null;
+    }
+    return new Sample[] {get(low - 1), get(low)};
+  }
+
+  private Sample getNewest() {
+    long n = count;
+    return n == 0 ? null : get(n - 1);
+  }
+
+  private Sample get(long index) {
+    return samples.get((int) (index % CAPACITY));
+  }
+
+  private void write(Sample sample) {
+    long n = count;
+    samples.set((int) (n % CAPACITY), sample);
+    count = n + 1;
+  }
+
+  private static class Sample {
+    final long timestamp;
+    final Pose pose;
+    final boolean fromOdometry;
+
+    Sample(long timestamp, Pose pose, boolean fromOdometry) {
+      this.timestamp = timestamp;
+      this.pose = pose;
+      this.fromOdometry = fromOdometry;
+    }
+  }
+}
@@ -124,6 +124,24 @@ public class BackgroundRenderer {
    * @param frame The current {@code Frame} as returned by {@link Session#update()}.
    */
   public void draw(@NonNull Frame frame) {
+    updateDisplayGeometry(frame);
+
+    if (frame.getTimestamp() == 0 && suppressTimestampZeroRendering) {
+      // Suppress rendering if the camera did not produce the first frame yet. This is to avoid
+      // drawing possible leftover data from previous sessions if the texture is reused.
+      return;
+    }
+
+    draw();
+  }
+
+  /**
+   * Updates the texture coordinates if the display geometry changed. Must be called for every frame
+   * that is not drawn, otherwise a change is missed.
+   *
+   * @param frame The current {@code Frame} as returned by {@link Session#update()}.
+   */
+  public void updateDisplayGeometry(@NonNull Frame frame) {
     // If display rotation changed (also includes view size change), we need to re-query the uv
     // coordinates for the screen rect, as they may have changed as well.
     if (frame.hasDisplayGeometryChanged()) {
@@ -133,14 +151,6 @@ public class BackgroundRenderer {
           Coordinates2d.TEXTURE_NORMALIZED,
           quadTexCoords);
     }
-
-    if (frame.getTimestamp() == 0 && suppressTimestampZeroRendering) {
-      // Suppress rendering if the camera did not produce the first frame yet. This is to avoid
-      // drawing possible leftover data from previous sessions if the texture is reused.
-      return;
-    }
-
-    draw();
   }
 
   /**
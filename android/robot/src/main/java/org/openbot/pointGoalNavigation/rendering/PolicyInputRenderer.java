@@ -0,0 +1,206 @@
+package org.openbot.pointGoalNavigation.rendering;
+
+import android.content.Context;
+import android.opengl.GLES11Ext;
+import android.opengl.GLES20;
+import com.google.ar.core.Coordinates2d;
+import com.google.ar.core.Frame;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import timber.log.Timber;
+
+/**
+ * Renders the part of the camera texture that the navigation policy sees into a small offscreen
+ * framebuffer and reads it back, so the camera image does not have to be copied to the CPU and
+ * converted there. Scaling and YUV to RGB conversion are done by the GPU when sampling the texture.
+ * The crop is given in normalized coordinates of the CPU image and mapped onto the camera texture
+ * by ARCore, since the texture may have another size and aspect ratio than the CPU image.
+ */
+public class PolicyInputRenderer {
+  private static final String TAG = PolicyInputRenderer.class.getSimpleName();
+
+  // The camera texture is sampled the same way as for the background.
+  private static final String VERTEX_SHADER_NAME = "shaders/screenquad.vert";
+  private static final String FRAGMENT_SHADER_NAME = "shaders/screenquad.frag";
+
+  private static final int COORDS_PER_VERTEX = 2;
+  private static final int TEXCOORDS_PER_VERTEX = 2;
+  private static final int FLOAT_SIZE = 4;
+  private static final float[] QUAD_COORDS =
+      new float[] {
+        -1.0f, -1.0f, -1.0f, +1.0f, +1.0f, -1.0f, +1.0f, +1.0f,
+      };
+
+  private final int width;
+  private final int height;
+  private final FloatBuffer quadCoords;
+  private final FloatBuffer cropImageCoords;
+  private final FloatBuffer quadTexCoords;
+  // RGBA bytes as read by glReadPixels; little endian, so each int is ABGR.
+  private final IntBuffer pixels;
+  private final int[] savedViewport = new int[4];
+  private int program;
+  private int positionParam;
+  private int texCoordParam;
+  private int framebuffer;
+  private int renderTexture;
+  private boolean texCoordsValid = false;
+  private boolean created = false;
+
+  /**
+   * @param width width of the rendered crop in pixels
+   * @param height height of the rendered crop in pixels
+   */
+  public PolicyInputRenderer(int width, int height) {
+    this.width = width;
+    this.height = height;
+    quadCoords = allocateFloats(QUAD_COORDS.length);
+    quadCoords.put(QUAD_COORDS);
+    quadCoords.position(0);
+    cropImageCoords = allocateFloats(QUAD_COORDS.length);
+    quadTexCoords = allocateFloats(QUAD_COORDS.length);
+    pixels =
+        ByteBuffer.allocateDirect(width * height * 4)
+            .order(ByteOrder.LITTLE_ENDIAN)
+            .asIntBuffer();
+    setCrop(0, 0, 1, 1);
+  }
+
+  /**
+   * Sets the part of the CPU image to render, in normalized image coordinates (top left is 0, 0).
+   * The crop is rendered upright, so the first row read back is its top row.
+   */
+  public synchronized void setCrop(float left, float top, float right, float bottom) {
+    // The bottom of the framebuffer (first row read back) shows the top of the crop.
+    cropImageCoords.position(0);
+    cropImageCoords.put(new float[] {left, top, left, bottom, right, top, right, bottom});
+    cropImageCoords.position(0);
+    texCoordsValid = false;
+  }
+
+  /**
+   * Allocates the program and the offscreen framebuffer. Must be called on the OpenGL thread,
+   * typically in {@link android.opengl.GLSurfaceView.Renderer#onSurfaceCreated}.
+   */
+  public void createOnGlThread(Context context) throws IOException {
+    int vertexShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_VERTEX_SHADER, VERTEX_SHADER_NAME);
+    int fragmentShader =
+        ShaderUtil.loadGLShader(TAG, context, GLES20.GL_FRAGMENT_SHADER, FRAGMENT_SHADER_NAME);
+
+    program = GLES20.glCreateProgram();
+    GLES20.glAttachShader(program, vertexShader);
+    GLES20.glAttachShader(program, fragmentShader);
+    GLES20.glLinkProgram(program);
+    GLES20.glUseProgram(program);
+    positionParam = GLES20.glGetAttribLocation(program, "a_Position");
+    texCoordParam = GLES20.glGetAttribLocation(program, "a_TexCoord");
+    ShaderUtil.checkGLError(TAG, "Program creation");
+
+    int[] ids = new int[1];
+    GLES20.glGenTextures(1, ids, 0);
+    renderTexture = ids[0];
+    GLES20.glBindTexture(GLES20.GL_TEXTURE_2D, renderTexture);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MIN_FILTER, GLES20.GL_NEAREST);
+    GLES20.glTexParameteri(GLES20.GL_TEXTURE_2D, GLES20.GL_TEXTURE_MAG_FILTER, GLES20.GL_NEAREST);
+    GLES20.glTexImage2D(
+        GLES20.GL_TEXTURE_2D,
+        0,
+        GLES20.GL_RGBA,
+        width,
+        height,
+        0,
+        GLES20.GL_RGBA,
+        GLES20.GL_UNSIGNED_BYTE,
+        null);
+
+    GLES20.glGenFramebuffers(1, ids, 0);
+    framebuffer = ids[0];
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+    GLES20.glFramebufferTexture2D(
+        GLES20.GL_FRAMEBUFFER,
+        GLES20.GL_COLOR_ATTACHMENT0,
+        GLES20.GL_TEXTURE_2D,
+        renderTexture,
+        0);
+    int status = GLES20.glCheckFramebufferStatus(GLES20.GL_FRAMEBUFFER);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    ShaderUtil.checkGLError(TAG, "Framebuffer creation");
+
+    created = status == GLES20.GL_FRAMEBUFFER_COMPLETE;
+    if (!created) {
+      Timber.e("Policy input framebuffer incomplete: 0x%x", status);
+    }
+    texCoordsValid = false;
+  }
+
+  /** @return whether the framebuffer was created and {@link #draw} can be used */
+  public boolean isCreated() {
+    return created;
+  }
+
+  /**
+   * Renders the crop of the current camera image and reads it back. The viewport and framebuffer
+   * binding are restored afterwards. Blocks until the GPU has finished drawing the crop.
+   *
+   * @param frame The current {@code Frame}, after the camera texture was updated.
+   * @param cameraTextureId The texture ARCore fills with the camera image.
+   * @param out ARGB pixels of the crop, rows from top to bottom; at least width * height long.
+   */
+  public synchronized void draw(Frame frame, int cameraTextureId, int[] out) {
+    if (!texCoordsValid || frame.hasDisplayGeometryChanged()) {
+      frame.transformCoordinates2d(
+          Coordinates2d.IMAGE_NORMALIZED,
+          cropImageCoords,
+          Coordinates2d.TEXTURE_NORMALIZED,
+          quadTexCoords);
+      cropImageCoords.position(0);
+      texCoordsValid = true;
+    }
+    quadTexCoords.position(0);
+
+    GLES20.glGetIntegerv(GLES20.GL_VIEWPORT, savedViewport, 0);
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, framebuffer);
+    GLES20.glViewport(0, 0, width, height);
+    GLES20.glDisable(GLES20.GL_DEPTH_TEST);
+    GLES20.glDepthMask(false);
+
+    GLES20.glActiveTexture(GLES20.GL_TEXTURE0);
+    GLES20.glBindTexture(GLES11Ext.GL_TEXTURE_EXTERNAL_OES, cameraTextureId);
+    GLES20.glUseProgram(program);
+    GLES20.glVertexAttribPointer(
+        positionParam, COORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadCoords);
+    GLES20.glVertexAttribPointer(
+        texCoordParam, TEXCOORDS_PER_VERTEX, GLES20.GL_FLOAT, false, 0, quadTexCoords);
+    GLES20.glEnableVertexAttribArray(positionParam);
+    GLES20.glEnableVertexAttribArray(texCoordParam);
+    GLES20.glDrawArrays(GLES20.GL_TRIANGLE_STRIP, 0, 4);
+    GLES20.glDisableVertexAttribArray(positionParam);
+    GLES20.glDisableVertexAttribArray(texCoordParam);
+
+    // The only transfer from the GPU: width * height RGBA pixels.
+    pixels.position(0);
+    GLES20.glReadPixels(0, 0, width, height, GLES20.GL_RGBA, GLES20.GL_UNSIGNED_BYTE, pixels);
+
+    GLES20.glBindFramebuffer(GLES20.GL_FRAMEBUFFER, 0);
+    GLES20.glViewport(savedViewport[0], savedViewport[1], savedViewport[2], savedViewport[3]);
+    GLES20.glDepthMask(true);
+    GLES20.glEnable(GLES20.GL_DEPTH_TEST);
+    ShaderUtil.checkGLError(TAG, "PolicyInputRendererDraw");
+
+    pixels.position(0);
+    for (int i = 0; i < width * height; i++) {
+      int abgr = pixels.get(i);
+      out[i] = 0xff000000 | ((abgr & 0xff) << 16) | (abgr & 0xff00) | ((abgr >> 16) & 0xff);
+    }
+  }
+
+  private static FloatBuffer allocateFloats(int count) {
+    return ByteBuffer.allocateDirect(count * FLOAT_SIZE)
+        .order(ByteOrder.nativeOrder())
+        .asFloatBuffer();
+  }
+}
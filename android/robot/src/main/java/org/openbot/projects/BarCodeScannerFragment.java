@@ -9,7 +9,7 @@ import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
 import androidx.annotation.NonNull;
-import androidx.camera.core.ImageProxy;
+import androidx.camera.core.ImageInfo;
 import androidx.navigation.Navigation;
 import com.google.android.gms.vision.Frame;
 import com.google.android.gms.vision.barcode.Barcode;
@@ -23,7 +23,6 @@ import java.net.URL;
 import org.openbot.R;
 import org.openbot.common.CameraFragment;
 import org.openbot.databinding.FragmentBarCodeScannerBinding;
-import org.openbot.utils.BotFunctionUtils;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -146,7 +145,7 @@ public class BarCodeScannerFragment extends CameraFragment {
   protected void processUSBData(String data) {}
 
   @Override
-  protected void processFrame(Bitmap image, ImageProxy imageProxy) {
+  protected void processFrame(Bitmap image, ImageInfo imageInfo) {
     startQrDetection(image);
   }
 
@@ -281,13 +280,19 @@ public class BarCodeScannerFragment extends CameraFragment {
 
 
   /**
-   * To read google drive file contents using file id, Call a new instance of the ReadFileTask with
-   * the given file ID and a callback to handle success/failure.
+   * To read google drive file contents using file id. A project that was run before is taken from
+   * the project cache right away and refreshed in the background; otherwise call a new instance of
+   * the ReadFileTask with the given file ID and a callback to handle success/failure.
    *
    * @param fileId
    * @throws IOException
    */
   private void readFileFromDrive(String fileId) throws IOException {
+    ProjectCache projectCache = ProjectCache.getInstance(requireContext());
+    String cachedCode = projectCache.getCode(fileId, null);
+    if (cachedCode != null) {
+      onProjectRead(cachedCode);
+    }
     String APIkey = getCurrentKeyFromJson();
     URL fileUrl =
             new URL("https://www.googleapis.com/drive/v3/files/"+fileId+"?alt=media&key="+APIkey);
@@ -296,39 +301,43 @@ public class BarCodeScannerFragment extends CameraFragment {
             new ReadFileCallback() {
               @Override
               public void onFileReadSuccess(String fileContents) {
-                // If the file is read successfully, replace any bot function calls with "Android."
-                // + functionName.
-                String code = fileContents;
-                for (String fun : BotFunctionUtils.botFunctionArray) {
-                  if (code.contains(fun)) {
-                    code = code.replace(fun, "Android." + fun);
-                  }
-                }
-                // Set the finalCode to the modified code and handle the bottom sheet with a success
-                // state.
-                finalCode = code;
-                Activity activity = getActivity();
-                if (activity != null) {
-                  requireActivity()
-                      .runOnUiThread(
-                          () ->
-                              binding.qrMessage.setText(
-                                  projectName
-                                      + " file detected. Start to execute the code on your OpenBot."));
-                  handleBottomSheet(true);
+                // Compile the project (bot function calls are replaced with "Android." +
+                // functionName) and store it in the project cache. This runs on the download
+                // thread; the modified time on Drive isn't known here, so the cached one is kept
+                // if the project didn't change.
+                String code = projectCache.put(fileId, projectName, null, fileContents);
+                if (cachedCode == null) {
+                  onProjectRead(code);
+                } else if (!code.equals(cachedCode) && cachedCode.equals(finalCode)) {
+                  // The project changed since it was cached, run the new version.
+                  finalCode = code;
                 }
               }
 
               @Override
               public void onFileReadFailed(IOException e) {
                 // If an IOException occurs while reading the file, handle the bottom sheet with a
-                // failure state.
-                handleBottomSheet(false);
+                // failure state. A cached project can still be run.
+                if (cachedCode == null) handleBottomSheet(false);
               }
             })
         .execute();
   }
 
+  private void onProjectRead(String code) {
+    // Set the finalCode to the compiled code and handle the bottom sheet with a success state.
+    finalCode = code;
+    Activity activity = getActivity();
+    if (activity != null) {
+      requireActivity()
+          .runOnUiThread(
+              () ->
+                  binding.qrMessage.setText(
+                      projectName + " file detected. Start to execute the code on your OpenBot."));
+      handleBottomSheet(true);
+    }
+  }
+
   private void handleBottomSheet(boolean scanSuccess) {
     // If scanSuccess is true, expand the success bottom sheet, otherwise expand the failure bottom
     // sheet.
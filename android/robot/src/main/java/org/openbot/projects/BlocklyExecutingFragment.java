@@ -1,7 +1,7 @@
 package org.openbot.projects;
 
 import static org.openbot.pointGoalNavigation.PointGoalNavigationFragment.computeDeltaYaw;
-import static org.openbot.pointGoalNavigation.PointGoalNavigationFragment.convertRGBFrameToScaledBitmap;
+import static org.openbot.pointGoalNavigation.PointGoalNavigationFragment.convertFrameToPolicyInput;
 
 import static java.lang.Math.abs;
 
@@ -16,6 +16,7 @@ import android.os.Bundle;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
 import android.util.Log;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -25,7 +26,7 @@ import android.webkit.WebView;
 import androidx.annotation.NonNull;
 import androidx.appcompat.app.AlertDialog;
 import androidx.camera.core.CameraSelector;
-import androidx.camera.core.ImageProxy;
+import androidx.camera.core.ImageInfo;
 
 import com.google.ar.core.Pose;
 import com.google.ar.core.TrackingFailureReason;
@@ -35,11 +36,13 @@ import org.openbot.common.CameraFragment;
 import org.openbot.databinding.FragmentBlocklyExecutingBinding;
 import org.openbot.env.ImageUtils;
 import org.openbot.env.SharedPreferencesManager;
+import org.openbot.modelManagement.ModelPrefetcher;
 import org.openbot.pointGoalNavigation.ArCore;
 import org.openbot.pointGoalNavigation.ArCoreListener;
 import org.openbot.pointGoalNavigation.CameraIntrinsics;
 import org.openbot.pointGoalNavigation.ImageFrame;
 import org.openbot.pointGoalNavigation.NavigationPoses;
+import org.openbot.pointGoalNavigation.PointGoalNavigationFragment;
 import org.openbot.tflite.Autopilot;
 import org.openbot.tflite.Detector;
 import org.openbot.tflite.Model;
@@ -97,11 +100,18 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
   private boolean computingNetwork = false;
   private Handler handler;
   private ArCore arCore;
-  public static Navigation navigationPolicy;
-  public static boolean isRunning = false;
+  private CommandScheduler commandScheduler;
+  private BotFunctions botFunctions;
+  // Set by the program on the JavaBridge thread, read on the ArCore processing thread
+  public static volatile Navigation navigationPolicy;
+  public static volatile boolean isRunning = false;
+  // Serializes navigation commands with stopping the robot, see stopNavigation()
+  private static final Object runLock = new Object();
   private Matrix cropToFrameTransform;
   public static float MINIMUM_CONFIDENCE_TF_OD_API = 0.5f;
   public static TaskStorage taskStorage = new TaskStorage();
+  private final int[] policyInput =
+      new int[PointGoalNavigationFragment.POLICY_INPUT_WIDTH * PointGoalNavigationFragment.POLICY_INPUT_HEIGHT];
 
   @SuppressLint("SetJavaScriptEnabled")
   @Override
@@ -136,6 +146,8 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
     super.onViewCreated(view, savedInstanceState);
     Handler mainHandler = new Handler(Looper.getMainLooper());
     arCore = new ArCore(requireContext(), binding.GLSurfaceView, mainHandler);
+    arCore.setGpuPolicyInput(preferencesManager.getGpuPolicyInput());
+    arCore.setPreviewMode(Enums.ArPreview.values()[preferencesManager.getArPreview()]);
     arCore.setArCoreListener(this);
     binding.stopCarBtn.setOnClickListener(
             v -> {
@@ -162,6 +174,7 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
     }
 
     modelList = FileUtils.loadConfigJSONFromAsset(requireActivity());
+    prefetchProgramModels(BarCodeScannerFragment.finalCode);
 
     // Get the selected device preference from the preferences manager.
     switch (preferencesManager.getDevice()){
@@ -177,6 +190,33 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
     }
   }
 
+  /**
+   * Downloads and validates the models that the blockly program refers to by name in the
+   * background, so enabling them from a block does not stall the robot.
+   */
+  private void prefetchProgramModels(String code) {
+    if (code == null || modelList == null) return;
+    ModelPrefetcher prefetcher = ModelPrefetcher.getInstance(requireContext());
+    prefetcher.addListener(prefetchListener);
+    for (Model model : modelList) {
+      String name = FileUtils.nameWithoutExtension(model.getName());
+      if (code.contains("'" + name + "'") || code.contains("\"" + name + "\"")) {
+        prefetcher.prefetch(model);
+      }
+    }
+  }
+
+  private final ModelPrefetcher.Listener prefetchListener =
+      (model, file, result) -> {
+        if (!isAdded() || modelList == null || !modelList.contains(model)) return;
+        if (!result.valid) Timber.w("Model %s is not usable: %s", model.name, result.message);
+        if (model.pathType == Model.PATH_TYPE.URL) {
+          model.setPath(file.getPath());
+          model.setPathType(Model.PATH_TYPE.FILE);
+          FileUtils.updateModelConfig(requireActivity(), requireContext(), modelList, false);
+        }
+      };
+
   /**
    * Stops the robot and performs cleanup actions.
    * - Destroys the WebView.
@@ -184,7 +224,9 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
    */
   private void stop()
   {
+    stopCommandScheduler();
     myWebView.destroy();
+    stopNavigation();
     vehicle.stopBot();
     vehicle.setIndicator(0);
     isAutopilot=false;
@@ -194,6 +236,21 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
     isOnDetection=false;
   }
 
+  /**
+   * Drops the queued commands of the running program, so none of them moves the car again, and
+   * releases its sensors.
+   */
+  private void stopCommandScheduler() {
+    if (commandScheduler != null) {
+      commandScheduler.stop();
+      commandScheduler = null;
+    }
+    if (botFunctions != null) {
+      botFunctions.release();
+      botFunctions = null;
+    }
+  }
+
   /**
    * Transitions "Stop Car" button to "Back" text
    * and sets a listener to navigate back.
@@ -220,7 +277,7 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
 
   }
   @Override
-  protected void processFrame(Bitmap bitmap, ImageProxy imageProxy) {
+  protected void processFrame(Bitmap bitmap, ImageInfo imageInfo) {
     // Check and execute modes based on blockly block code commands.
     if (isFollow) startFollowObject(bitmap);
     if (isAutopilot) startAutopilot(bitmap);
@@ -283,7 +340,7 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
 
                 if (autopilot != null) {
                   Timber.i("Running autopilot on image %s", frameNum);
-                  vehicle.setControl(autopilot.recognizeImage(autoPilotCroppedBitmap, vehicle.getIndicator()));
+                  vehicle.setPolicyControl(autopilot.recognizeImage(autoPilotCroppedBitmap, vehicle.getIndicator()));
                 }
                 computingNetwork = false;
               });}
@@ -298,6 +355,8 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
     if (tracker == null) updateCropImageInfo();
 
     ++frameNum;
+    // The tracker filters boxes over time in ms, not over frames.
+    final long captureTime = SystemClock.elapsedRealtime();
 
     if (computingNetwork) {
       return;
@@ -341,8 +400,8 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
             //  System.out.println("confidence----->"+result.getConfidence());
             }
           }
-          tracker.trackResults(mappedRecognitions, frameNum);
-          if (isFollow) vehicle.setControl(tracker.updateTarget());
+          tracker.trackResults(mappedRecognitions, captureTime);
+          if (isFollow) vehicle.setPolicyControl(tracker.updateTarget());
           else vehicle.stopBot();
         }
 
@@ -360,6 +419,7 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
     if (tracker == null) updateCropImageInfo();
 
     ++frameNum;
+    final long captureTime = SystemClock.elapsedRealtime();
     if (computingNetwork) {
       return;
     }
@@ -394,8 +454,8 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
             }
           }
           if (tracker!=null) {
-            tracker.trackResults(mappedRecognitions, frameNum);
-            if ((startDistance >= stopDistance) && isFollowMultipleObject) vehicle.setControl(tracker.updateTarget());
+            tracker.trackResults(mappedRecognitions, captureTime);
+            if ((startDistance >= stopDistance) && isFollowMultipleObject) vehicle.setPolicyControl(tracker.updateTarget());
             else runJSCommand(getTask);
           }
         }
@@ -580,7 +640,7 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
 
               if (autopilot != null) {
                 Timber.i("Running autopilot on image %s", frameNum);
-                 if (isStartDetectorAutoPilot) vehicle.setControl(autopilot.recognizeImage(autoPilotCroppedBitmap, vehicle.getIndicator()));
+                 if (isStartDetectorAutoPilot) vehicle.setPolicyControl(autopilot.recognizeImage(autoPilotCroppedBitmap, vehicle.getIndicator()));
               }
             });}
 
@@ -627,19 +687,26 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
           () -> {
             // set the speed multiplier to maximum value (255) because openBot moving according to
             vehicle.setSpeedMultiplier(Enums.SpeedMode.FAST.getValue());
+            if (commandScheduler == null) commandScheduler = new CommandScheduler();
+            // Tasks started by the program share its bot functions.
+            if (botFunctions == null) {
+              botFunctions =
+                  new BotFunctions(
+                      vehicle,
+                      audioPlayer,
+                      sharedPreferencesManager,
+                      requireContext(),
+                      binding,
+                      requireActivity(),
+                      arCore,
+                      commandScheduler);
+            }
             // add a JavaScript interface to the web-view.
-            myWebView.addJavascriptInterface(
-                new BotFunctions(
-                    vehicle,
-                    audioPlayer,
-                    sharedPreferencesManager,
-                    requireContext(),
-                    binding,
-                    requireActivity(),
-                    arCore),
-                "Android");
-            // execute the JavaScript code in the web-view.
-            myWebView.evaluateJavascript(finalCode.replace("\n", "").replace("\r", ""), null);
+            myWebView.addJavascriptInterface(botFunctions, "Android");
+            // execute the JavaScript code in the web-view, after defining the sensor snapshot
+            // reader and the pause used by compiled projects.
+            myWebView.evaluateJavascript(
+                BotFunctions.SENSOR_SCRIPT + BotFunctions.PAUSE_SCRIPT + finalCode, null);
           });
     }
   }
@@ -653,8 +720,10 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
   @Override
   public void onPause() {
     super.onPause();
+    stopCommandScheduler();
     myWebView.destroy();
     vehicle.setIndicator(0);
+    stopNavigation();
     vehicle.stopBot();
     arCore.pause();
     isFollow = false;
@@ -673,26 +742,44 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
               computeDistance(navigationPoses.getTargetPose(), navigationPoses.getCurrentPose());
 
       if (goalDistance < 0.15f) {
-        vehicle.stopBot();
-        audioPlayer.playFromStringID(R.string.goal_reached);
+        if (!stopNavigation()) return;
+        Activity activity = getActivity();
+        if (activity != null)
+          activity.runOnUiThread(() -> audioPlayer.playFromStringID(R.string.goal_reached));
 //        showInfoDialog(getString(R.string.goal_reached));
       } else {
         float deltaYaw =
                 computeDeltaYaw(navigationPoses.getCurrentPose(), navigationPoses.getTargetPose());
 
-        Bitmap bitmap = convertRGBFrameToScaledBitmap(rgb, 160.f / 480.f);
-        bitmap = Bitmap.createBitmap(bitmap, 0, 30, 160, 90);
+        convertFrameToPolicyInput(rgb, policyInput);
 
         Control control =
                 navigationPolicy.recognizeImage(
-                        bitmap, goalDistance, (float) Math.sin(deltaYaw), (float) Math.cos(deltaYaw));
+                        policyInput, goalDistance, (float) Math.sin(deltaYaw), (float) Math.cos(deltaYaw));
 
         Timber.d("control: (" + control.getLeft() + ", " + control.getRight() + ")");
-        vehicle.setControl(control);
+        synchronized (runLock) {
+          if (isRunning) vehicle.setControl(control);
+        }
       }
     }
   }
 
+  /**
+   * Ends point goal navigation and stops the robot. Runs on the main and the ArCore processing
+   * thread; a frame that is still being processed sends no command afterwards.
+   *
+   * @return whether the robot was navigating
+   */
+  private boolean stopNavigation() {
+    synchronized (runLock) {
+      if (!isRunning) return false;
+      isRunning = false;
+      vehicle.stopBot();
+      return true;
+    }
+  }
+
   @Override
   public void onArCoreTrackingFailure(long timestamp, TrackingFailureReason trackingFailureReason) {}
 
@@ -708,6 +795,7 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
   @Override
   public void onDestroy() {
     super.onDestroy();
+    ModelPrefetcher.getInstance(requireContext()).removeListener(prefetchListener);
     arCore.closeSession();
   }
 
@@ -715,5 +803,6 @@ public class BlocklyExecutingFragment extends CameraFragment implements ArCoreLi
   public void onStop() {
     super.onStop();
     arCore.removeArCoreListener();
+    stopNavigation();
   }
 }
@@ -39,12 +39,20 @@ import timber.log.Timber;
 
 /** implement openBot functions according to block codes. */
 public class BotFunctions implements SensorEventListener {
+  // Actuators whose queued commands are replaced by newer ones, see CommandScheduler#post
+  private static final String DRIVE = "drive";
+  private static final String INDICATOR = "indicator";
+  private static final String LED = "led";
+  private static final String DISPLAY = "display";
+
   private final Vehicle vehicle;
   private final AudioPlayer audioPlayer;
   private final SharedPreferencesManager sharedPreferencesManager;
   private final FragmentBlocklyExecutingBinding binding;
   private final Activity mActivity;
   private final Context mContext;
+  private final CommandScheduler scheduler;
+  private boolean phoneSensorsRegistered = false;
   private ArCore arCore;
   private final SensorManager sensorManager;
   private final Sensor accelerometerSensor;
@@ -56,7 +64,8 @@ public class BotFunctions implements SensorEventListener {
   TextToSpeech tts;
 
   /**
-   * get vehicle and audioPlayer in parameters to control openBot commands.
+   * get vehicle and audioPlayer in parameters to control openBot commands. Commands are run by the
+   * given scheduler, which is shared by all programs of the fragment.
    *
    */
   public BotFunctions(
@@ -66,7 +75,8 @@ public class BotFunctions implements SensorEventListener {
       Context getContext,
       FragmentBlocklyExecutingBinding getBinding,
       Activity getActivity,
-      ArCore arCore) {
+      ArCore arCore,
+      CommandScheduler scheduler) {
     vehicle = getVehicle;
     audioPlayer = getAudioPlayer;
     sharedPreferencesManager = getSharedPreferencesManager;
@@ -78,46 +88,67 @@ public class BotFunctions implements SensorEventListener {
     mActivity = getActivity;
     mContext = getContext;
     this.arCore = arCore;
+    this.scheduler = scheduler;
   }
 
   /** openBot Movement functions */
   @JavascriptInterface
   public void moveForward(int speed) {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Move Forward at " + speed));
-    double speedResult = (double) speed / (double) vehicle.getSpeedMultiplier();
-    vehicle.setControl((float) speedResult, (float) speedResult);
+    scheduler.post(
+        DRIVE,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Move Forward at " + speed));
+          double speedResult = (double) speed / (double) vehicle.getSpeedMultiplier();
+          vehicle.setControl((float) speedResult, (float) speedResult);
+        });
   }
 
   @JavascriptInterface
   public void moveBackward(int speed) {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Move Backward at " + speed));
-    double speedResult = (double) speed / (double) vehicle.getSpeedMultiplier();
-    vehicle.setControl((float) -speedResult, (float) -speedResult);
+    scheduler.post(
+        DRIVE,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Move Backward at " + speed));
+          double speedResult = (double) speed / (double) vehicle.getSpeedMultiplier();
+          vehicle.setControl((float) -speedResult, (float) -speedResult);
+        });
   }
 
   @JavascriptInterface
   public void moveLeft(int speed) {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Move Left at + " + speed));
-    double speedResult = (double) speed / (double) vehicle.getSpeedMultiplier();
-    vehicle.setControl(0, (float) speedResult);
+    scheduler.post(
+        DRIVE,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Move Left at + " + speed));
+          double speedResult = (double) speed / (double) vehicle.getSpeedMultiplier();
+          vehicle.setControl(0, (float) speedResult);
+        });
   }
 
   @JavascriptInterface
   public void moveRight(int speed) {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Move Right at + " + speed));
-    double speedResult = (double) speed / (double) vehicle.getSpeedMultiplier();
-    vehicle.setControl((float) speedResult, 0);
+    scheduler.post(
+        DRIVE,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Move Right at + " + speed));
+          double speedResult = (double) speed / (double) vehicle.getSpeedMultiplier();
+          vehicle.setControl((float) speedResult, 0);
+        });
   }
 
   @JavascriptInterface
   public void moveOpenBot(int leftSpeed, int rightSpeed) {
-    mActivity.runOnUiThread(
-        () ->
-            binding.jsCommand.setText(
-                "Move Left at " + leftSpeed + " Move Right at " + rightSpeed));
-    double leftSpeedResult = (double) leftSpeed / (double) vehicle.getSpeedMultiplier();
-    double rightSpeedResult = (double) rightSpeed / (double) vehicle.getSpeedMultiplier();
-    vehicle.setControl((float) leftSpeedResult, (float) rightSpeedResult);
+    scheduler.post(
+        DRIVE,
+        () -> {
+          mActivity.runOnUiThread(
+              () ->
+                  binding.jsCommand.setText(
+                      "Move Left at " + leftSpeed + " Move Right at " + rightSpeed));
+          double leftSpeedResult = (double) leftSpeed / (double) vehicle.getSpeedMultiplier();
+          double rightSpeedResult = (double) rightSpeed / (double) vehicle.getSpeedMultiplier();
+          vehicle.setControl((float) leftSpeedResult, (float) rightSpeedResult);
+        });
   }
 
   //    @JavascriptInterface
@@ -127,33 +158,64 @@ public class BotFunctions implements SensorEventListener {
   //        vehicle.setControl(control);
   //    }
 
+  /**
+   * Waits on the JavaBridge thread. Compiled programs call {@link #schedulePause(int)} through
+   * {@link #PAUSE_SCRIPT} instead, except inside functions and detection tasks.
+   */
   @JavascriptInterface
   public void pause(int ms) {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Wait for " + ms + "ms"));
-    try {
-      synchronized (this) {
-        wait(ms); // Pauses the thread for 5 seconds
-      }
-    } catch (InterruptedException e) {
-      e.printStackTrace();
-    }
+    scheduler.post(
+        DISPLAY,
+        () -> mActivity.runOnUiThread(() -> binding.jsCommand.setText("Wait for " + ms + "ms")));
+    // The following commands run once the pause has elapsed on the program timeline.
+    scheduler.pause(ms);
+  }
+
+  /**
+   * Starts a pause on the program timeline and returns at once.
+   *
+   * @return milliseconds the program should wait before its next command
+   */
+  @JavascriptInterface
+  public int schedulePause(int ms) {
+    scheduler.post(
+        DISPLAY,
+        () -> mActivity.runOnUiThread(() -> binding.jsCommand.setText("Wait for " + ms + "ms")));
+    return (int) scheduler.schedulePause(ms);
   }
 
+  /**
+   * Defines botPause in the web-view, which compiled programs await instead of calling {@link
+   * #pause(int)}, so the JavaBridge and web-view threads are free while the program waits.
+   */
+  static final String PAUSE_SCRIPT =
+      "var botPause = window.botPause || function (ms) {"
+          + "return new Promise(function (resolve) {"
+          + "setTimeout(resolve, Android.schedulePause(ms));"
+          + "});"
+          + "};";
+
   @JavascriptInterface
   public void stopRobot() {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Stop Car Immediately"));
-    BlocklyExecutingFragment.isFollow = false;
-    vehicle.stopBot();
+    scheduler.post(
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Stop Car Immediately"));
+          BlocklyExecutingFragment.isFollow = false;
+          vehicle.stopBot();
+        });
   }
 
   @JavascriptInterface
   public void disableAI() {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Stop AI"));
-//    BlocklyExecutingFragment.tracker = null;
-    BlocklyExecutingFragment.isFollow = false;
-    BlocklyExecutingFragment.isAutopilot = false;
-    BlocklyExecutingFragment.isFollowMultipleObject = false;
-    BlocklyExecutingFragment.isStartDetectorAutoPilot = false;
+    scheduler.post(
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Stop AI"));
+          // BlocklyExecutingFragment.tracker = null;
+          BlocklyExecutingFragment.isFollow = false;
+          BlocklyExecutingFragment.isAutopilot = false;
+          BlocklyExecutingFragment.isFollowMultipleObject = false;
+          BlocklyExecutingFragment.isStartDetectorAutoPilot = false;
+        });
   }
 
   /**
@@ -162,31 +224,37 @@ public class BotFunctions implements SensorEventListener {
    */
   @JavascriptInterface
   public float sonarReading() {
+    scheduler.sync();
     return vehicle.getSonarReading();
   }
 
   @JavascriptInterface
   public float speedReading() {
+    scheduler.sync();
     return (vehicle.getLeftWheelRpm() + vehicle.getRightWheelRpm()) / 2;
   }
 
   @JavascriptInterface
   public float voltageDividerReading() {
+    scheduler.sync();
     return vehicle.getBatteryVoltage();
   }
 
   @JavascriptInterface
   public boolean frontWheelReading() {
+    scheduler.sync();
     return vehicle.isHasWheelOdometryFront();
   }
 
   @JavascriptInterface
   public boolean backWheelReading() {
+    scheduler.sync();
     return vehicle.isHasWheelOdometryBack();
   }
 
   @JavascriptInterface
   public float gyroscopeReadingX() {
+    scheduler.sync();
     sensorManager.registerListener(
         this, gyroscopeSensor, sharedPreferencesManager.getDelay() * 1000);
     return gyroscopeValues[0];
@@ -194,6 +262,7 @@ public class BotFunctions implements SensorEventListener {
 
   @JavascriptInterface
   public float gyroscopeReadingY() {
+    scheduler.sync();
     sensorManager.registerListener(
         this, gyroscopeSensor, sharedPreferencesManager.getDelay() * 1000);
     return gyroscopeValues[1];
@@ -201,6 +270,7 @@ public class BotFunctions implements SensorEventListener {
 
   @JavascriptInterface
   public float gyroscopeReadingZ() {
+    scheduler.sync();
     sensorManager.registerListener(
         this, gyroscopeSensor, sharedPreferencesManager.getDelay() * 1000);
     return gyroscopeValues[2];
@@ -208,6 +278,7 @@ public class BotFunctions implements SensorEventListener {
 
   @JavascriptInterface
   public float accelerationReadingX() {
+    scheduler.sync();
     sensorManager.registerListener(
         this, accelerometerSensor, sharedPreferencesManager.getDelay() * 1000);
     return accelerometerValues[0];
@@ -215,6 +286,7 @@ public class BotFunctions implements SensorEventListener {
 
   @JavascriptInterface
   public float accelerationReadingY() {
+    scheduler.sync();
     sensorManager.registerListener(
         this, accelerometerSensor, sharedPreferencesManager.getDelay() * 1000);
     return accelerometerValues[1];
@@ -222,6 +294,7 @@ public class BotFunctions implements SensorEventListener {
 
   @JavascriptInterface
   public float accelerationReadingZ() {
+    scheduler.sync();
     sensorManager.registerListener(
         this, accelerometerSensor, sharedPreferencesManager.getDelay() * 1000);
     return accelerometerValues[2];
@@ -229,6 +302,7 @@ public class BotFunctions implements SensorEventListener {
 
   @JavascriptInterface
   public float magneticReadingX() {
+    scheduler.sync();
     sensorManager.registerListener(
         this, magneticSensor, sharedPreferencesManager.getDelay() * 1000);
     return magneticFieldValues[0];
@@ -236,6 +310,7 @@ public class BotFunctions implements SensorEventListener {
 
   @JavascriptInterface
   public float magneticReadingY() {
+    scheduler.sync();
     sensorManager.registerListener(
         this, magneticSensor, sharedPreferencesManager.getDelay() * 1000);
     return magneticFieldValues[1];
@@ -243,11 +318,94 @@ public class BotFunctions implements SensorEventListener {
 
   @JavascriptInterface
   public float magneticReadingZ() {
+    scheduler.sync();
     sensorManager.registerListener(
         this, magneticSensor, sharedPreferencesManager.getDelay() * 1000);
     return magneticFieldValues[2];
   }
 
+  /**
+   * Sensor functions in the order of the values returned by {@link #sensorSnapshot()}. Projects are
+   * compiled to read these from a snapshot instead of calling them one by one.
+   */
+  static final String[] SNAPSHOT_SENSORS = {
+    "sonarReading",
+    "speedReading",
+    "voltageDividerReading",
+    "frontWheelReading",
+    "backWheelReading",
+    "gyroscopeReadingX",
+    "gyroscopeReadingY",
+    "gyroscopeReadingZ",
+    "accelerationReadingX",
+    "accelerationReadingY",
+    "accelerationReadingZ",
+    "magneticReadingX",
+    "magneticReadingY",
+    "magneticReadingZ"
+  };
+
+  /**
+   * Defines BotSensors in the web-view. Reading a sensor fetches all of them with one bridge call
+   * and keeps them in a typed array; reads within a few milliseconds don't cross the bridge. Values
+   * 3 and 4 (wheel odometry) are booleans.
+   */
+  static final String SENSOR_SCRIPT =
+      "var BotSensors = window.BotSensors || (function () {"
+          + "var values = null, time = 0, maxAge = 5;"
+          + "function set(snapshot) {"
+          + "var parts = snapshot.split(',');"
+          + "values = new Float64Array(parts.length);"
+          + "for (var i = 0; i < parts.length; i++) values[i] = +parts[i];"
+          + "time = Date.now();"
+          + "}"
+          + "return {"
+          + "read: function (i) {"
+          + "if (values === null || Date.now() - time > maxAge) set(Android.sensorSnapshot());"
+          + "return i === 3 || i === 4 ? values[i] !== 0 : values[i];"
+          + "}"
+          + "};"
+          + "})();";
+
+  /**
+   * Returns all values of {@link #SNAPSHOT_SENSORS} at once as comma separated numbers, after the
+   * commands queued before have run.
+   */
+  @JavascriptInterface
+  public String sensorSnapshot() {
+    scheduler.sync();
+    registerPhoneSensors();
+    return formatSnapshot();
+  }
+
+  /** Unregisters the phone sensors, once the program has ended. */
+  void release() {
+    sensorManager.unregisterListener(this);
+    phoneSensorsRegistered = false;
+  }
+
+  private synchronized void registerPhoneSensors() {
+    if (phoneSensorsRegistered) return;
+    int delay = sharedPreferencesManager.getDelay() * 1000;
+    sensorManager.registerListener(this, gyroscopeSensor, delay);
+    sensorManager.registerListener(this, accelerometerSensor, delay);
+    sensorManager.registerListener(this, magneticSensor, delay);
+    phoneSensorsRegistered = true;
+  }
+
+  private String formatSnapshot() {
+    StringBuilder snapshot = new StringBuilder(160);
+    snapshot.append(vehicle.getSonarReading()).append(',');
+    snapshot.append((vehicle.getLeftWheelRpm() + vehicle.getRightWheelRpm()) / 2).append(',');
+    snapshot.append(vehicle.getBatteryVoltage()).append(',');
+    snapshot.append(vehicle.isHasWheelOdometryFront() ? 1 : 0).append(',');
+    snapshot.append(vehicle.isHasWheelOdometryBack() ? 1 : 0);
+    for (float[] values : new float[][] {gyroscopeValues, accelerometerValues, magneticFieldValues}) {
+      for (float value : values) snapshot.append(',').append(value);
+    }
+    return snapshot.toString();
+  }
+
   @JavascriptInterface
   public void indicatorReading() {
     //    Timber.tag(TAG).d("Indicator - %s", vehicle.isHasIndicators());
@@ -256,134 +414,181 @@ public class BotFunctions implements SensorEventListener {
   /** service command to robot */
   @JavascriptInterface
   public void noiseEnable(boolean value) {
-    audioPlayer.playNoise("matthew", value);
+    scheduler.post(() -> audioPlayer.playNoise("matthew", value));
   }
 
   @JavascriptInterface
   public void playSoundSpeed(String speedMode) {
-    if (Objects.equals(speedMode, "slow")) {
-      mActivity.runOnUiThread(
-          () -> binding.jsCommand.setText("Play Sound " + speedMode + " Speed"));
-      audioPlayer.playSpeedMode("matthew", Enums.SpeedMode.SLOW);
-    } else if (Objects.equals(speedMode, "medium")) {
-      mActivity.runOnUiThread(
-          () -> binding.jsCommand.setText("Play Sound " + speedMode + " Speed"));
-      audioPlayer.playSpeedMode("matthew", Enums.SpeedMode.NORMAL);
-    } else if (Objects.equals(speedMode, "fast")) {
-      mActivity.runOnUiThread(
-          () -> binding.jsCommand.setText("Play Sound " + speedMode + " Speed"));
-      audioPlayer.playSpeedMode("matthew", Enums.SpeedMode.FAST);
-    }
+    scheduler.post(
+        () -> {
+          if (Objects.equals(speedMode, "slow")) {
+            mActivity.runOnUiThread(
+                () -> binding.jsCommand.setText("Play Sound " + speedMode + " Speed"));
+            audioPlayer.playSpeedMode("matthew", Enums.SpeedMode.SLOW);
+          } else if (Objects.equals(speedMode, "medium")) {
+            mActivity.runOnUiThread(
+                () -> binding.jsCommand.setText("Play Sound " + speedMode + " Speed"));
+            audioPlayer.playSpeedMode("matthew", Enums.SpeedMode.NORMAL);
+          } else if (Objects.equals(speedMode, "fast")) {
+            mActivity.runOnUiThread(
+                () -> binding.jsCommand.setText("Play Sound " + speedMode + " Speed"));
+            audioPlayer.playSpeedMode("matthew", Enums.SpeedMode.FAST);
+          }
+        });
   }
 
   @JavascriptInterface
   public void playSoundMode(String driveMode) {
-    if (Objects.equals(driveMode, "dual drive")) {
-      mActivity.runOnUiThread(() -> binding.jsCommand.setText("Play Sound " + driveMode + " Mode"));
-      audioPlayer.playDriveMode("matthew", Enums.DriveMode.DUAL);
-    } else if (Objects.equals(driveMode, "joystick control")) {
-      mActivity.runOnUiThread(() -> binding.jsCommand.setText("Play Sound " + driveMode + " Mode"));
-      audioPlayer.playDriveMode("matthew", Enums.DriveMode.JOYSTICK);
-    } else if (Objects.equals(driveMode, "gamepad")) {
-      mActivity.runOnUiThread(() -> binding.jsCommand.setText("Play Sound " + driveMode + " Mode"));
-      audioPlayer.playDriveMode("matthew", Enums.DriveMode.GAME);
-    }
+    scheduler.post(
+        () -> {
+          if (Objects.equals(driveMode, "dual drive")) {
+            mActivity.runOnUiThread(() -> binding.jsCommand.setText("Play Sound " + driveMode + " Mode"));
+            audioPlayer.playDriveMode("matthew", Enums.DriveMode.DUAL);
+          } else if (Objects.equals(driveMode, "joystick control")) {
+            mActivity.runOnUiThread(() -> binding.jsCommand.setText("Play Sound " + driveMode + " Mode"));
+            audioPlayer.playDriveMode("matthew", Enums.DriveMode.JOYSTICK);
+          } else if (Objects.equals(driveMode, "gamepad")) {
+            mActivity.runOnUiThread(() -> binding.jsCommand.setText("Play Sound " + driveMode + " Mode"));
+            audioPlayer.playDriveMode("matthew", Enums.DriveMode.GAME);
+          }
+        });
   }
 
   @JavascriptInterface
   public void rightIndicatorOn() {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Right Indicator On"));
-    vehicle.setIndicator(1);
+    scheduler.post(
+        INDICATOR,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Right Indicator On"));
+          vehicle.setIndicator(1);
+        });
   }
 
   @JavascriptInterface
   public void leftIndicatorOn() {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Left Indicator On"));
-    vehicle.setIndicator(-1);
+    scheduler.post(
+        INDICATOR,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Left Indicator On"));
+          vehicle.setIndicator(-1);
+        });
   }
 
   @JavascriptInterface
   public void IndicatorOff() {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Indicator Off"));
-    vehicle.setIndicator(0);
+    scheduler.post(
+        INDICATOR,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Indicator Off"));
+          vehicle.setIndicator(0);
+        });
   }
 
   @JavascriptInterface
   public void rightIndicatorOff() {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Right Indicator Off"));
-    vehicle.setIndicator(0);
+    scheduler.post(
+        INDICATOR,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Right Indicator Off"));
+          vehicle.setIndicator(0);
+        });
   }
 
   @JavascriptInterface
   public void leftIndicatorOff() {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Left Indicator Off"));
-    vehicle.setIndicator(0);
+    scheduler.post(
+        INDICATOR,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Left Indicator Off"));
+          vehicle.setIndicator(0);
+        });
   }
 
   @JavascriptInterface
   public void IndicatorOn() {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Indicator On"));
-    vehicle.setIndicator(1);
-    vehicle.setIndicator(-1);
+    scheduler.post(
+        INDICATOR,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Indicator On"));
+          vehicle.setIndicator(1);
+          vehicle.setIndicator(-1);
+        });
   }
 
 @JavascriptInterface
 public void ledBrightness(float value) {
-  mActivity.runOnUiThread(() -> binding.jsCommand.setText("Led Brightness " + value));
-  vehicle.sendLightIntensity(value / 100, value / 100);
+  scheduler.post(
+        LED,
+        () -> {
+        mActivity.runOnUiThread(() -> binding.jsCommand.setText("Led Brightness " + value));
+        vehicle.sendLightIntensity(value / 100, value / 100);
+      });
 }
 
   @JavascriptInterface
   public void toggleLed(String value) {
-    mActivity.runOnUiThread(() -> binding.jsCommand.setText("Toggle Led " + value));
-    if (Objects.equals(value, "ON")) {
-      vehicle.sendLightIntensity(100, 100);
-    } else if (Objects.equals(value, "OFF")) {
-      vehicle.sendLightIntensity(0, 0);
-    }
+    scheduler.post(
+        LED,
+        () -> {
+          mActivity.runOnUiThread(() -> binding.jsCommand.setText("Toggle Led " + value));
+          if (Objects.equals(value, "ON")) {
+            vehicle.sendLightIntensity(100, 100);
+          } else if (Objects.equals(value, "OFF")) {
+            vehicle.sendLightIntensity(0, 0);
+          }
+        });
   }
 
   @JavascriptInterface
   public void switchController(String controllerMode) {
-    if (Objects.equals(controllerMode, "gamepad")) {
-      mActivity.runOnUiThread(
-          () -> binding.jsCommand.setText("Switch Controller to " + controllerMode));
-      sharedPreferencesManager.setControlMode(0);
-    } else if (Objects.equals(controllerMode, "phone")) {
-      mActivity.runOnUiThread(
-          () -> binding.jsCommand.setText("Switch Controller to " + controllerMode));
-      sharedPreferencesManager.setControlMode(1);
-    }
+    scheduler.post(
+        () -> {
+          if (Objects.equals(controllerMode, "gamepad")) {
+            mActivity.runOnUiThread(
+                () -> binding.jsCommand.setText("Switch Controller to " + controllerMode));
+            sharedPreferencesManager.setControlMode(0);
+          } else if (Objects.equals(controllerMode, "phone")) {
+            mActivity.runOnUiThread(
+                () -> binding.jsCommand.setText("Switch Controller to " + controllerMode));
+            sharedPreferencesManager.setControlMode(1);
+          }
+        });
   }
 
   @JavascriptInterface
   public void switchDriveMode(String driveMode) {
-    if (Objects.equals(driveMode, "dual")) {
-      mActivity.runOnUiThread(() -> binding.jsCommand.setText("Switch Drive Mode to " + driveMode));
-      sharedPreferencesManager.setDriveMode(0);
-    } else if (Objects.equals(driveMode, "game")) {
-      mActivity.runOnUiThread(() -> binding.jsCommand.setText("Switch Drive Mode to " + driveMode));
-      sharedPreferencesManager.setDriveMode(1);
-    } else if (Objects.equals(driveMode, "joystick")) {
-      mActivity.runOnUiThread(() -> binding.jsCommand.setText("Switch Drive Mode to " + driveMode));
-      sharedPreferencesManager.setDriveMode(2);
-    }
+    scheduler.post(
+        () -> {
+          if (Objects.equals(driveMode, "dual")) {
+            mActivity.runOnUiThread(() -> binding.jsCommand.setText("Switch Drive Mode to " + driveMode));
+            sharedPreferencesManager.setDriveMode(0);
+          } else if (Objects.equals(driveMode, "game")) {
+            mActivity.runOnUiThread(() -> binding.jsCommand.setText("Switch Drive Mode to " + driveMode));
+            sharedPreferencesManager.setDriveMode(1);
+          } else if (Objects.equals(driveMode, "joystick")) {
+            mActivity.runOnUiThread(() -> binding.jsCommand.setText("Switch Drive Mode to " + driveMode));
+            sharedPreferencesManager.setDriveMode(2);
+          }
+        });
   }
   @JavascriptInterface
   public void setSpeed(String speed) {
-    if (Objects.equals(speed, "slow")) {
-      mActivity.runOnUiThread(() -> binding.jsCommand.setText("Set speed to " + speed));
-      sharedPreferencesManager.setSpeedMode(128);
-      vehicle.setSpeedMultiplier(Enums.SpeedMode.SLOW.getValue());
-    } else if (Objects.equals(speed, "medium")) {
-      mActivity.runOnUiThread(() -> binding.jsCommand.setText("Set speed to " + speed));
-      sharedPreferencesManager.setDriveMode(192);
-      vehicle.setSpeedMultiplier(Enums.SpeedMode.NORMAL.getValue());
-    } else if (Objects.equals(speed, "fast")) {
-      mActivity.runOnUiThread(() -> binding.jsCommand.setText("Set speed to " + speed));
-      sharedPreferencesManager.setDriveMode(255);
-      vehicle.setSpeedMultiplier(Enums.SpeedMode.FAST.getValue());
-    }
+    scheduler.post(
+        () -> {
+          if (Objects.equals(speed, "slow")) {
+            mActivity.runOnUiThread(() -> binding.jsCommand.setText("Set speed to " + speed));
+            sharedPreferencesManager.setSpeedMode(128);
+            vehicle.setSpeedMultiplier(Enums.SpeedMode.SLOW.getValue());
+          } else if (Objects.equals(speed, "medium")) {
+            mActivity.runOnUiThread(() -> binding.jsCommand.setText("Set speed to " + speed));
+            sharedPreferencesManager.setDriveMode(192);
+            vehicle.setSpeedMultiplier(Enums.SpeedMode.NORMAL.getValue());
+          } else if (Objects.equals(speed, "fast")) {
+            mActivity.runOnUiThread(() -> binding.jsCommand.setText("Set speed to " + speed));
+            sharedPreferencesManager.setDriveMode(255);
+            vehicle.setSpeedMultiplier(Enums.SpeedMode.FAST.getValue());
+          }
+        });
   }
 
   @JavascriptInterface
@@ -393,58 +598,73 @@ public void ledBrightness(float value) {
 
   @JavascriptInterface
   public void reachGoal(float forward, float left, String model) {
-    Timber.tag("Ai Blocks").i(forward + ", " + left);
-    mActivity.runOnUiThread(() -> binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT));
-    startPointGoal(-forward, -left);
-    BlocklyExecutingFragment.navigationModelName = model;
+    scheduler.post(
+        () -> {
+          Timber.tag("Ai Blocks").i(forward + ", " + left);
+          mActivity.runOnUiThread(() -> binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT));
+          startPointGoal(-forward, -left);
+          BlocklyExecutingFragment.navigationModelName = model;
+        });
   }
 
   @JavascriptInterface
   public void follow(String object, String modelName) {
-    mActivity.runOnUiThread(() -> {
-      binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT);
-      binding.jsCommand.setText("Follow " + object + " using " + modelName);
-    });
-    BlocklyExecutingFragment.detectorModelName = modelName;
-    BlocklyExecutingFragment.classType = object;
-    BlocklyExecutingFragment.isFollow = true;
+    scheduler.post(
+        () -> {
+          mActivity.runOnUiThread(() -> {
+            binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT);
+            binding.jsCommand.setText("Follow " + object + " using " + modelName);
+          });
+          BlocklyExecutingFragment.detectorModelName = modelName;
+          BlocklyExecutingFragment.classType = object;
+          BlocklyExecutingFragment.isFollow = true;
+        });
   }
 
   @JavascriptInterface
   public void enableMultipleDetection(String startObject, String modelName, String stopObject, String task) {
-    mActivity.runOnUiThread(() -> {
-      binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT);
-      binding.jsCommand.setText("Follow " + startObject + " using " + modelName + "stop when see " + stopObject);
-    });
-    BlocklyExecutingFragment.detectorModelName = modelName;
-    BlocklyExecutingFragment.startObject = startObject;
-    BlocklyExecutingFragment.stopObject = stopObject;
-    BlocklyExecutingFragment.getTask = task;
-    BlocklyExecutingFragment.isFollowMultipleObject = true;
+    scheduler.post(
+        () -> {
+          mActivity.runOnUiThread(() -> {
+            binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT);
+            binding.jsCommand.setText("Follow " + startObject + " using " + modelName + "stop when see " + stopObject);
+          });
+          BlocklyExecutingFragment.detectorModelName = modelName;
+          BlocklyExecutingFragment.startObject = startObject;
+          BlocklyExecutingFragment.stopObject = stopObject;
+          BlocklyExecutingFragment.getTask = task;
+          BlocklyExecutingFragment.isFollowMultipleObject = true;
+        });
   }
 
   @JavascriptInterface
   public void enableAutopilot(String modelName) {
-    mActivity.runOnUiThread(() -> {
-      binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT);
-      binding.jsCommand.setText("Start Autopilot using " + modelName);
+    scheduler.post(
+        () -> {
+          mActivity.runOnUiThread(() -> {
+            binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT);
+            binding.jsCommand.setText("Start Autopilot using " + modelName);
 
-    });
-    BlocklyExecutingFragment.autoPilotModelName = modelName;
-    BlocklyExecutingFragment.isAutopilot = true;
+          });
+          BlocklyExecutingFragment.autoPilotModelName = modelName;
+          BlocklyExecutingFragment.isAutopilot = true;
+        });
   }
 
   @JavascriptInterface
   public void enableMultipleAI(String autoPilotModel, String task, String classType, String detectorModel){
-    mActivity.runOnUiThread(() -> {
-      binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT);
-      binding.jsCommand.setText("Start Autopilot with Object Tracking.");
-    });
-    BlocklyExecutingFragment.autoPilotModelName = autoPilotModel;
-    BlocklyExecutingFragment.detectorModelName = detectorModel;
-    BlocklyExecutingFragment.classType = classType;
-    BlocklyExecutingFragment.getTask = task;
-    BlocklyExecutingFragment.isStartDetectorAutoPilot = true;
+    scheduler.post(
+        () -> {
+          mActivity.runOnUiThread(() -> {
+            binding.blocklyLayout.setBackgroundColor(Color.TRANSPARENT);
+            binding.jsCommand.setText("Start Autopilot with Object Tracking.");
+          });
+          BlocklyExecutingFragment.autoPilotModelName = autoPilotModel;
+          BlocklyExecutingFragment.detectorModelName = detectorModel;
+          BlocklyExecutingFragment.classType = classType;
+          BlocklyExecutingFragment.getTask = task;
+          BlocklyExecutingFragment.isStartDetectorAutoPilot = true;
+        });
   }
 
   @JavascriptInterface
@@ -473,105 +693,115 @@ public void ledBrightness(float value) {
 
   @JavascriptInterface
   public void playSound(String classType) {
-    mActivity.runOnUiThread(() -> {
-      binding.jsCommand.setText("Playing input sound.");
-    });
-    tts = new TextToSpeech(mContext, new TextToSpeech.OnInitListener() {
-      @Override
-      public void onInit(int i) {
-        if(i == TextToSpeech.SUCCESS){
-          tts.setLanguage(Locale.US);
-          tts.setSpeechRate(1.0f);
-          tts.speak(classType,TextToSpeech.QUEUE_ADD,null);
-        }
-      }
-    });
+    scheduler.post(
+        () -> {
+          mActivity.runOnUiThread(() -> {
+            binding.jsCommand.setText("Playing input sound.");
+          });
+          tts = new TextToSpeech(mContext, new TextToSpeech.OnInitListener() {
+            @Override
+            public void onInit(int i) {
+              if(i == TextToSpeech.SUCCESS){
+                tts.setLanguage(Locale.US);
+                tts.setSpeechRate(1.0f);
+                tts.speak(classType,TextToSpeech.QUEUE_ADD,null);
+              }
+            }
+          });
+        });
   }
 
   @JavascriptInterface
   public void displayString(String text) {
-    mActivity.runOnUiThread(() -> {
-      binding.jsCommand.setText(text);
-    });
+    scheduler.post(
+        DISPLAY,
+        () -> {
+          mActivity.runOnUiThread(() -> {
+            binding.jsCommand.setText(text);
+          });
+        });
   }
 
   @JavascriptInterface
   public void displaySensorData(String sensorType) {
-      String type = "";
-      String finalText = "";
-      String prefix = "Android.";
-      if (sensorType.startsWith(prefix)) {
-        finalText = sensorType.substring(prefix.length());
-      }
-    switch (finalText.trim()){
-        case "sonarReading()" :
-            System.out.println("in sonar");
-            type = "sonar : " + vehicle.getSonarReading();
-            break;
-        case "speedReading()" :
-            type = "speed : " + (vehicle.getLeftWheelRpm() + vehicle.getRightWheelRpm()) / 2;
-            break;
-        case "voltageDividerReading()" :
-            type = "voltage : " + vehicle.getBatteryVoltage();
-            break;
-        case "frontWheelReading()" :
-            type = "frontWheel : " + vehicle.isHasWheelOdometryFront();
-            break;
-        case "backWheelReading()" :
-            type = "backWheel : " + vehicle.isHasWheelOdometryBack();
-            break;
-        case "gyroscopeReadingX()" :
-            sensorManager.registerListener(
-                    this, gyroscopeSensor, sharedPreferencesManager.getDelay() * 1000);
-            type = "gyroscopeX : " + gyroscopeValues[0];
-            break;
-        case "gyroscopeReadingY()" :
-            sensorManager.registerListener(
-                    this, gyroscopeSensor, sharedPreferencesManager.getDelay() * 1000);
-            type = "gyroscopeY : " + gyroscopeValues[1];
-            break;
-        case "gyroscopeReadingZ()" :
-            sensorManager.registerListener(
-                    this, gyroscopeSensor, sharedPreferencesManager.getDelay() * 1000);
-            type = "gyroscopeZ : " + gyroscopeValues[2];
-            break;
-        case "accelerationReadingX" :
-            sensorManager.registerListener(
-                    this, accelerometerSensor, sharedPreferencesManager.getDelay() * 1000);
-            type = "accelerationX : " + accelerometerValues[0];
-            break;
-        case "accelerationReadingY" :
-            sensorManager.registerListener(
-                    this, accelerometerSensor, sharedPreferencesManager.getDelay() * 1000);
-            type = "accelerationY : " + accelerometerValues[1];
-            break;
-        case "accelerationReadingZ" :
-            sensorManager.registerListener(
-                    this, accelerometerSensor, sharedPreferencesManager.getDelay() * 1000);
-            type = "accelerationZ : " + accelerometerValues[2];
-            break;
-        case "magneticReadingX" :
-            sensorManager.registerListener(
-                    this, magneticSensor, sharedPreferencesManager.getDelay() * 1000);
-            type = "magneticX : " + magneticFieldValues[0];
-            break;
-        case "magneticReadingY" :
-            sensorManager.registerListener(
-                    this, magneticSensor, sharedPreferencesManager.getDelay() * 1000);
-            type = "magneticY : " + magneticFieldValues[1];
-            break;
-        case "magneticReadingZ" :
-            sensorManager.registerListener(
-                    this, magneticSensor, sharedPreferencesManager.getDelay() * 1000);
-            type = "magneticZ : " + magneticFieldValues[2];
-            break;
-        default:
-            break;
-      }
-    String finalType = type;
-    mActivity.runOnUiThread(() -> {
-      binding.jsCommand.setText(finalType);
-    });
+    scheduler.post(
+        () -> {
+            String type = "";
+            String finalText = "";
+            String prefix = "Android.";
+            if (sensorType.startsWith(prefix)) {
+              finalText = sensorType.substring(prefix.length());
+            }
+          switch (finalText.trim()){
+              case "sonarReading()" :
+                  System.out.println("in sonar");
+                  type = "sonar : " + vehicle.getSonarReading();
+                  break;
+              case "speedReading()" :
+                  type = "speed : " + (vehicle.getLeftWheelRpm() + vehicle.getRightWheelRpm()) / 2;
+                  break;
+              case "voltageDividerReading()" :
+                  type = "voltage : " + vehicle.getBatteryVoltage();
+                  break;
+              case "frontWheelReading()" :
+                  type = "frontWheel : " + vehicle.isHasWheelOdometryFront();
+                  break;
+              case "backWheelReading()" :
+                  type = "backWheel : " + vehicle.isHasWheelOdometryBack();
+                  break;
+              case "gyroscopeReadingX()" :
+                  sensorManager.registerListener(
+                          this, gyroscopeSensor, sharedPreferencesManager.getDelay() * 1000);
+                  type = "gyroscopeX : " + gyroscopeValues[0];
+                  break;
+              case "gyroscopeReadingY()" :
+                  sensorManager.registerListener(
+                          this, gyroscopeSensor, sharedPreferencesManager.getDelay() * 1000);
+                  type = "gyroscopeY : " + gyroscopeValues[1];
+                  break;
+              case "gyroscopeReadingZ()" :
+                  sensorManager.registerListener(
+                          this, gyroscopeSensor, sharedPreferencesManager.getDelay() * 1000);
+                  type = "gyroscopeZ : " + gyroscopeValues[2];
+                  break;
+              case "accelerationReadingX" :
+                  sensorManager.registerListener(
+                          this, accelerometerSensor, sharedPreferencesManager.getDelay() * 1000);
+                  type = "accelerationX : " + accelerometerValues[0];
+                  break;
+              case "accelerationReadingY" :
+                  sensorManager.registerListener(
+                          this, accelerometerSensor, sharedPreferencesManager.getDelay() * 1000);
+                  type = "accelerationY : " + accelerometerValues[1];
+                  break;
+              case "accelerationReadingZ" :
+                  sensorManager.registerListener(
+                          this, accelerometerSensor, sharedPreferencesManager.getDelay() * 1000);
+                  type = "accelerationZ : " + accelerometerValues[2];
+                  break;
+              case "magneticReadingX" :
+                  sensorManager.registerListener(
+                          this, magneticSensor, sharedPreferencesManager.getDelay() * 1000);
+                  type = "magneticX : " + magneticFieldValues[0];
+                  break;
+              case "magneticReadingY" :
+                  sensorManager.registerListener(
+                          this, magneticSensor, sharedPreferencesManager.getDelay() * 1000);
+                  type = "magneticY : " + magneticFieldValues[1];
+                  break;
+              case "magneticReadingZ" :
+                  sensorManager.registerListener(
+                          this, magneticSensor, sharedPreferencesManager.getDelay() * 1000);
+                  type = "magneticZ : " + magneticFieldValues[2];
+                  break;
+              default:
+                  break;
+            }
+          String finalType = type;
+          mActivity.runOnUiThread(() -> {
+            binding.jsCommand.setText(finalType);
+          });
+        });
   }
 
 
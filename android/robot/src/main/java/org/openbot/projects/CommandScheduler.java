@@ -0,0 +1,182 @@
+package org.openbot.projects;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.SystemClock;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs the commands of a Blockly program on a dedicated control thread. Bot functions called from
+ * JavaScript only queue their command and return, so the JavaBridge thread is never held by vehicle
+ * or UI work. Commands are placed on a program timeline: {@link #schedulePause(long)} advances the
+ * timeline instead of sleeping, and the command after it runs when the pause has elapsed, no matter
+ * how long the bridge call took. The program runs at most {@link #MAX_LEAD_MS} ahead of the
+ * timeline; sensor reads wait for all commands before them with {@link #sync()}.
+ *
+ * <p>A program that loops without pausing can post faster than the commands run. A command for an
+ * actuator, e.g. the motors, replaces the one still waiting for it since the last pause, and at
+ * most {@link #MAX_PENDING} commands are queued; posting more holds the program until the queue
+ * drains.
+ */
+class CommandScheduler {
+  // How far the JavaScript program may run ahead of the commands being executed
+  private static final long MAX_LEAD_MS = 20;
+  // Commands queued and not run yet, before post() holds the program
+  private static final int MAX_PENDING = 64;
+
+  private final HandlerThread thread;
+  private final Handler handler;
+  // Queued commands of each actuator that no pause separates from the next command
+  private final Map<String, Command> latest = new HashMap<>();
+  // Uptime at which the next queued command runs
+  private long programTime;
+  // Number of pauses so far; commands are only replaced within the same one
+  private long pauses = 0;
+  private int pending = 0;
+  private boolean stopped = false;
+
+  CommandScheduler() {
+    thread = new HandlerThread("BlocklyControl");
+    thread.start();
+    handler = new Handler(thread.getLooper());
+    programTime = SystemClock.uptimeMillis();
+  }
+
+  /** Queues a command at the current program time. */
+  void post(Runnable command) {
+    post(null, command);
+  }
+
+  /**
+   * Queues a command for the given actuator at the current program time. If a command for the same
+   * actuator is still queued and no pause lies between the two, only the new one is run.
+   *
+   * @param actuator key of the state the command sets, or null if it must not be dropped
+   */
+  synchronized void post(String actuator, Runnable command) {
+    Command queued = actuator != null ? latest.get(actuator) : null;
+    if (queued != null && queued.pause == pauses) {
+      queued.runnable = command;
+      return;
+    }
+    while (!stopped && pending >= MAX_PENDING) {
+      try {
+        wait();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        return;
+      }
+    }
+    if (stopped) return;
+    Command next = new Command(actuator, command, advance(0), pauses);
+    if (actuator != null) latest.put(actuator, next);
+    pending++;
+    handler.postAtTime(next, next.time);
+  }
+
+  /**
+   * Advances the program time by the given duration without waiting.
+   *
+   * @return how long the program should wait before it continues, so it stays less than {@link
+   *     #MAX_LEAD_MS} ahead of the timeline
+   */
+  synchronized long schedulePause(long ms) {
+    // A program that outlived the scheduler should not spin in its loops.
+    if (stopped) return ms;
+    pauses++;
+    return Math.max(0, advance(ms) - MAX_LEAD_MS - SystemClock.uptimeMillis());
+  }
+
+  /**
+   * Like {@link #schedulePause(long)}, but waits on the calling thread. Only for programs that can't
+   * wait asynchronously, i.e. pauses inside functions and detection tasks, since it holds the
+   * JavaBridge thread.
+   */
+  void pause(long ms) {
+    synchronized (this) {
+      if (!stopped) {
+        long until = SystemClock.uptimeMillis() + schedulePause(ms);
+        long remaining;
+        while (!stopped && (remaining = until - SystemClock.uptimeMillis()) > 0) {
+          try {
+            wait(remaining);
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+          }
+        }
+        return;
+      }
+    }
+    SystemClock.sleep(ms);
+  }
+
+  /** Waits until all commands queued so far have run, e.g. before reading a sensor. */
+  void sync() {
+    CountDownLatch latch = new CountDownLatch(1);
+    synchronized (this) {
+      if (stopped) return;
+      handler.postAtTime(latch::countDown, advance(0));
+    }
+    try {
+      // The latch is dropped if the scheduler is stopped meanwhile.
+      while (!latch.await(50, TimeUnit.MILLISECONDS)) {
+        synchronized (this) {
+          if (stopped) return;
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /** Drops all queued commands and releases a waiting program. The scheduler can't be reused. */
+  synchronized void stop() {
+    stopped = true;
+    handler.removeCallbacksAndMessages(null);
+    latest.clear();
+    pending = 0;
+    thread.quit();
+    notifyAll();
+  }
+
+  /**
+   * Moves the program time to now if the program fell behind (no burst of late commands), then
+   * advances it.
+   *
+   * @return the new program time
+   */
+  private long advance(long ms) {
+    programTime = Math.max(programTime, SystemClock.uptimeMillis()) + ms;
+    return programTime;
+  }
+
+  private final class Command implements Runnable {
+    private final String actuator;
+    private final long time;
+    private final long pause;
+    private Runnable runnable;
+
+    Command(String actuator, Runnable runnable, long time, long pause) {
+      this.actuator = actuator;
+      this.runnable = runnable;
+      this.time = time;
+      this.pause = pause;
+    }
+
+    @Override
+    public void run() {
+      Runnable command;
+      synchronized (CommandScheduler.this) {
+        if (actuator != null && latest.get(actuator) == this) latest.remove(actuator);
+        pending--;
+        CommandScheduler.this.notifyAll();
+        command = runnable;
+      }
+      command.run();
+    }
+  }
+}
@@ -0,0 +1,537 @@
+package org.openbot.projects;
+
+import android.content.Context;
+import android.os.Handler;
+import android.os.Looper;
+import com.google.api.client.util.DateTime;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openbot.utils.BotFunctionUtils;
+import timber.log.Timber;
+
+/**
+ * On-disk cache of Blockly projects, keyed by Drive file id. For each project the downloaded source
+ * and its compiled form (bot functions bound to the Android interface, comments and indentation
+ * stripped) are stored, together with the modified time reported by Drive. A project whose modified
+ * time is unchanged can be run without downloading or compiling it again.
+ */
+public class ProjectCache {
+  private static final String DIR_NAME = "projects";
+  private static final String INDEX_NAME = "index.json";
+  private static final String SOURCE_SUFFIX = ".js";
+  private static final String COMPILED_SUFFIX = ".min.js";
+  // Increased whenever compile() changes, so older compiled projects are compiled again
+  private static final int COMPILER_VERSION = 5;
+  private static final String PAUSE_CALL = "Android.pause(";
+
+  private static ProjectCache instance;
+
+  /** Receives a compiled project. */
+  public interface CodeCallback {
+    void onCode(String code);
+  }
+
+  private final File dir;
+  private final File indexFile;
+  private final JSONObject index;
+  private final ExecutorService executor =
+      new ThreadPoolExecutor(0, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<>());
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+
+  public static synchronized ProjectCache getInstance(Context context) {
+    if (instance == null) instance = new ProjectCache(context.getApplicationContext());
+    return instance;
+  }
+
+  private ProjectCache(Context context) {
+    dir = new File(context.getFilesDir(), DIR_NAME);
+    if (!dir.exists() && !dir.mkdirs()) Timber.e("Could not create %s", dir);
+    indexFile = new File(dir, INDEX_NAME);
+    index = loadIndex(indexFile);
+  }
+
+  /**
+   * @param modifiedTime modified time of the project on Drive, or null to accept any cached version
+   * @return the cached source of the project, or null if it is not cached or outdated
+   */
+  public synchronized String getSource(String fileId, DateTime modifiedTime) {
+    if (!isCurrent(fileId, modifiedTime)) return null;
+    return read(new File(dir, fileId + SOURCE_SUFFIX));
+  }
+
+  /**
+   * @param modifiedTime modified time of the project on Drive, or null to accept any cached version
+   * @return the compiled project, ready to be run, or null if it is not cached or outdated
+   */
+  public synchronized String getCode(String fileId, DateTime modifiedTime) {
+    if (!isCurrent(fileId, modifiedTime)) return null;
+    return read(new File(dir, fileId + COMPILED_SUFFIX));
+  }
+
+  /** @return the name of a cached project, or null */
+  public synchronized String getName(String fileId) {
+    JSONObject entry = index.optJSONObject(fileId);
+    return entry != null ? entry.optString("name", null) : null;
+  }
+
+  /**
+   * Stores a downloaded project and its compiled form.
+   *
+   * @param modifiedTime modified time of the project on Drive, null if unknown. The cached modified
+   *     time is kept then, as long as the source didn't change.
+   * @return the compiled project
+   */
+  public synchronized String put(String fileId, String name, DateTime modifiedTime, String source) {
+    String code = compile(source);
+    File sourceFile = new File(dir, fileId + SOURCE_SUFFIX);
+    File compiledFile = new File(dir, fileId + COMPILED_SUFFIX);
+    boolean sourceUnchanged = source.equals(read(sourceFile));
+    boolean stored =
+        (sourceUnchanged && code.equals(read(compiledFile)))
+            || (write(sourceFile, source) && write(compiledFile, code));
+    try {
+      if (stored) {
+        JSONObject previous = index.optJSONObject(fileId);
+        JSONObject entry = new JSONObject();
+        entry.put("name", name);
+        entry.put("compiler", COMPILER_VERSION);
+        if (modifiedTime != null) {
+          entry.put("modifiedTime", modifiedTime.getValue());
+        } else if (sourceUnchanged && previous != null && previous.has("modifiedTime")) {
+          entry.put("modifiedTime", previous.getLong("modifiedTime"));
+        }
+        index.put(fileId, entry);
+      } else {
+        index.remove(fileId);
+      }
+      write(indexFile, index.toString());
+    } catch (JSONException e) {
+      Timber.e(e, "Project cache error");
+    }
+    return code;
+  }
+
+  /**
+   * Passes the compiled project to the callback on the main thread, compiling and storing the given
+   * source first if the cached project is missing or outdated. The cache files are read and written
+   * on a background thread.
+   */
+  public void getOrPut(
+      String fileId, String name, DateTime modifiedTime, String source, CodeCallback callback) {
+    executor.execute(
+        () -> {
+          String cached = getCode(fileId, modifiedTime);
+          String code = cached != null ? cached : put(fileId, name, modifiedTime, source);
+          mainHandler.post(() -> callback.onCode(code));
+        });
+  }
+
+  /** Removes a project, e.g. after it was deleted on Drive. */
+  public synchronized void remove(String fileId) {
+    if (index.remove(fileId) == null) return;
+    new File(dir, fileId + SOURCE_SUFFIX).delete();
+    new File(dir, fileId + COMPILED_SUFFIX).delete();
+    write(indexFile, index.toString());
+  }
+
+  /**
+   * Compiles a Blockly project for running in the WebView: bot functions are called through the
+   * Android interface, sensors are read from a snapshot, pauses are awaited, and comments and
+   * indentation are removed.
+   */
+  public static String compile(String source) {
+    String code = minify(source);
+    for (String fun : BotFunctionUtils.botFunctionArray) {
+      if (code.contains(fun)) {
+        code = code.replace(fun, "Android." + fun);
+      }
+    }
+    return awaitPauses(bindSensorReads(code));
+  }
+
+  /**
+   * Runs the statements of the program in an async function that awaits botPause (see {@link
+   * BotFunctions#PAUSE_SCRIPT}) instead of calling pause, so a waiting program doesn't hold the
+   * JavaBridge thread. Variable and function declarations are kept global, since detection tasks
+   * use them: a top-level {@code var x = 5;} becomes a global {@code var x;} and an assignment
+   * {@code x = 5;} in the async function. Pauses inside functions still wait on the bridge, as
+   * their callers don't await them.
+   */
+  static String awaitPauses(String code) {
+    StringBuilder declarations = new StringBuilder();
+    StringBuilder body = new StringBuilder(code.length());
+    boolean awaited = false;
+    int depth = 0;
+    int n = code.length();
+    int i = 0;
+    while (i < n) {
+      char c = code.charAt(i);
+      int literalEnd = skipLiteral(code, i);
+      if (literalEnd > i) {
+        body.append(code, i, literalEnd);
+        i = literalEnd;
+      } else if (isWordAt(code, i, "function")) {
+        int end = skipBlock(code, code.indexOf('{', i));
+        boolean declaration = depth == 0 && isStatementStart(body);
+        (declaration ? declarations : body).append(code, i, end).append('\n');
+        i = skipLineBreak(code, end);
+      } else if (code.startsWith("=>", i)) {
+        int open = i + 2;
+        while (open < n && Character.isWhitespace(code.charAt(open))) open++;
+        int end = open < n && code.charAt(open) == '{' ? skipBlock(code, open) : i + 2;
+        body.append(code, i, end);
+        i = end;
+      } else if (depth == 0 && isWordAt(code, i, "var") && isStatementStart(body)) {
+        int end = skipStatement(code, i);
+        hoistVar(code.substring(i, end), declarations, body);
+        i = skipLineBreak(code, end);
+      } else if (isWordAt(code, i, PAUSE_CALL)) {
+        body.append("await botPause(");
+        i += PAUSE_CALL.length();
+        awaited = true;
+      } else {
+        if (c == '{') depth++;
+        if (c == '}') depth--;
+        body.append(c);
+        i++;
+      }
+    }
+    if (!awaited) return code;
+    // The leading semicolon keeps the call from continuing a declaration without one.
+    return declarations + ";(async function () {\n" + body + "\n})();";
+  }
+
+  /**
+   * Declares the variables of a var statement in the declarations and keeps their initializers as
+   * assignments in the body, in the same order.
+   */
+  private static void hoistVar(String statement, StringBuilder declarations, StringBuilder body) {
+    String list = statement.substring("var".length()).trim();
+    if (list.endsWith(";")) list = list.substring(0, list.length() - 1);
+    StringBuilder names = new StringBuilder();
+    StringBuilder assignments = new StringBuilder();
+    for (String declarator : splitTopLevel(list, ',')) {
+      String name = splitTopLevel(declarator, '=').get(0);
+      if (names.length() > 0) names.append(", ");
+      names.append(name.trim());
+      if (name.length() < declarator.length()) {
+        if (assignments.length() > 0) assignments.append(", ");
+        assignments.append(declarator.trim());
+      }
+    }
+    declarations.append("var ").append(names).append(";\n");
+    if (assignments.length() > 0) body.append(assignments).append(";\n");
+  }
+
+  /** Splits the code at separators outside of brackets and literals. */
+  private static List<String> splitTopLevel(String code, char separator) {
+    List<String> parts = new ArrayList<>();
+    int depth = 0;
+    int start = 0;
+    int i = 0;
+    while (i < code.length()) {
+      int literalEnd = skipLiteral(code, i);
+      if (literalEnd > i) {
+        i = literalEnd;
+        continue;
+      }
+      char c = code.charAt(i);
+      if (c == '(' || c == '[' || c == '{') depth++;
+      if (c == ')' || c == ']' || c == '}') depth--;
+      if (c == separator && depth == 0 && !isOperatorPart(code, i)) {
+        parts.add(code.substring(start, i));
+        start = i + 1;
+      }
+      i++;
+    }
+    parts.add(code.substring(start));
+    return parts;
+  }
+
+  /** @return whether the "=" at the given position is part of an operator such as "==" or "<=" */
+  private static boolean isOperatorPart(String code, int position) {
+    if (code.charAt(position) != '=') return false;
+    char before = position > 0 ? code.charAt(position - 1) : ' ';
+    char after = position + 1 < code.length() ? code.charAt(position + 1) : ' ';
+    return after == '=' || after == '>' || "=!<>+-*/%&|^".indexOf(before) >= 0;
+  }
+
+  private static int skipLineBreak(String code, int position) {
+    return position < code.length() && code.charAt(position) == '\n' ? position + 1 : position;
+  }
+
+  /** @return whether the word starts at the given position and is not part of a longer name */
+  private static boolean isWordAt(String code, int position, String word) {
+    if (!code.startsWith(word, position)) return false;
+    char before = position > 0 ? code.charAt(position - 1) : ' ';
+    if (isWordChar(before) || before == '.') return false;
+    int end = position + word.length();
+    return end >= code.length()
+        || !isWordChar(word.charAt(word.length() - 1))
+        || !isWordChar(code.charAt(end));
+  }
+
+  private static boolean isStatementStart(CharSequence before) {
+    for (int i = before.length() - 1; i >= 0; i--) {
+      char c = before.charAt(i);
+      if (!Character.isWhitespace(c)) return c == ';' || c == '}' || c == '{';
+    }
+    return true;
+  }
+
+  /**
+   * @return the position after the string, template or regular expression literal starting at the
+   *     given position, or the position itself if no literal starts there
+   */
+  private static int skipLiteral(String code, int start) {
+    char first = code.charAt(start);
+    boolean regex = first == '/' && isRegexStart(code, start);
+    if (first != '"' && first != '\'' && first != '`' && !regex) return start;
+    int n = code.length();
+    boolean inClass = false;
+    int i = start + 1;
+    while (i < n) {
+      char c = code.charAt(i);
+      if (c == '\\') {
+        i += 2;
+        continue;
+      }
+      if (regex) {
+        // A regular expression ends at its line; "/" inside a character class doesn't end it.
+        if (c == '\n' || (c == '/' && !inClass)) break;
+        if (c == '[') inClass = true;
+        if (c == ']') inClass = false;
+      } else if (c == first) {
+        break;
+      }
+      i++;
+    }
+    return Math.min(i + 1, n);
+  }
+
+  /**
+   * @return whether the slash at the given position starts a regular expression literal rather than
+   *     a division or a comment, judged by the token before it
+   */
+  private static boolean isRegexStart(String code, int slash) {
+    if (slash + 1 < code.length()) {
+      char next = code.charAt(slash + 1);
+      if (next == '/' || next == '*') return false;
+    }
+    int i = slash - 1;
+    while (i >= 0 && Character.isWhitespace(code.charAt(i))) i--;
+    if (i < 0) return true;
+    char before = code.charAt(i);
+    if (isWordChar(before)) {
+      int wordStart = i;
+      while (wordStart > 0 && isWordChar(code.charAt(wordStart - 1))) wordStart--;
+      String word = code.substring(wordStart, i + 1);
+      return word.equals("return") || word.equals("typeof") || word.equals("case");
+    }
+    return "(,=:[!&|?{};+-*%<>~^".indexOf(before) >= 0;
+  }
+
+  /** @return the position after the block whose opening brace is at the given position */
+  private static int skipBlock(String code, int open) {
+    int n = code.length();
+    if (open < 0) return n;
+    int depth = 0;
+    int i = open;
+    while (i < n) {
+      int literalEnd = skipLiteral(code, i);
+      if (literalEnd > i) {
+        i = literalEnd;
+        continue;
+      }
+      char c = code.charAt(i);
+      if (c == '{') depth++;
+      if (c == '}' && --depth == 0) return i + 1;
+      i++;
+    }
+    return n;
+  }
+
+  /** @return the position after the semicolon ending the statement at the given position */
+  private static int skipStatement(String code, int start) {
+    int n = code.length();
+    int i = start;
+    while (i < n) {
+      char c = code.charAt(i);
+      int literalEnd = skipLiteral(code, i);
+      if (literalEnd > i) {
+        i = literalEnd;
+      } else if (c == '{') {
+        i = skipBlock(code, i);
+      } else if (c == ';') {
+        return i + 1;
+      } else {
+        i++;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Replaces sensor reads outside of string literals with reads from the sensor snapshot (see
+   * {@link BotFunctions#SENSOR_SCRIPT}), so a loop that reads several sensors crosses the bridge
+   * once. Sensor names inside strings, e.g. for displaySensorData, are left as they are.
+   */
+  static String bindSensorReads(String code) {
+    StringBuilder out = new StringBuilder(code.length());
+    int n = code.length();
+    int i = 0;
+    while (i < n) {
+      int literalEnd = skipLiteral(code, i);
+      if (literalEnd > i) {
+        out.append(code, i, literalEnd);
+        i = literalEnd;
+        continue;
+      }
+      int sensor = findSensorCall(code, i);
+      if (sensor >= 0) {
+        out.append("BotSensors.read(").append(sensor).append(')');
+        i += sensorCall(sensor).length();
+      } else {
+        out.append(code.charAt(i));
+        i++;
+      }
+    }
+    return out.toString();
+  }
+
+  /** @return the snapshot index of the sensor read starting at the given position, or -1 */
+  private static int findSensorCall(String code, int position) {
+    for (int index = 0; index < BotFunctions.SNAPSHOT_SENSORS.length; index++) {
+      if (code.startsWith(sensorCall(index), position)) return index;
+    }
+    return -1;
+  }
+
+  private static String sensorCall(int index) {
+    return "Android." + BotFunctions.SNAPSHOT_SENSORS[index] + "()";
+  }
+
+  /**
+   * Strips comments, indentation and blank lines outside of string and regular expression literals.
+   * Line breaks are kept, since statements may rely on them being ended by a line break.
+   */
+  static String minify(String source) {
+    StringBuilder out = new StringBuilder(source.length());
+    int n = source.length();
+    int i = 0;
+    while (i < n) {
+      char c = source.charAt(i);
+      char next = i + 1 < n ? source.charAt(i + 1) : 0;
+      if (c == '/' && next == '/') {
+        while (i < n && source.charAt(i) != '\n') i++;
+      } else if (c == '/' && next == '*') {
+        int end = source.indexOf("*/", i + 2);
+        end = end < 0 ? n : end + 2;
+        // A comment spanning lines ends a line, otherwise it separates tokens.
+        if (source.substring(i, end).indexOf('\n') >= 0) {
+          breakLine(out);
+        } else {
+          appendSpace(out);
+        }
+        i = end;
+      } else if (c == '\n' || c == '\r') {
+        breakLine(out);
+        i++;
+      } else if (Character.isWhitespace(c)) {
+        appendSpace(out);
+        i++;
+      } else {
+        int literalEnd = skipLiteral(source, i);
+        if (literalEnd > i) {
+          out.append(source, i, literalEnd);
+          i = literalEnd;
+        } else {
+          out.append(c);
+          i++;
+        }
+      }
+    }
+    trimTrailingSpace(out);
+    return out.toString();
+  }
+
+  private static void breakLine(StringBuilder out) {
+    trimTrailingSpace(out);
+    if (out.length() > 0 && out.charAt(out.length() - 1) != '\n') out.append('\n');
+  }
+
+  /** Appends a single space between tokens; indentation and repeated spaces are dropped. */
+  private static void appendSpace(StringBuilder out) {
+    if (out.length() == 0) return;
+    char last = out.charAt(out.length() - 1);
+    if (last != '\n' && last != ' ') out.append(' ');
+  }
+
+  private static void trimTrailingSpace(StringBuilder out) {
+    while (out.length() > 0 && out.charAt(out.length() - 1) == ' ') out.setLength(out.length() - 1);
+  }
+
+  private static boolean isWordChar(char c) {
+    return Character.isLetterOrDigit(c) || c == '_' || c == '$';
+  }
+
+  private boolean isCurrent(String fileId, DateTime modifiedTime) {
+    JSONObject entry = index.optJSONObject(fileId);
+    if (entry == null || entry.optInt("compiler") != COMPILER_VERSION) return false;
+    return modifiedTime == null || entry.optLong("modifiedTime", -1) == modifiedTime.getValue();
+  }
+
+  private static String read(File file) {
+    if (!file.exists()) return null;
+    try (InputStream in = new FileInputStream(file)) {
+      byte[] content = new byte[(int) file.length()];
+      int read = 0;
+      while (read < content.length) {
+        int count = in.read(content, read, content.length - read);
+        if (count < 0) break;
+        read += count;
+      }
+      return new String(content, 0, read, StandardCharsets.UTF_8);
+    } catch (IOException e) {
+      Timber.e(e, "Could not read %s", file);
+      return null;
+    }
+  }
+
+  /** Writes to a temporary file first, so a cached file is never left half written. */
+  private static boolean write(File file, String content) {
+    File tmpFile = new File(file.getPath() + ".tmp");
+    try (OutputStream out = new FileOutputStream(tmpFile)) {
+      out.write(content.getBytes(StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      Timber.e(e, "Could not write %s", file);
+      return false;
+    }
+    return tmpFile.renameTo(file);
+  }
+
+  private static JSONObject loadIndex(File file) {
+    String content = read(file);
+    if (content != null) {
+      try {
+        return new JSONObject(content);
+      } catch (JSONException e) {
+        Timber.e(e, "Could not read project cache index");
+      }
+    }
+    return new JSONObject();
+  }
+}
@@ -26,7 +26,6 @@ import org.openbot.databinding.FragmentProjectsBinding;
 import org.openbot.env.SharedPreferencesManager;
 import org.openbot.googleServices.GoogleServices;
 import org.openbot.main.CommonRecyclerViewAdapter;
-import org.openbot.utils.BotFunctionUtils;
 
 public class ProjectsFragment extends Fragment {
   private FragmentProjectsBinding binding;
@@ -122,14 +121,12 @@ public class ProjectsFragment extends Fragment {
 //    System.out.println("msg"+R.layout.projects_list_view+" "+R.id.project_name);
     setScanDeviceAdapter(
         new DriveProjectsAdapter(requireActivity(), googleServices.projectsList, driveRes),
-        (itemView, position) ->
-            onTapProjectItem(
-                googleServices.projectsList.get(position).getProjectCommands(),
-                googleServices.projectsList.get(position).getProjectName()),
+        (itemView, position) -> onTapProjectItem(googleServices.projectsList.get(position)),
         ((itemView, position) ->
             onLongTapProjectItem(
                 googleServices.projectsList.get(position).getProjectName(),
                 googleServices.projectsList.get(position).getProjectId())));
+    binding.projectsLoader.setIndeterminate(true);
     binding.projectsLoader.setVisibility(View.VISIBLE);
     googleServices.accessDriveFiles(adapter, binding);
     System.out.println("print"+googleServices.projectsList);
@@ -155,25 +152,35 @@ public class ProjectsFragment extends Fragment {
     }
   }
 
+  /** Shows how many of the changed projects have been downloaded while syncing. */
+  public void updateProgress(int done, int total, FragmentProjectsBinding binding) {
+    binding.projectsLoader.setIndeterminate(false);
+    binding.projectsLoader.setMax(total);
+    binding.projectsLoader.setProgress(done);
+  }
+
   /**
-   * This method is called when a project item is tapped. It performs to run project's command.
+   * This method is called when a project item is tapped. It performs to run project's command. The
+   * compiled project is taken from the project cache if it is up to date.
    *
-   * @param fileContents
-   * @param projectName
+   * @param project
    */
   @SuppressLint("SetTextI18n")
-  private void onTapProjectItem(String fileContents, String projectName) {
-    String code = fileContents;
-    for (String fun : BotFunctionUtils.botFunctionArray) {
-      if (code.contains(fun)) {
-        code = code.replace(fun, "Android." + fun);
-      }
-    }
-    barCodeScannerFragment.finalCode = code;
-    binding.dpMessage.setText(
-        projectName.replace(".js", "")
-            + " file detected. Start to execute the code on your OpenBot.");
-    projectsBottomSheetBehavior.setState(BottomSheetBehavior.STATE_EXPANDED);
+  private void onTapProjectItem(ProjectsDataInObject project) {
+    ProjectCache.getInstance(requireContext())
+        .getOrPut(
+            project.getProjectId(),
+            project.getProjectName(),
+            project.getProjectDate(),
+            project.getProjectCommands(),
+            code -> {
+              if (!isAdded()) return;
+              barCodeScannerFragment.finalCode = code;
+              binding.dpMessage.setText(
+                  project.getProjectName().replace(".js", "")
+                      + " file detected. Start to execute the code on your OpenBot.");
+              projectsBottomSheetBehavior.setState(BottomSheetBehavior.STATE_EXPANDED);
+            });
   }
 
   /**
@@ -221,6 +228,13 @@ public class ProjectsFragment extends Fragment {
         }
       };
 
+  @Override
+  public void onDestroyView() {
+    // Stop downloading projects for a list that is no longer shown.
+    if (googleServices != null) googleServices.cancelProjectSync();
+    super.onDestroyView();
+  }
+
   @Override
   public void onResume() {
     super.onResume();
@@ -38,7 +38,7 @@ public class ReadFileTask extends AsyncTask<Void, Void, Void> {
       StringBuilder stringBuilder = new StringBuilder();
       // Read each line of the input stream and append it to a string builder.
       while ((line = reader.readLine()) != null) {
-        stringBuilder.append(line);
+        stringBuilder.append(line).append('\n');
       }
       // Close the reader and input stream.
       reader.close();
@@ -4,26 +4,42 @@ import android.content.Context;
 import android.net.nsd.NsdManager;
 import android.net.nsd.NsdServiceInfo;
 import android.os.Environment;
+import android.os.Handler;
+import android.os.Looper;
+import android.os.SystemClock;
 import com.loopj.android.http.AsyncHttpClient;
-import com.loopj.android.http.FileAsyncHttpResponseHandler;
+import com.loopj.android.http.AsyncHttpResponseHandler;
 import com.loopj.android.http.JsonHttpResponseHandler;
+import com.loopj.android.http.RangeFileAsyncHttpResponseHandler;
 import com.loopj.android.http.RequestParams;
 import cz.msebera.android.httpclient.Header;
+import cz.msebera.android.httpclient.HttpStatus;
+import cz.msebera.android.httpclient.entity.StringEntity;
+import cz.msebera.android.httpclient.message.BasicHeader;
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
-import java.util.Timer;
-import java.util.TimerTask;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import org.json.JSONArray;
 import org.json.JSONException;
 import org.json.JSONObject;
 import org.openbot.R;
+import org.openbot.tflite.ModelCache;
+import org.openbot.utils.FileUtils;
 import timber.log.Timber;
 
 public class ServerCommunication {
+  private static final int MODEL_POLL_WAIT_S = 30;
+  private static final long MODEL_POLL_INTERVAL_MS = 10000;
+  private static final String PART_SUFFIX = ".part";
 
   private final AsyncHttpClient client;
   private final Context context;
@@ -67,91 +83,25 @@ public class ServerCommunication {
           Timber.d("Server error: %s", throwable.toString());
         }
       };
-  private final JsonHttpResponseHandler modelListHandler =
-      new JsonHttpResponseHandler() {
-        @Override
-        public void onSuccess(int statusCode, Header[] headers, JSONArray response) {
-          File dir = context.getFilesDir();
-
-          if (!dir.exists()) {
-            if (!dir.mkdirs()) {
-              Timber.i("Make dir failed");
-            }
-          }
-
-          HashSet<String> valid = new HashSet<>();
-          for (int i = 0; i < response.length(); i++) {
-            try {
-              String name = response.optJSONObject(i).getString("name");
-              valid.add(name);
-              long serverFileTime = response.optJSONObject(i).getLong("mtime") * 1000;
-              File toFile = new File(dir + File.separator + name);
-              if (toFile.exists()) {
-                long localFileTime = toFile.lastModified();
-                if (localFileTime >= serverFileTime) {
-                  continue;
-                }
-                Timber.d("Update model: %s", name);
-                Timber.d("File times: %d < %d", localFileTime, serverFileTime);
-              } else {
-                Timber.d("Download new model: %s", name);
-              }
-
-              client.get(
-                  context,
-                  serverUrl + "/models/" + name,
-                  new FileAsyncHttpResponseHandler(toFile) {
-                    @Override
-                    public void onFailure(
-                        int statusCode, Header[] headers, Throwable throwable, File file) {
-                      Timber.e(throwable, "Download error: %s", name);
-                    }
-
-                    @Override
-                    public void onSuccess(int statusCode, Header[] headers, File file) {
-                      serverListener.onAddModel(name);
-                      if (file.setLastModified(serverFileTime)) {
-                        Timber.i("Successful download: %s", name);
-                      } else {
-                        Timber.e("Set file time error: %s", name);
-                      }
-                    }
-                  });
-            } catch (JSONException e) {
-              Timber.e(e, "JSON error");
-            }
-          }
-
-          // TODO: Fix the commented code.
-          //  Currently all models that were not added by server (e.g. object detection) are
-          //  removed. The file delete should probably be handled in onRemoveModel in
-          //  ControlsFragment. MasterList/ModelManager needs to be updated and it needs be checked
-          //  that only autopilot models that were added from the server are removed.
-
-          //          String[] list = dir.list((dir1, name) -> name.endsWith(".tflite"));
-          //          if (list != null) {
-          //            for (String name : list) {
-          //              if (!valid.contains(name)) {
-          //                File file = new File(dir + File.separator + name);
-          //                if (file.delete()) {
-          //                  serverListener.onRemoveModel(name);
-          //                  Timber.d("deleted: %s", name);
-          //                } else {
-          //                  Timber.e("delete error: %s", name);
-          //                }
-          //              }
-          //            }
-          //          }
-
-        }
-      };
   private final ServerListener serverListener;
-  private Timer timer;
+  // Model list requests are held open by the server until the list changes (long polling).
+  private final AsyncHttpClient pollClient;
+  private final Handler mainHandler = new Handler(Looper.getMainLooper());
+  // Hashing and file operations for model sync run here, not on the main thread.
+  private final ExecutorService modelExecutor = Executors.newSingleThreadExecutor();
+  private final Set<String> pendingModels = Collections.synchronizedSet(new HashSet<>());
+  private final Map<String, FileHash> fileHashes = new ConcurrentHashMap<>();
+  private int pollGeneration = 0;
+  // Token of the scheduled model poll on mainHandler, which also runs queued downloads
+  private final Object pollToken = new Object();
+  private String modelListETag;
 
   private String serverUrl;
 
   public ServerCommunication(Context context, ServerListener serverListener) {
     this.client = new AsyncHttpClient();
+    this.pollClient = new AsyncHttpClient();
+    this.pollClient.setResponseTimeout((MODEL_POLL_WAIT_S + 10) * 1000);
     this.context = context;
     this.nsdService = new NsdService();
     this.serverListener = serverListener;
@@ -160,19 +110,235 @@ public class ServerCommunication {
   public void start() {
     Timber.d("service started");
     nsdService.start(context, resolveListener);
-    timer = new Timer();
-    timer.scheduleAtFixedRate(
-        new TimerTask() {
+    if (serverUrl != null) restartModelPolling();
+  }
+
+  private void restartModelPolling() {
+    pollGeneration++;
+    mainHandler.removeCallbacksAndMessages(pollToken);
+    pollClient.cancelRequests(context, true);
+    scheduleModelPoll(0);
+  }
+
+  private void stopModelPolling() {
+    pollGeneration++;
+    mainHandler.removeCallbacksAndMessages(pollToken);
+    pollClient.cancelRequests(context, true);
+  }
+
+  private void scheduleModelPoll(long delayMs) {
+    final int generation = pollGeneration;
+    mainHandler.postAtTime(
+        () -> pollModels(generation), pollToken, SystemClock.uptimeMillis() + delayMs);
+  }
+
+  /**
+   * Requests the model list. If the list is unchanged since the last response (same ETag), the
+   * server holds the request for up to MODEL_POLL_WAIT_S and then answers 304, so the next poll is
+   * issued right away. Servers without ETag support are polled every MODEL_POLL_INTERVAL_MS.
+   */
+  private void pollModels(int generation) {
+    if (generation != pollGeneration || serverUrl == null) return;
+    Timber.d("Check for new models");
+    Header[] headers =
+        modelListETag == null
+            ? new Header[0]
+            : new Header[] {new BasicHeader("If-None-Match", modelListETag)};
+    RequestParams params = new RequestParams("wait", MODEL_POLL_WAIT_S);
+    pollClient.get(
+        context,
+        serverUrl + "/models",
+        headers,
+        params,
+        new AsyncHttpResponseHandler() {
           @Override
-          public void run() {
-            if (serverUrl != null) {
-              Timber.d("Check for new models");
-              client.get(context, serverUrl + "/models", modelListHandler);
+          public void onSuccess(int statusCode, Header[] headers, byte[] responseBody) {
+            if (generation != pollGeneration) return;
+            modelListETag = getHeader(headers, "ETag");
+            try {
+              syncModels(new JSONArray(new String(responseBody, StandardCharsets.UTF_8)));
+            } catch (JSONException e) {
+              Timber.e(e, "JSON error");
             }
+            scheduleModelPoll(modelListETag != null ? 0 : MODEL_POLL_INTERVAL_MS);
           }
-        },
-        0,
-        10000);
+
+          @Override
+          public void onFailure(
+              int statusCode, Header[] headers, byte[] responseBody, Throwable error) {
+            if (generation != pollGeneration) return;
+            if (statusCode == HttpStatus.SC_NOT_MODIFIED) {
+              scheduleModelPoll(0);
+            } else {
+              Timber.d("Model list error: %s", error.toString());
+              scheduleModelPoll(MODEL_POLL_INTERVAL_MS);
+            }
+          }
+        });
+  }
+
+  private void syncModels(JSONArray response) {
+    File dir = context.getFilesDir();
+
+    if (!dir.exists()) {
+      if (!dir.mkdirs()) {
+        Timber.i("Make dir failed");
+      }
+    }
+
+    for (int i = 0; i < response.length(); i++) {
+      try {
+        JSONObject entry = response.getJSONObject(i);
+        String name = entry.getString("name");
+        long serverFileTime = entry.getLong("mtime") * 1000;
+        // Older servers do not send a content hash, fall back to the modification time then.
+        String sha256 = entry.optString("sha256", null);
+        if (!pendingModels.add(name)) continue;
+
+        modelExecutor.execute(
+            () -> {
+              File toFile = new File(dir, name);
+              if (isUpToDate(toFile, sha256, serverFileTime)) {
+                pendingModels.remove(name);
+                return;
+              }
+              Timber.d(toFile.exists() ? "Update model: %s" : "Download new model: %s", name);
+              mainHandler.post(() -> downloadModel(toFile, sha256, serverFileTime));
+            });
+      } catch (JSONException e) {
+        Timber.e(e, "JSON error");
+      }
+    }
+
+    // TODO: Fix the commented code.
+    //  Currently all models that were not added by server (e.g. object detection) are
+    //  removed. The file delete should probably be handled in onRemoveModel in
+    //  ControlsFragment. MasterList/ModelManager needs to be updated and it needs be checked
+    //  that only autopilot models that were added from the server are removed.
+
+    //          String[] list = dir.list((dir1, name) -> name.endsWith(".tflite"));
+    //          if (list != null) {
+    //            for (String name : list) {
+    //              if (!valid.contains(name)) {
+    //                File file = new File(dir + File.separator + name);
+    //                if (file.delete()) {
+    //                  serverListener.onRemoveModel(name);
+    //                  Timber.d("deleted: %s", name);
+    //                } else {
+    //                  Timber.e("delete error: %s", name);
+    //                }
+    //              }
+    //            }
+    //          }
+  }
+
+  private boolean isUpToDate(File file, String sha256, long serverFileTime) {
+    if (!file.exists()) return false;
+    if (sha256 == null) return file.lastModified() >= serverFileTime;
+    return sha256.equals(getSha256(file));
+  }
+
+  /**
+   * Downloads a model into a partial file next to the target and moves it in place once its content
+   * hash is verified. The partial file name contains the expected hash, so an interrupted download
+   * of the same model version is resumed with a Range request, while partial files of other
+   * versions are discarded.
+   */
+  private void downloadModel(File toFile, String sha256, long serverFileTime) {
+    String name = toFile.getName();
+    if (serverUrl == null) {
+      pendingModels.remove(name);
+      return;
+    }
+    String version = sha256 != null ? sha256.substring(0, 16) : Long.toString(serverFileTime);
+    File partFile = new File(toFile.getParentFile(), name + "." + version + PART_SUFFIX);
+    File[] staleParts =
+        toFile
+            .getParentFile()
+            .listFiles(
+                (dir, fileName) ->
+                    fileName.startsWith(name + ".")
+                        && fileName.endsWith(PART_SUFFIX)
+                        && !fileName.equals(partFile.getName()));
+    if (staleParts != null) {
+      for (File stale : staleParts) {
+        if (!stale.delete()) Timber.e("delete error: %s", stale.getName());
+      }
+    }
+    if (partFile.exists()) Timber.d("Resume download: %s at %d", name, partFile.length());
+
+    client.get(
+        context,
+        serverUrl + "/models/" + name,
+        new RangeFileAsyncHttpResponseHandler(partFile) {
+          @Override
+          public void onFailure(int statusCode, Header[] headers, Throwable throwable, File file) {
+            Timber.e(throwable, "Download error: %s", name);
+            pendingModels.remove(name);
+          }
+
+          @Override
+          public void onCancel() {
+            // The partial file is kept and resumed on the next sync.
+            pendingModels.remove(name);
+          }
+
+          @Override
+          public void onSuccess(int statusCode, Header[] headers, File file) {
+            modelExecutor.execute(() -> installModel(partFile, toFile, sha256, serverFileTime));
+          }
+        });
+  }
+
+  private void installModel(File partFile, File toFile, String sha256, long serverFileTime) {
+    String name = toFile.getName();
+    try {
+      if (sha256 != null && !sha256.equals(getSha256(partFile))) {
+        Timber.e("Hash mismatch, discarding download: %s", name);
+        if (!partFile.delete()) Timber.e("delete error: %s", partFile.getName());
+        return;
+      }
+      if (!partFile.setLastModified(serverFileTime)) {
+        Timber.e("Set file time error: %s", name);
+      }
+      // Rename within the same directory replaces the old model atomically, so a model that is
+      // being loaded is never seen half written.
+      if (!partFile.renameTo(toFile)) {
+        Timber.e("Move error: %s", name);
+        return;
+      }
+      if (sha256 != null) ModelCache.getInstance(context).register(toFile, sha256);
+      Timber.i("Successful download: %s", name);
+      mainHandler.post(() -> serverListener.onAddModel(name));
+    } finally {
+      pendingModels.remove(name);
+    }
+  }
+
+  /** SHA-256 of a file, cached as long as the file's size and modification time are unchanged. */
+  private String getSha256(File file) {
+    FileHash cached = fileHashes.get(file.getPath());
+    if (cached != null
+        && cached.lastModified == file.lastModified()
+        && cached.length == file.length()) {
+      return cached.sha256;
+    }
+    try {
+      FileHash hash = new FileHash(file.lastModified(), file.length(), FileUtils.sha256(file));
+      fileHashes.put(file.getPath(), hash);
+      return hash.sha256;
+    } catch (IOException e) {
+      Timber.e(e, "Hash error: %s", file.getName());
+      return null;
+    }
+  }
+
+  private static String getHeader(Header[] headers, String name) {
+    if (headers == null) return null;
+    for (Header header : headers) {
+      if (header.getName().equalsIgnoreCase(name)) return header.getValue();
+    }
+    return null;
   }
 
   public void connect(String server) {
@@ -187,10 +353,13 @@ public class ServerCommunication {
 
     client.get(context, serverUrl + "/test", testResponseHandler);
     serverListener.onConnectionEstablished(ipAddress);
+    modelListETag = null;
+    restartModelPolling();
   }
 
   public void disconnect() {
     client.cancelRequests(context, true);
+    stopModelPolling();
     serverUrl = null;
     serverListener.onConnectionEstablished(context.getString(R.string.ip_placeholder));
   }
@@ -217,6 +386,25 @@ public class ServerCommunication {
     client.post(context, serverUrl + "/upload", params, new UploadResponseHandler(file));
   }
 
+  public void sendMetrics(JSONObject metrics) {
+    if (serverUrl == null || serverUrl.isEmpty()) {
+      return;
+    }
+    StringEntity entity = new StringEntity(metrics.toString(), "UTF-8");
+    client.post(
+        context,
+        serverUrl + "/metrics",
+        entity,
+        "application/json",
+        new JsonHttpResponseHandler() {
+          @Override
+          public void onFailure(
+              int statusCode, Header[] headers, Throwable throwable, JSONObject errorResponse) {
+            Timber.d("Metrics upload failed: %s", throwable.toString());
+          }
+        });
+  }
+
   public void uploadAll() {
     String logDir =
         Environment.getExternalStorageDirectory().getAbsolutePath()
@@ -235,14 +423,26 @@ public class ServerCommunication {
 
   public void stop() {
     client.cancelRequests(context, true);
+    stopModelPolling();
     nsdService.stop();
-    timer.cancel();
   }
 
   public Set<String> getServers() {
     return servers.keySet();
   }
 
+  private static class FileHash {
+    final long lastModified;
+    final long length;
+    final String sha256;
+
+    FileHash(long lastModified, long length, String sha256) {
+      this.lastModified = lastModified;
+      this.length = length;
+      this.sha256 = sha256;
+    }
+  }
+
   static class UploadResponseHandler extends JsonHttpResponseHandler {
     private final File file;
 
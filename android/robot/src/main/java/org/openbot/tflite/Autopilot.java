@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import org.openbot.utils.LatencyTracer;
 import org.openbot.vehicle.Control;
 import timber.log.Timber;
 
@@ -73,6 +74,7 @@ public class Autopilot extends Network {
     convertBitmapToByteBuffer(bitmap);
     convertIndicatorToByteBuffer(indicator);
     Trace.endSection(); // preprocessBitmap
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.PREPROCESS);
 
     // Run the inference call.
     Trace.beginSection("runInference");
@@ -90,6 +92,7 @@ public class Autopilot extends Network {
     long endTime = SystemClock.elapsedRealtime();
     Trace.endSection();
     Timber.v("Timecost to run model inference: %s", (endTime - startTime));
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.INFERENCE);
 
     Trace.endSection(); // "recognizeImage"
     return new Control(predicted_ctrl[0][0], predicted_ctrl[0][1]);
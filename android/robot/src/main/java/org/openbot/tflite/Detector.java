@@ -32,6 +32,7 @@ import java.util.List;
 import java.util.Locale;
 import java.util.PriorityQueue;
 import org.openbot.objectNav.ObjectNavFragment;
+import org.openbot.utils.LatencyTracer;
 import timber.log.Timber;
 
 /**
@@ -189,6 +190,7 @@ public abstract class Detector extends Network {
     convertBitmapToByteBuffer(bitmap);
     long endTime = SystemClock.elapsedRealtime();
     Timber.v("Timecost to convertBitmapToByteBuffer: %s", (endTime - startTime));
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.PREPROCESS);
 
     Trace.endSection(); // preprocessBitmap
 
@@ -204,6 +206,7 @@ public abstract class Detector extends Network {
     endTime = SystemClock.elapsedRealtime();
     Trace.endSection();
     Timber.v("Timecost to run model inference: %s", (endTime - startTime));
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.INFERENCE);
 
     Trace.endSection(); // "recognizeImage"
 
@@ -214,6 +217,7 @@ public abstract class Detector extends Network {
     } else recognitions = getRecognitions(className);
     endTime = SystemClock.elapsedRealtime();
     Timber.v("Timecost for postprocessing: %s", (endTime - startTime));
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.POSTPROCESS);
     return recognitions;
   }
 
@@ -236,6 +240,7 @@ public abstract class Detector extends Network {
     convertBitmapToByteBuffer(bitmap);
     long endTime = SystemClock.elapsedRealtime();
     Timber.v("Timecost to convertBitmapToByteBuffer: %s", (endTime - startTime));
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.PREPROCESS);
 
     Trace.endSection(); // preprocessBitmap
 
@@ -251,6 +256,7 @@ public abstract class Detector extends Network {
     endTime = SystemClock.elapsedRealtime();
     Trace.endSection();
     Timber.v("Timecost to run model inference: %s", (endTime - startTime));
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.INFERENCE);
 
     Trace.endSection(); // "recognizeImage"
 
@@ -258,6 +264,7 @@ public abstract class Detector extends Network {
     ArrayList<ArrayList<Recognition>> recognitions = getMultipleRecognitions(classNameFirst, classNameSecond);
     endTime = SystemClock.elapsedRealtime();
     Timber.v("Timecost for postprocessing: %s", (endTime - startTime));
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.POSTPROCESS);
 
     return recognitions;
   }
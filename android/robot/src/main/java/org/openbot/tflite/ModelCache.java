@@ -0,0 +1,221 @@
+package org.openbot.tflite;
+
+import android.content.Context;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.json.JSONException;
+import org.json.JSONObject;
+import org.openbot.utils.FileUtils;
+import timber.log.Timber;
+
+/**
+ * Shared read-only memory mappings of downloaded (FILE) models. All interpreters of the same model
+ * use one mapping, so its pages are read from flash once and shared through the page cache.
+ * Mappings are reference counted; a few unused ones are kept, so switching back and forth between
+ * models does not map and validate them again.
+ *
+ * <p>Before a model is mapped for the first time it is validated against a manifest of the
+ * content hashes of all known model files. A registered (verified) model whose size or modified
+ * time changed is hashed again and rejected unless its content is unchanged, e.g. after
+ * corruption, truncation or replacement without being registered again.
+ */
+public class ModelCache {
+  private static final String MANIFEST_NAME = "model_manifest.json";
+  // Unreferenced mappings that are kept around
+  private static final int MAX_UNUSED = 3;
+  // All TFLite flatbuffers carry this identifier at byte offset 4.
+  private static final String TFLITE_IDENTIFIER = "TFL3";
+
+  private static ModelCache instance;
+
+  private final File manifestFile;
+  private final JSONObject manifest;
+  private final Map<String, Entry> mappings = new HashMap<>();
+  // Acquired mappings by buffer, including those of files that were replaced meanwhile
+  private final Map<MappedByteBuffer, Entry> acquired = new IdentityHashMap<>();
+  // Access-ordered, the eldest unused mapping is evicted first.
+  private final LinkedHashMap<String, Entry> unused = new LinkedHashMap<>(16, 0.75f, true);
+
+  public static synchronized ModelCache getInstance(Context context) {
+    if (instance == null) instance = new ModelCache(context.getApplicationContext());
+    return instance;
+  }
+
+  private ModelCache(Context context) {
+    manifestFile = new File(context.getFilesDir(), MANIFEST_NAME);
+    manifest = loadManifest(manifestFile);
+  }
+
+  /**
+   * Records the content hash of a model file that was just written, e.g. after a verified
+   * download. Any cached mapping of an older version of the file is dropped; interpreters still
+   * using it keep it until they release it.
+   */
+  public synchronized void register(File file, String sha256) {
+    String key = file.getAbsolutePath();
+    mappings.remove(key);
+    unused.remove(key);
+    putManifestEntry(key, file, sha256, true);
+    saveManifest();
+  }
+
+  /**
+   * Maps the model file, or returns the existing mapping if the file has not changed. Each call
+   * must be paired with {@link #release(MappedByteBuffer)} of the returned buffer.
+   */
+  public synchronized MappedByteBuffer acquire(File file) throws IOException {
+    String key = file.getAbsolutePath();
+    Entry entry = mappings.get(key);
+    if (entry != null && !entry.matches(file)) {
+      // The file was replaced. Interpreters still using the old mapping keep it alive.
+      mappings.remove(key);
+      unused.remove(key);
+      entry = null;
+    }
+    if (entry == null) {
+      validate(file);
+      entry = new Entry(key, map(file), file.length(), file.lastModified());
+      mappings.put(key, entry);
+      Timber.d("Mapped model %s (%d KB)", file.getName(), entry.length / 1024);
+    }
+    if (entry.refCount++ == 0) acquired.put(entry.buffer, entry);
+    unused.remove(key);
+    return entry.buffer;
+  }
+
+  /**
+   * Releases a mapping returned by {@link #acquire(File)}. A mapping of a file that was replaced
+   * since is dropped with its last holder.
+   */
+  public synchronized void release(MappedByteBuffer buffer) {
+    Entry entry = acquired.get(buffer);
+    if (entry == null) return;
+    if (--entry.refCount == 0) {
+      acquired.remove(buffer);
+      String key = entry.key;
+      if (mappings.get(key) != entry) return;
+      unused.put(key, entry);
+      Iterator<String> iterator = unused.keySet().iterator();
+      while (unused.size() > MAX_UNUSED && iterator.hasNext()) {
+        // Dropping the last reference lets the mapping be unmapped by the garbage collector.
+        mappings.remove(iterator.next());
+        iterator.remove();
+      }
+    }
+  }
+
+  private void validate(File file) throws IOException {
+    if (!hasTfliteIdentifier(file)) {
+      throw new IOException("Not a TFLite model: " + file.getName());
+    }
+
+    String key = file.getAbsolutePath();
+    JSONObject expected = manifest.optJSONObject(key);
+    if (expected != null
+        && expected.optLong("length") == file.length()
+        && expected.optLong("lastModified") == file.lastModified()) {
+      return;
+    }
+
+    String sha256 = FileUtils.sha256(file);
+    boolean verified = expected != null && expected.optBoolean("verified");
+    boolean sameContent = expected != null && sha256.equals(expected.optString("sha256"));
+    if (verified && !sameContent) {
+      // A verified model was changed without being registered again.
+      throw new IOException("Model does not match manifest: " + file.getName());
+    }
+    // Files written by other means (e.g. imported or downloaded from Drive) may be replaced without
+    // being registered, so they are accepted and only their hash is recorded.
+    putManifestEntry(key, file, sha256, verified && sameContent);
+    saveManifest();
+  }
+
+  private static boolean hasTfliteIdentifier(File file) throws IOException {
+    byte[] header = new byte[8];
+    try (InputStream in = new FileInputStream(file)) {
+      if (in.read(header) != header.length) return false;
+    }
+    return TFLITE_IDENTIFIER.equals(new String(header, 4, 4, StandardCharsets.US_ASCII));
+  }
+
+  private static MappedByteBuffer map(File file) throws IOException {
+    try (FileInputStream inputStream = new FileInputStream(file)) {
+      FileChannel fileChannel = inputStream.getChannel();
+      // The mapping stays valid after the channel is closed.
+      return fileChannel.map(FileChannel.MapMode.READ_ONLY, 0, fileChannel.size());
+    }
+  }
+
+  private void putManifestEntry(String key, File file, String sha256, boolean verified) {
+    try {
+      JSONObject entry = new JSONObject();
+      entry.put("sha256", sha256);
+      entry.put("verified", verified);
+      entry.put("length", file.length());
+      entry.put("lastModified", file.lastModified());
+      manifest.put(key, entry);
+    } catch (JSONException e) {
+      Timber.e(e, "Manifest error");
+    }
+  }
+
+  private static JSONObject loadManifest(File file) {
+    if (file.exists()) {
+      try (InputStream in = new FileInputStream(file)) {
+        byte[] content = new byte[(int) file.length()];
+        int read = 0;
+        while (read < content.length) {
+          int n = in.read(content, read, content.length - read);
+          if (n < 0) break;
+          read += n;
+        }
+        return new JSONObject(new String(content, 0, read, StandardCharsets.UTF_8));
+      } catch (IOException | JSONException e) {
+        Timber.e(e, "Could not read model manifest");
+      }
+    }
+    return new JSONObject();
+  }
+
+  private void saveManifest() {
+    File tmpFile = new File(manifestFile.getPath() + ".tmp");
+    try (Writer writer = new FileWriter(tmpFile)) {
+      writer.write(manifest.toString());
+    } catch (IOException e) {
+      Timber.e(e, "Could not write model manifest");
+      return;
+    }
+    if (!tmpFile.renameTo(manifestFile)) Timber.e("Could not write model manifest");
+  }
+
+  private static class Entry {
+    final String key;
+    final MappedByteBuffer buffer;
+    final long length;
+    final long lastModified;
+    int refCount = 0;
+
+    Entry(String key, MappedByteBuffer buffer, long length, long lastModified) {
+      this.key = key;
+      this.buffer = buffer;
+      this.length = length;
+      this.lastModified = lastModified;
+    }
+
+    boolean matches(File file) {
+      return file.length() == length && file.lastModified() == lastModified;
+    }
+  }
+}
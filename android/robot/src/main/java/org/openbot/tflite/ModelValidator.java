@@ -0,0 +1,209 @@
+package org.openbot.tflite;
+
+import android.content.Context;
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.tensorflow.lite.DataType;
+import org.tensorflow.lite.Interpreter;
+import org.tensorflow.lite.Tensor;
+import timber.log.Timber;
+
+/**
+ * Checks downloaded (FILE) models ahead of time: the model must load, its image input must match
+ * the input size configured for it, and its outputs and quantization must be the ones the {@link
+ * Network} of its class expects. Results are cached per file version, so a model that is known to
+ * be invalid is rejected by {@link Network} without loading it.
+ */
+public class ModelValidator {
+
+  /** Outcome of validating a model file. */
+  public static class Result {
+    public final boolean valid;
+    public final String message;
+    public final int[] inputShape;
+    public final DataType inputType;
+    public final float inputScale;
+    public final int inputZeroPoint;
+    public final int outputCount;
+
+    Result(
+        boolean valid,
+        String message,
+        int[] inputShape,
+        DataType inputType,
+        float inputScale,
+        int inputZeroPoint,
+        int outputCount) {
+      this.valid = valid;
+      this.message = message;
+      this.inputShape = inputShape;
+      this.inputType = inputType;
+      this.inputScale = inputScale;
+      this.inputZeroPoint = inputZeroPoint;
+      this.outputCount = outputCount;
+    }
+
+    static Result invalid(String message) {
+      return new Result(false, message, null, null, 0, 0, 0);
+    }
+  }
+
+  private static final Map<String, Result> results = new ConcurrentHashMap<>();
+
+  private ModelValidator() {}
+
+  /** @return the cached result for the current version of the model file, or null if unknown. */
+  public static Result getCachedResult(Model model) {
+    if (model.pathType != Model.PATH_TYPE.FILE) return null;
+    return results.get(getKey(new File(model.path)));
+  }
+
+  /** Validates the model file and caches the result. Blocks while the model is loaded. */
+  public static Result validate(Context context, Model model) {
+    if (model.pathType != Model.PATH_TYPE.FILE) {
+      return Result.invalid("Not a downloaded model: " + model.name);
+    }
+    File file = new File(model.path);
+    String key = getKey(file);
+    Result cached = results.get(key);
+    if (cached != null) return cached;
+
+    Result result;
+    if (!file.exists()) {
+      result = Result.invalid("Model file not found: " + file.getName());
+    } else {
+      ModelCache modelCache = ModelCache.getInstance(context);
+      try {
+        MappedByteBuffer buffer = modelCache.acquire(file);
+        try {
+          result = inspect(model, buffer);
+        } finally {
+          modelCache.release(buffer);
+        }
+      } catch (IOException | RuntimeException e) {
+        result = Result.invalid(e.getMessage());
+      }
+    }
+
+    Timber.d("Validated %s: %s", model.name, result.valid ? "ok" : result.message);
+    results.put(key, result);
+    return result;
+  }
+
+  private static Result inspect(Model model, MappedByteBuffer buffer) {
+    Interpreter interpreter = new Interpreter(buffer, new Interpreter.Options().setNumThreads(1));
+    try {
+      // The image input is the 4D tensor with 3 channels; other inputs (e.g. commands) are ignored.
+      Tensor image = null;
+      for (int i = 0; i < interpreter.getInputTensorCount(); i++) {
+        int[] shape = interpreter.getInputTensor(i).shape();
+        if (shape.length == 4 && shape[3] == 3) {
+          image = interpreter.getInputTensor(i);
+          break;
+        }
+      }
+      if (image == null) return Result.invalid("No image input in " + model.name);
+
+      int[] expected =
+          new int[] {1, model.getInputSize().getHeight(), model.getInputSize().getWidth(), 3};
+      if (!Arrays.equals(image.shape(), expected)) {
+        return Result.invalid(
+            String.format(
+                Locale.US,
+                "Invalid tensor dimensions: %s instead of %s",
+                Arrays.toString(image.shape()),
+                Arrays.toString(expected)));
+      }
+      String error = checkTensors(model, interpreter, image);
+      if (error != null) return Result.invalid(error);
+      Tensor.QuantizationParams quantization = image.quantizationParams();
+      return new Result(
+          true,
+          null,
+          image.shape(),
+          image.dataType(),
+          quantization.getScale(),
+          quantization.getZeroPoint(),
+          interpreter.getOutputTensorCount());
+    } finally {
+      interpreter.close();
+    }
+  }
+
+  /** @return why the outputs or quantization don't fit the network of the model, or null */
+  private static String checkTensors(Model model, Interpreter interpreter, Tensor image) {
+    if (model.classType == null) return null;
+    Tensor output = interpreter.getOutputTensor(0);
+    switch (model.classType) {
+      case AUTOPILOT:
+      case NAVIGATION:
+        // The control is read into a float[1][2].
+        if (!Arrays.equals(output.shape(), new int[] {1, 2})) {
+          return String.format(
+              Locale.US,
+              "Invalid output dimensions: %s instead of [1, 2]",
+              Arrays.toString(output.shape()));
+        }
+        if (output.dataType() != DataType.FLOAT32) {
+          return "Unsupported output type: " + output.dataType();
+        }
+        return checkInputType(image, DataType.FLOAT32);
+      case MOBILENET:
+      case EFFICIENTDET:
+        // Locations, classes, scores and the number of detections of the post-processing op.
+        if (interpreter.getOutputTensorCount() < 4 || !hasBoxOutput(interpreter)) {
+          return "Expected the 4 outputs of a detection post-processing op";
+        }
+        return checkInputType(image, DataType.UINT8);
+      case YOLOV4:
+        if (interpreter.getOutputTensorCount() < 2 || !hasBoxOutput(interpreter)) {
+          return "Expected box and score outputs";
+        }
+        return checkInputType(image, DataType.FLOAT32);
+      case YOLOV5:
+        int[] shape = output.shape();
+        if (shape.length != 3 || shape[2] <= 5) {
+          return "Invalid output dimensions: " + Arrays.toString(shape);
+        }
+        // DetectorYoloV5 takes the model as quantized if its output is, and then quantizes the
+        // input with the scale of the input tensor.
+        Tensor.QuantizationParams outputQuantization = output.quantizationParams();
+        boolean quantizedOutput =
+            (int) (outputQuantization.getScale() + outputQuantization.getZeroPoint()) != 0;
+        if (!quantizedOutput) return checkInputType(image, DataType.FLOAT32);
+        if (image.dataType() != DataType.UINT8 && image.dataType() != DataType.INT8) {
+          return "Unsupported input type for a quantized model: " + image.dataType();
+        }
+        if (image.quantizationParams().getScale() <= 0) {
+          return "Invalid input quantization scale: " + image.quantizationParams().getScale();
+        }
+        return null;
+      default:
+        return null;
+    }
+  }
+
+  private static String checkInputType(Tensor image, DataType expected) {
+    if (image.dataType() == expected) return null;
+    return String.format(
+        Locale.US, "Unsupported input type: %s instead of %s", image.dataType(), expected);
+  }
+
+  /** @return whether an output holds boxes, i.e. has the shape [1, detections, 4] */
+  private static boolean hasBoxOutput(Interpreter interpreter) {
+    for (int i = 0; i < interpreter.getOutputTensorCount(); i++) {
+      int[] shape = interpreter.getOutputTensor(i).shape();
+      if (shape.length == 3 && shape[0] == 1 && shape[2] == 4) return true;
+    }
+    return false;
+  }
+
+  private static String getKey(File file) {
+    return file.getAbsolutePath() + ":" + file.length() + ":" + file.lastModified();
+  }
+}
@@ -11,6 +11,7 @@ import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.ByteOrder;
 import java.util.Arrays;
+import org.openbot.utils.LatencyTracer;
 import org.openbot.vehicle.Control;
 import timber.log.Timber;
 
@@ -73,6 +74,29 @@ public class Navigation extends Network {
     convertBitmapToByteBuffer(bitmap);
     convertGoalToByteBuffer(goalDistance, goalSin, goalCos);
     Trace.endSection(); // preprocessBitmap
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.PREPROCESS);
+    return runInference();
+  }
+
+  /**
+   * Runs the policy on an image given as ARGB pixels of the input size (row by row), e.g. converted
+   * straight from a camera frame, without going through a Bitmap.
+   */
+  public Control recognizeImage(
+      final int[] pixels, final float goalDistance, final float goalSin, final float goalCos) {
+    Trace.beginSection("recognizeImage");
+    Trace.beginSection("preprocessPixels");
+    imgData.rewind();
+    for (int i = 0; i < getImageSizeX() * getImageSizeY(); i++) {
+      addPixelValue(pixels[i]);
+    }
+    convertGoalToByteBuffer(goalDistance, goalSin, goalCos);
+    Trace.endSection(); // preprocessPixels
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.PREPROCESS);
+    return runInference();
+  }
+
+  private Control runInference() {
 
     // Run the inference call.
     Trace.beginSection("runInference");
@@ -90,6 +114,7 @@ public class Navigation extends Network {
     long endTime = SystemClock.elapsedRealtime();
     Trace.endSection();
     Timber.v("Timecost to run model inference: %s", (endTime - startTime));
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.INFERENCE);
 
     Trace.endSection(); // "recognizeImage"
     return new Control(predicted_ctrl[0][0], predicted_ctrl[0][1]);
@@ -66,6 +66,11 @@ public abstract class Network {
   /** An instance of the driver class to run model inference with Tensorflow Lite. */
   protected Interpreter tflite;
 
+  /** Shared mapping of a FILE model, released when the network is closed. */
+  private ModelCache modelCache;
+
+  private MappedByteBuffer mappedModel;
+
   /** A ByteBuffer to hold image data, to be feed into Tensorflow Lite as inputs. */
   protected ByteBuffer imgData = null;
   /** A HashMap to hold output data, to be feed into Tensorflow Lite as outputs. */
@@ -92,8 +97,21 @@ public abstract class Network {
     tfliteOptions.setNumThreads(numThreads);
 
     if (model.pathType == Model.PATH_TYPE.FILE) {
+      // Don't load models that are already known not to fit, see ModelValidator.
+      ModelValidator.Result validation = ModelValidator.getCachedResult(model);
+      if (validation != null && !validation.valid) {
+        throw new IllegalArgumentException(validation.message);
+      }
       File modelFile = new File(model.path);
-      tflite = new Interpreter(modelFile, tfliteOptions);
+      modelCache = ModelCache.getInstance(activity);
+      MappedByteBuffer tfliteModel = modelCache.acquire(modelFile);
+      try {
+        tflite = new Interpreter(tfliteModel, tfliteOptions);
+      } catch (RuntimeException e) {
+        modelCache.release(tfliteModel);
+        throw e;
+      }
+      mappedModel = tfliteModel;
     } else if (model.pathType == Model.PATH_TYPE.ASSET) {
       MappedByteBuffer tfliteModel = loadModelFile(activity, model);
       tflite = new Interpreter(tfliteModel, tfliteOptions);
@@ -148,6 +166,10 @@ public abstract class Network {
       tflite.close();
       tflite = null;
     }
+    if (mappedModel != null) {
+      modelCache.release(mappedModel);
+      mappedModel = null;
+    }
     if (gpuDelegate != null) {
       gpuDelegate.close();
       gpuDelegate = null;
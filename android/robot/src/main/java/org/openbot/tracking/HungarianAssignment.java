@@ -0,0 +1,87 @@
+package org.openbot.tracking;
+
+import java.util.Arrays;
+
+/**
+ * Minimum cost assignment between rows and columns of a (possibly rectangular) cost matrix using
+ * the Hungarian algorithm with potentials, O(n^2 m).
+ */
+class HungarianAssignment {
+
+  private HungarianAssignment() {}
+
+  /**
+   * @param cost cost[i][j] of assigning row i to column j; all rows must have the same length.
+   * @return for each row the assigned column, or -1 if the row is unassigned (only possible when
+   *     there are more rows than columns).
+   */
+  static int[] solve(double[][] cost) {
+    int rows = cost.length;
+    if (rows == 0) return new int[0];
+    int cols = cost[0].length;
+
+    int[] assignment = new int[rows];
+    Arrays.fill(assignment, -1);
+    if (cols == 0) return assignment;
+
+    // The algorithm needs n <= m, so work on the transpose otherwise.
+    boolean transposed = rows > cols;
+    int n = transposed ? cols : rows;
+    int m = transposed ? rows : cols;
+
+    // 1-based arrays, index 0 is a sentinel.
+    double[] u = new double[n + 1];
+    double[] v = new double[m + 1];
+    int[] p = new int[m + 1];
+    int[] way = new int[m + 1];
+    double[] minv = new double[m + 1];
+    boolean[] used = new boolean[m + 1];
+
+    for (int i = 1; i <= n; i++) {
+      p[0] = i;
+      int j0 = 0;
+      Arrays.fill(minv, Double.POSITIVE_INFINITY);
+      Arrays.fill(used, false);
+      do {
+        used[j0] = true;
+        int i0 = p[j0];
+        double delta = Double.POSITIVE_INFINITY;
+        int j1 = 0;
+        for (int j = 1; j <= m; j++) {
+          if (used[j]) continue;
+          double c = transposed ? cost[j - 1][i0 - 1] : cost[i0 - 1][j - 1];
+          double cur = c - u[i0] - v[j];
+          if (cur < minv[j]) {
+            minv[j] = cur;
+            way[j] = j0;
+          }
+          if (minv[j] < delta) {
+            delta = minv[j];
+            j1 = j;
+          }
+        }
+        for (int j = 0; j <= m; j++) {
+          if (used[j]) {
+            u[p[j]] += delta;
+            v[j] -= delta;
+          } else {
+            minv[j] -= delta;
+          }
+        }
+        j0 = j1;
+      } while (p[j0] != 0);
+      do {
+        int j1 = way[j0];
+        p[j0] = p[j1];
+        j0 = j1;
+      } while (j0 != 0);
+    }
+
+    for (int j = 1; j <= m; j++) {
+      if (p[j] == 0) continue;
+      if (transposed) assignment[j - 1] = p[j] - 1;
+      else assignment[p[j] - 1] = j - 1;
+    }
+    return assignment;
+  }
+}
@@ -0,0 +1,124 @@
+package org.openbot.tracking;
+
+import android.graphics.RectF;
+
+/**
+ * Constant-velocity Kalman filter for a bounding box. The box center is modelled with position and
+ * velocity along each axis, width and height as slowly varying (random walk). The axes are
+ * independent, so each is a small 2x2 (or 1x1) filter instead of one 8x8 filter.
+ */
+class KalmanBoxFilter {
+  // Process noise: acceleration of the center (px/s^2) and change of size (px/s).
+  private static final float ACCELERATION_NOISE = 400f;
+  private static final float SIZE_NOISE = 50f;
+  // Measurement noise of the detector (px).
+  private static final float POSITION_MEASUREMENT_NOISE = 10f;
+  private static final float SIZE_MEASUREMENT_NOISE = 20f;
+
+  private final Axis x = new Axis();
+  private final Axis y = new Axis();
+  private final Scalar width = new Scalar();
+  private final Scalar height = new Scalar();
+  private long timestampMs;
+
+  KalmanBoxFilter(RectF box, long timestampMs) {
+    x.init(box.centerX());
+    y.init(box.centerY());
+    width.init(box.width());
+    height.init(box.height());
+    this.timestampMs = timestampMs;
+  }
+
+  /** Advances the state to the given time. */
+  void predict(long timestampMs) {
+    float dt = (timestampMs - this.timestampMs) / 1000f;
+    if (dt <= 0) return;
+    x.predict(dt);
+    y.predict(dt);
+    width.predict(dt);
+    height.predict(dt);
+    this.timestampMs = timestampMs;
+  }
+
+  /** Advances the state to the measurement time and corrects it with the measured box. */
+  void update(RectF box, long timestampMs) {
+    predict(timestampMs);
+    x.update(box.centerX());
+    y.update(box.centerY());
+    width.update(box.width());
+    height.update(box.height());
+  }
+
+  /** Box at the given time without changing the filter state. */
+  void getBox(long timestampMs, RectF out) {
+    float dt = Math.max(0, (timestampMs - this.timestampMs) / 1000f);
+    float cx = x.position + x.velocity * dt;
+    float cy = y.position + y.velocity * dt;
+    float halfWidth = Math.max(0, width.value) / 2;
+    float halfHeight = Math.max(0, height.value) / 2;
+    out.set(cx - halfWidth, cy - halfHeight, cx + halfWidth, cy + halfHeight);
+  }
+
+  private static class Axis {
+    float position;
+    float velocity;
+    // Covariance [[p00, p01], [p01, p11]]
+    float p00;
+    float p01;
+    float p11;
+
+    void init(float position) {
+      this.position = position;
+      velocity = 0;
+      p00 = POSITION_MEASUREMENT_NOISE * POSITION_MEASUREMENT_NOISE;
+      p01 = 0;
+      p11 = 1000f * 1000f; // velocity unknown
+    }
+
+    void predict(float dt) {
+      position += velocity * dt;
+      float q = ACCELERATION_NOISE * ACCELERATION_NOISE;
+      float dt2 = dt * dt;
+      // P = F P F^T + Q with F = [[1, dt], [0, 1]] and white-noise acceleration Q
+      p00 += dt * (2 * p01 + dt * p11) + q * dt2 * dt2 / 4;
+      p01 += dt * p11 + q * dt2 * dt / 2;
+      p11 += q * dt2;
+    }
+
+    void update(float measurement) {
+      float r = POSITION_MEASUREMENT_NOISE * POSITION_MEASUREMENT_NOISE;
+      float s = p00 + r;
+      float k0 = p00 / s;
+      float k1 = p01 / s;
+      float innovation = measurement - position;
+      position += k0 * innovation;
+      velocity += k1 * innovation;
+      float newP00 = (1 - k0) * p00;
+      float newP01 = (1 - k0) * p01;
+      float newP11 = p11 - k1 * p01;
+      p00 = newP00;
+      p01 = newP01;
+      p11 = newP11;
+    }
+  }
+
+  private static class Scalar {
+    float value;
+    float variance;
+
+    void init(float value) {
+      this.value = value;
+      variance = SIZE_MEASUREMENT_NOISE * SIZE_MEASUREMENT_NOISE;
+    }
+
+    void predict(float dt) {
+      variance += SIZE_NOISE * SIZE_NOISE * dt;
+    }
+
+    void update(float measurement) {
+      float k = variance / (variance + SIZE_MEASUREMENT_NOISE * SIZE_MEASUREMENT_NOISE);
+      value += k * (measurement - value);
+      variance *= (1 - k);
+    }
+  }
+}
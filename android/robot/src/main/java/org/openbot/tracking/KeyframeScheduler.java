@@ -0,0 +1,70 @@
+package org.openbot.tracking;
+
+/**
+ * Decides on which camera frames the object detector runs. In between these keyframes the target
+ * is followed by a cheap tracker. The detector runs more often when tracking confidence drops and
+ * less often when tracking is reliable, but never more often than its measured latency allows.
+ */
+public class KeyframeScheduler {
+  // Tracking confidence below which a keyframe is requested immediately
+  private static final float MIN_CONFIDENCE = 0.5f;
+  // Tracking confidence above which the keyframe interval may grow to its maximum
+  private static final float GOOD_CONFIDENCE = 0.8f;
+  private static final int MAX_INTERVAL = 15;
+  private static final float SMOOTHING = 0.1f;
+
+  private float frameIntervalMs = 33;
+  private float detectorLatencyMs = 0;
+  private long lastFrameTime = -1;
+  private int framesSinceKeyframe = Integer.MAX_VALUE;
+  private float confidence = 0;
+
+  /** Call once per camera frame. */
+  public void onFrame(long timestampMs) {
+    if (lastFrameTime >= 0) {
+      frameIntervalMs += SMOOTHING * ((timestampMs - lastFrameTime) - frameIntervalMs);
+    }
+    lastFrameTime = timestampMs;
+    if (framesSinceKeyframe < Integer.MAX_VALUE) framesSinceKeyframe++;
+  }
+
+  /** @return true if the detector should run on the current frame. */
+  public boolean shouldDetect(boolean hasTarget) {
+    if (!hasTarget || confidence < MIN_CONFIDENCE) return true;
+    return framesSinceKeyframe >= getInterval();
+  }
+
+  public void onDetection(long latencyMs) {
+    detectorLatencyMs =
+        detectorLatencyMs == 0
+            ? latencyMs
+            : detectorLatencyMs + SMOOTHING * (latencyMs - detectorLatencyMs);
+    framesSinceKeyframe = 0;
+    confidence = 1;
+  }
+
+  public void onTracked(float confidence) {
+    this.confidence = confidence;
+  }
+
+  /** @return true if the last tracking result is reliable enough to steer by. */
+  public boolean isTracking() {
+    return confidence >= MIN_CONFIDENCE;
+  }
+
+  public void reset() {
+    framesSinceKeyframe = Integer.MAX_VALUE;
+    confidence = 0;
+  }
+
+  /** Number of frames between keyframes for the current confidence and detector latency. */
+  public int getInterval() {
+    // The detector cannot run more often than its latency permits anyway.
+    int minInterval = Math.max(1, (int) Math.ceil(detectorLatencyMs / frameIntervalMs));
+    float trust =
+        Math.max(
+            0, Math.min(1, (confidence - MIN_CONFIDENCE) / (GOOD_CONFIDENCE - MIN_CONFIDENCE)));
+    int interval = minInterval + Math.round(trust * (MAX_INTERVAL - minInterval));
+    return Math.max(minInterval, Math.min(interval, MAX_INTERVAL));
+  }
+}
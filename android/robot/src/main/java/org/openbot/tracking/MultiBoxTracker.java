@@ -29,6 +29,8 @@ import android.graphics.RectF;
 import android.text.TextUtils;
 import android.util.Pair;
 import android.util.TypedValue;
+import java.util.ArrayList;
+import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
@@ -39,10 +41,20 @@ import org.openbot.env.Logger;
 import org.openbot.tflite.Detector.Recognition;
 import org.openbot.vehicle.Control;
 
-/** A tracker that handles non-max suppression and matches existing objects to new detections. */
+/**
+ * A tracker that matches existing objects to new detections. Detections are associated with
+ * tracks by IoU using the Hungarian algorithm and every track carries a constant-velocity Kalman
+ * filter, so tracks keep their identity across frames, survive a few missed detections and can be
+ * extrapolated between detector runs with {@link #predict(long)}.
+ */
 public class MultiBoxTracker {
   private static final float TEXT_SIZE_DIP = 18;
   private static final float MIN_SIZE = 16.0f;
+  // Minimum overlap for a detection to be associated with an existing track
+  private static final float MIN_IOU = 0.3f;
+  // Tracks without a matching detection are kept (and extrapolated) for this long
+  private static final long MAX_COAST_MS = 1000;
+  private static final int MAX_MISSES = 10;
   private static final int[] COLORS = {
     Color.BLUE,
     Color.RED,
@@ -63,7 +75,7 @@ public class MultiBoxTracker {
   final List<Pair<Float, RectF>> screenRects = new LinkedList<Pair<Float, RectF>>();
   private final Logger logger = new Logger();
   private final Queue<Integer> availableColors = new LinkedList<Integer>();
-  private final List<TrackedRecognition> trackedObjects = new LinkedList<TrackedRecognition>();
+  private final List<TrackedRecognition> trackedObjects = new ArrayList<TrackedRecognition>();
   private final Paint boxPaint = new Paint();
   private final float textSizePx;
   private final BorderedText borderedText;
@@ -74,6 +86,8 @@ public class MultiBoxTracker {
   private float leftControl;
   private float rightControl;
   private boolean useDynamicSpeed = false;
+  private int nextTrackId = 0;
+  private int targetId = -1;
 
   public MultiBoxTracker(final Context context) {
     for (final int color : COLORS) {
@@ -118,9 +132,57 @@ public class MultiBoxTracker {
     }
   }
 
+  /**
+   * Updates the tracks with the detections of a frame.
+   *
+   * @param results detections in frame coordinates
+   * @param timestamp capture time of the frame in ms (SystemClock.elapsedRealtime())
+   */
   public synchronized void trackResults(final List<Recognition> results, final long timestamp) {
     logger.i("Processing %d results from %d", results.size(), timestamp);
-    processResults(results);
+    processResults(results, timestamp);
+  }
+
+  /**
+   * Moves all tracks to their predicted position at the given time, e.g. for frames on which the
+   * detector did not run.
+   *
+   * @param timestamp time in ms (SystemClock.elapsedRealtime())
+   */
+  public synchronized void predict(final long timestamp) {
+    for (final TrackedRecognition track : trackedObjects) {
+      track.filter.getBox(Math.min(timestamp, track.lastSeen + MAX_COAST_MS), track.location);
+    }
+  }
+
+  /**
+   * Copies the current box of the target into out.
+   *
+   * @return false if there is no target
+   */
+  public synchronized boolean getTargetLocation(final RectF out) {
+    final TrackedRecognition target = selectTarget();
+    if (target == null) return false;
+    out.set(target.location);
+    return true;
+  }
+
+  /**
+   * Corrects the target track with a box found by a tracker between detections. The detection
+   * bookkeeping (lastSeen, misses) is left alone, so the track still expires without detections.
+   *
+   * @param timestamp time in ms (SystemClock.elapsedRealtime())
+   */
+  public synchronized void updateTargetLocation(final RectF location, final long timestamp) {
+    final TrackedRecognition target = selectTarget();
+    if (target == null) return;
+    target.filter.update(location, timestamp);
+    target.filter.getBox(timestamp, target.location);
+  }
+
+  /** @return true if there is a track that updateTarget() will steer towards. */
+  public synchronized boolean hasTarget() {
+    return selectTarget() != null;
   }
 
   private Matrix getFrameToCanvasMatrix() {
@@ -152,9 +214,9 @@ public class MultiBoxTracker {
    * @return the adjusted speed control for left and right wheels in the range -1.0 ... 1.0
    */
   public synchronized Control updateTarget() {
-    if (!trackedObjects.isEmpty()) {
-      // Pick detection with highest probability
-      final RectF trackedPos = new RectF(trackedObjects.get(0).location);
+    final TrackedRecognition target = selectTarget();
+    if (target != null) {
+      final RectF trackedPos = new RectF(target.location);
       final boolean rotated = sensorOrientation % 180 == 90;
       float imgWidth = (float) (rotated ? frameHeight : frameWidth);
       // calculate track box area for distance estimate
@@ -216,8 +278,13 @@ public class MultiBoxTracker {
       final String labelString =
           !TextUtils.isEmpty(recognition.title)
               ? String.format(
-                  Locale.US, "%s %.2f", recognition.title, (100 * recognition.detectionConfidence))
-              : String.format(Locale.US, "%.2f", 100 * recognition.detectionConfidence);
+                  Locale.US,
+                  "#%d %s %.2f",
+                  recognition.id,
+                  recognition.title,
+                  (100 * recognition.detectionConfidence))
+              : String.format(
+                  Locale.US, "#%d %.2f", recognition.id, 100 * recognition.detectionConfidence);
       borderedText.drawText(
           canvas, trackedPos.left + cornerSize, trackedPos.top, labelString + "%", boxPaint);
 
@@ -233,12 +300,30 @@ public class MultiBoxTracker {
     }
   }
 
-  public void clearTrackedObjects() {
+  public synchronized void clearTrackedObjects() {
     trackedObjects.clear();
+    targetId = -1;
   }
 
-  private void processResults(final List<Recognition> results) {
-    final List<Pair<Float, Recognition>> rectsToTrack = new LinkedList<Pair<Float, Recognition>>();
+  /**
+   * Keep following the same object as long as its track is alive, otherwise pick the most
+   * confident track that was just detected.
+   */
+  private TrackedRecognition selectTarget() {
+    TrackedRecognition best = null;
+    for (final TrackedRecognition track : trackedObjects) {
+      if (track.id == targetId) return track;
+      if (track.misses == 0
+          && (best == null || track.detectionConfidence > best.detectionConfidence)) {
+        best = track;
+      }
+    }
+    targetId = best != null ? best.id : -1;
+    return best;
+  }
+
+  private void processResults(final List<Recognition> results, final long timestamp) {
+    final List<Recognition> rectsToTrack = new ArrayList<>();
 
     screenRects.clear();
     final Matrix rgbFrameToScreen = new Matrix(getFrameToCanvasMatrix());
@@ -262,32 +347,86 @@ public class MultiBoxTracker {
         continue;
       }
 
-      rectsToTrack.add(new Pair<Float, Recognition>(result.getConfidence(), result));
+      rectsToTrack.add(result);
     }
 
-    // Clear so objects don't stay if nothing detected.
-    trackedObjects.clear();
+    // Predict all tracks to the time of this frame before matching.
+    final RectF predicted = new RectF();
+    final int numTracks = trackedObjects.size();
+    final double[][] cost = new double[numTracks][rectsToTrack.size()];
+    for (int i = 0; i < numTracks; i++) {
+      final TrackedRecognition track = trackedObjects.get(i);
+      track.filter.predict(timestamp);
+      track.filter.getBox(timestamp, predicted);
+      for (int j = 0; j < rectsToTrack.size(); j++) {
+        final Recognition detection = rectsToTrack.get(j);
+        final boolean sameClass = TextUtils.equals(track.title, detection.getTitle());
+        cost[i][j] = sameClass ? 1.0 - iou(predicted, detection.getLocation()) : 1.0;
+      }
+    }
 
-    if (rectsToTrack.isEmpty()) {
-      logger.v("Nothing to track, aborting.");
-      return;
+    final int[] assignment = HungarianAssignment.solve(cost);
+    final boolean[] matched = new boolean[rectsToTrack.size()];
+    for (int i = 0; i < numTracks; i++) {
+      final TrackedRecognition track = trackedObjects.get(i);
+      final int j = assignment[i];
+      if (j >= 0 && 1.0 - cost[i][j] >= MIN_IOU) {
+        final Recognition detection = rectsToTrack.get(j);
+        matched[j] = true;
+        track.filter.update(detection.getLocation(), timestamp);
+        track.detectionConfidence = detection.getConfidence();
+        track.lastSeen = timestamp;
+        track.misses = 0;
+      } else {
+        track.misses++;
+      }
+      track.filter.getBox(timestamp, track.location);
     }
 
-    // trackedObjects.clear();
-    for (final Pair<Float, Recognition> potential : rectsToTrack) {
-      final TrackedRecognition trackedRecognition = new TrackedRecognition();
-      trackedRecognition.detectionConfidence = potential.first;
-      trackedRecognition.location = new RectF(potential.second.getLocation());
-      trackedRecognition.title = potential.second.getTitle();
-      trackedRecognition.color = COLORS[trackedObjects.size()];
-      trackedObjects.add(trackedRecognition);
+    // Drop tracks that have not been seen for a while.
+    final Iterator<TrackedRecognition> iterator = trackedObjects.iterator();
+    while (iterator.hasNext()) {
+      final TrackedRecognition track = iterator.next();
+      if (track.misses > MAX_MISSES || timestamp - track.lastSeen > MAX_COAST_MS) {
+        logger.v("Lost track " + track.id);
+        iterator.remove();
+      }
+    }
 
+    // Start new tracks for unmatched detections.
+    for (int j = 0; j < rectsToTrack.size(); j++) {
+      if (matched[j]) continue;
       if (trackedObjects.size() >= COLORS.length) {
         break;
       }
+      final Recognition detection = rectsToTrack.get(j);
+      final TrackedRecognition trackedRecognition = new TrackedRecognition();
+      trackedRecognition.id = nextTrackId++;
+      trackedRecognition.detectionConfidence = detection.getConfidence();
+      trackedRecognition.location = new RectF(detection.getLocation());
+      trackedRecognition.title = detection.getTitle();
+      trackedRecognition.color = COLORS[trackedRecognition.id % COLORS.length];
+      trackedRecognition.filter = new KalmanBoxFilter(detection.getLocation(), timestamp);
+      trackedRecognition.lastSeen = timestamp;
+      trackedObjects.add(trackedRecognition);
+    }
+
+    if (trackedObjects.isEmpty()) {
+      logger.v("Nothing to track.");
     }
   }
 
+  private static float iou(final RectF a, final RectF b) {
+    final float left = Math.max(a.left, b.left);
+    final float top = Math.max(a.top, b.top);
+    final float right = Math.min(a.right, b.right);
+    final float bottom = Math.min(a.bottom, b.bottom);
+    if (right <= left || bottom <= top) return 0;
+    final float intersection = (right - left) * (bottom - top);
+    final float union = a.width() * a.height() + b.width() * b.height() - intersection;
+    return union > 0 ? intersection / union : 0;
+  }
+
   /**
    * Set use of dynamic speed on or off (used in updateTarget())
    *
@@ -298,9 +437,13 @@ public class MultiBoxTracker {
   }
 
   private static class TrackedRecognition {
+    int id;
     RectF location;
     float detectionConfidence;
     int color;
     String title;
+    KalmanBoxFilter filter;
+    long lastSeen;
+    int misses;
   }
 }
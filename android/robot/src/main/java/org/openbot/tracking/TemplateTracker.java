@@ -0,0 +1,152 @@
+package org.openbot.tracking;
+
+import android.graphics.RectF;
+import androidx.camera.core.ImageProxy;
+import java.nio.ByteBuffer;
+
+/**
+ * Cheap single-object tracker for the frames between detector runs. It keeps a small, zero-mean
+ * luma template of the target and finds its new position by normalized cross-correlation in a
+ * window around the last position. Frames are read from the Y plane at reduced resolution, so
+ * tracking takes a fraction of a millisecond and needs no RGB conversion.
+ */
+public class TemplateTracker {
+  // Every SUBSAMPLE-th pixel of the Y plane is used in both directions.
+  private static final int SUBSAMPLE = 4;
+  private static final int TEMPLATE_SIZE = 24;
+  // Search radius in template pixels
+  private static final int SEARCH_RADIUS = 6;
+
+  private byte[] luma = new byte[0];
+  private int lumaWidth;
+  private int lumaHeight;
+
+  private final float[] template = new float[TEMPLATE_SIZE * TEMPLATE_SIZE];
+  private final float[] patch = new float[TEMPLATE_SIZE * TEMPLATE_SIZE];
+  private final RectF box = new RectF();
+  private boolean hasTemplate = false;
+  private float confidence = 0;
+
+  /**
+   * Copies a subsampled version of the Y plane. Must be called while the image is still open.
+   *
+   * @param mirror true if the frame is mirrored horizontally before detection (front camera)
+   */
+  public void setFrame(ImageProxy image, boolean mirror) {
+    ImageProxy.PlaneProxy plane = image.getPlanes()[0];
+    ByteBuffer buffer = plane.getBuffer();
+    int rowStride = plane.getRowStride();
+    int pixelStride = plane.getPixelStride();
+
+    lumaWidth = image.getWidth() / SUBSAMPLE;
+    lumaHeight = image.getHeight() / SUBSAMPLE;
+    if (luma.length != lumaWidth * lumaHeight) luma = new byte[lumaWidth * lumaHeight];
+
+    for (int y = 0; y < lumaHeight; y++) {
+      int rowOffset = y * SUBSAMPLE * rowStride;
+      for (int x = 0; x < lumaWidth; x++) {
+        int srcX = (mirror ? lumaWidth - 1 - x : x) * SUBSAMPLE;
+        luma[y * lumaWidth + x] = buffer.get(rowOffset + srcX * pixelStride);
+      }
+    }
+  }
+
+  /** Takes a new template of the given box (frame coordinates) from the current frame. */
+  public void init(RectF location) {
+    box.set(location);
+    hasTemplate = lumaWidth > 0 && box.width() >= SUBSAMPLE && box.height() >= SUBSAMPLE;
+    if (!hasTemplate) return;
+    sample(box.left / SUBSAMPLE, box.top / SUBSAMPLE, template);
+    confidence = 1;
+  }
+
+  public boolean hasTemplate() {
+    return hasTemplate;
+  }
+
+  public void reset() {
+    hasTemplate = false;
+    confidence = 0;
+  }
+
+  /**
+   * Searches the current frame for the template.
+   *
+   * @param out updated box in frame coordinates
+   * @return normalized correlation of the best match in [-1, 1]
+   */
+  public float track(RectF out) {
+    if (!hasTemplate) return 0;
+
+    float scaleX = box.width() / SUBSAMPLE / TEMPLATE_SIZE;
+    float scaleY = box.height() / SUBSAMPLE / TEMPLATE_SIZE;
+    float left = box.left / SUBSAMPLE;
+    float top = box.top / SUBSAMPLE;
+
+    float bestScore = -1;
+    int bestDx = 0;
+    int bestDy = 0;
+    for (int dy = -SEARCH_RADIUS; dy <= SEARCH_RADIUS; dy++) {
+      for (int dx = -SEARCH_RADIUS; dx <= SEARCH_RADIUS; dx++) {
+        if (!sample(left + dx * scaleX, top + dy * scaleY, patch)) continue;
+        float score = correlate(template, patch);
+        if (score > bestScore) {
+          bestScore = score;
+          bestDx = dx;
+          bestDy = dy;
+        }
+      }
+    }
+
+    box.offset(bestDx * scaleX * SUBSAMPLE, bestDy * scaleY * SUBSAMPLE);
+    out.set(box);
+    confidence = bestScore;
+    return bestScore;
+  }
+
+  public float getConfidence() {
+    return confidence;
+  }
+
+  /**
+   * Samples a TEMPLATE_SIZE x TEMPLATE_SIZE zero-mean, unit-norm patch whose top left corner is at
+   * (left, top) in luma coordinates and which covers the size of the current box.
+   *
+   * @return false if the patch is not fully inside the frame
+   */
+  private boolean sample(float left, float top, float[] out) {
+    float stepX = box.width() / SUBSAMPLE / TEMPLATE_SIZE;
+    float stepY = box.height() / SUBSAMPLE / TEMPLATE_SIZE;
+    if (left < 0
+        || top < 0
+        || left + stepX * TEMPLATE_SIZE >= lumaWidth
+        || top + stepY * TEMPLATE_SIZE >= lumaHeight) return false;
+
+    float sum = 0;
+    for (int y = 0; y < TEMPLATE_SIZE; y++) {
+      int row = (int) (top + y * stepY) * lumaWidth;
+      for (int x = 0; x < TEMPLATE_SIZE; x++) {
+        float value = luma[row + (int) (left + x * stepX)] & 0xFF;
+        out[y * TEMPLATE_SIZE + x] = value;
+        sum += value;
+      }
+    }
+    float mean = sum / out.length;
+    float norm = 0;
+    for (int i = 0; i < out.length; i++) {
+      out[i] -= mean;
+      norm += out[i] * out[i];
+    }
+    norm = (float) Math.sqrt(norm);
+    if (norm > 0) {
+      for (int i = 0; i < out.length; i++) out[i] /= norm;
+    }
+    return true;
+  }
+
+  private static float correlate(float[] a, float[] b) {
+    float sum = 0;
+    for (int i = 0; i < a.length; i++) sum += a[i] * b[i];
+    return sum;
+  }
+}
@@ -46,4 +46,7 @@ public class Constants {
   public static final String CMD_SPEED_UP = "SPEED_UP";
   public static final String CMD_SPEED_DOWN = "SPEED_DOWN";
   // endregion
+
+  // Interval at which metrics snapshots are sent to the controller, server and log
+  public static final long METRICS_REPORT_PERIOD_MS = 5000;
 }
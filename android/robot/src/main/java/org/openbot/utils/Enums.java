@@ -192,6 +192,24 @@ public class Enums {
     return null;
   }
 
+  /** How often the ARCore preview is drawn; ARCore keeps tracking at camera rate in all modes. */
+  public enum ArPreview {
+    FULL(0),
+    LOW_FPS(200),
+    HEADLESS(-1);
+
+    // Minimum time between drawn previews, negative if never drawn
+    private final long intervalMs;
+
+    ArPreview(final long intervalMs) {
+      this.intervalMs = intervalMs;
+    }
+
+    public long getIntervalMs() {
+      return intervalMs;
+    }
+  }
+
   public enum Preview {
     FULL_HD(new Size(1080, 1920)),
     HD(new Size(720, 1280)),
@@ -0,0 +1,210 @@
+package org.openbot.utils;
+
+import android.os.SystemClock;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+
+/*
+Traces camera frames from capture to the serial write of the resulting control command
+("glass-to-wheel"). Every frame gets an id when it is captured; each stage it passes through is
+stamped and the time since the previous stamped stage is recorded in a per-stage histogram. The
+histograms live in the MetricsRegistry as "latency.<stage>" and "latency.end_to_end".
+
+Frame ids are handed between threads explicitly (see CameraFragment and the fragments that run
+networks). Within a thread, attach() makes a frame current so that deep code such as Network or
+Vehicle can call mark(Stage) without knowing the id.
+ */
+public class LatencyTracer {
+  public enum Stage {
+    CAPTURE,
+    YUV_CONVERSION,
+    CROP,
+    PREPROCESS,
+    INFERENCE,
+    POSTPROCESS,
+    CONTROL,
+    SERIAL_WRITE
+  }
+
+  public static final long NO_FRAME = -1;
+
+  private static final Stage[] STAGES = Stage.values();
+  private static final int IN_FLIGHT = 16;
+  private static final int COMPLETED = 1024;
+
+  private static final LatencyTracer instance = new LatencyTracer();
+
+  private final AtomicLong nextFrameId = new AtomicLong();
+  private final long[] frameIds = new long[IN_FLIGHT];
+  private final long[][] timestamps = new long[IN_FLIGHT][STAGES.length];
+
+  private final long[] completedIds = new long[COMPLETED];
+  private final long[][] completed = new long[COMPLETED][STAGES.length];
+  private final AtomicLong completedCount = new AtomicLong();
+
+  private final LatencyHistogram[] histograms = new LatencyHistogram[STAGES.length];
+  private final LatencyHistogram endToEnd =
+      MetricsRegistry.getInstance().histogram("latency.end_to_end");
+
+  private final ThreadLocal<long[]> currentFrame =
+      new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+          return new long[] {NO_FRAME};
+        }
+      };
+
+  public static LatencyTracer getInstance() {
+    return instance;
+  }
+
+  private LatencyTracer() {
+    for (int i = 0; i < STAGES.length; i++) {
+      histograms[i] =
+          MetricsRegistry.getInstance()
+              .histogram("latency." + STAGES[i].name().toLowerCase(Locale.US));
+    }
+    for (int i = 0; i < IN_FLIGHT; i++) frameIds[i] = NO_FRAME;
+  }
+
+  /** Starts tracing a new frame and makes it current on the calling thread. */
+  public long beginFrame() {
+    long frameId = nextFrameId.getAndIncrement();
+    int slot = (int) (frameId % IN_FLIGHT);
+    synchronized (timestamps[slot]) {
+      frameIds[slot] = frameId;
+      for (int i = 0; i < STAGES.length; i++) timestamps[slot][i] = 0;
+      timestamps[slot][Stage.CAPTURE.ordinal()] = SystemClock.elapsedRealtimeNanos();
+    }
+    attach(frameId);
+    return frameId;
+  }
+
+  /** Makes the given frame current on the calling thread. */
+  public void attach(long frameId) {
+    currentFrame.get()[0] = frameId;
+  }
+
+  public void detach() {
+    currentFrame.get()[0] = NO_FRAME;
+  }
+
+  /** Returns the frame current on the calling thread or NO_FRAME. */
+  public long currentFrame() {
+    return currentFrame.get()[0];
+  }
+
+  /** Stamps a stage for the frame current on the calling thread, if any. */
+  public void mark(Stage stage) {
+    mark(currentFrame(), stage);
+  }
+
+  public void mark(long frameId, Stage stage) {
+    if (frameId == NO_FRAME) return;
+    long now = SystemClock.elapsedRealtimeNanos();
+    int slot = (int) (frameId % IN_FLIGHT);
+    long[] stamps = timestamps[slot];
+    synchronized (stamps) {
+      // The slot was reused by a newer frame, the old one was dropped somewhere.
+      if (frameIds[slot] != frameId) return;
+      // Only the first command sent for a frame counts.
+      if (stamps[stage.ordinal()] != 0) return;
+      stamps[stage.ordinal()] = now;
+      for (int i = stage.ordinal() - 1; i >= 0; i--) {
+        if (stamps[i] != 0) {
+          histograms[stage.ordinal()].record(now - stamps[i]);
+          break;
+        }
+      }
+      if (stage == Stage.SERIAL_WRITE) {
+        endToEnd.record(now - stamps[Stage.CAPTURE.ordinal()]);
+        int index = (int) (completedCount.getAndIncrement() % COMPLETED);
+        completedIds[index] = frameId;
+        System.arraycopy(stamps, 0, completed[index], 0, STAGES.length);
+      }
+    }
+  }
+
+  public LatencyHistogram getHistogram(Stage stage) {
+    return histograms[stage.ordinal()];
+  }
+
+  public LatencyHistogram getEndToEndHistogram() {
+    return endToEnd;
+  }
+
+  /** Short summary of the glass-to-wheel latency for on-screen display. */
+  public String getOverlayText() {
+    if (endToEnd.getCount() == 0) return "";
+    return String.format(
+        Locale.US,
+        "e2e p50 %.0f p95 %.0f p99 %.0f ms",
+        endToEnd.getValueAtPercentile(50) / 1e6,
+        endToEnd.getValueAtPercentile(95) / 1e6,
+        endToEnd.getValueAtPercentile(99) / 1e6);
+  }
+
+  public void reset() {
+    for (LatencyHistogram histogram : histograms) histogram.reset();
+    endToEnd.reset();
+    completedCount.set(0);
+  }
+
+  /**
+   * Writes the per-stage percentiles to latencyLog.txt and the most recent completed frame traces
+   * to latencyTrace.txt in the given folder.
+   */
+  public void export(String logFolder) {
+    File dir = new File(logFolder);
+    if (!dir.exists() && !dir.mkdirs()) return;
+
+    try (BufferedWriter writer =
+        new BufferedWriter(new FileWriter(new File(dir, "latencyLog.txt")))) {
+      writer.append("stage,count,mean[ms],p50[ms],p90[ms],p99[ms],max[ms]");
+      writer.newLine();
+      for (Stage stage : STAGES) writeSummary(writer, stage.name(), histograms[stage.ordinal()]);
+      writeSummary(writer, "END_TO_END", endToEnd);
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+
+    try (BufferedWriter writer =
+        new BufferedWriter(new FileWriter(new File(dir, "latencyTrace.txt")))) {
+      StringBuilder header = new StringBuilder("frame");
+      for (Stage stage : STAGES) header.append(",").append(stage.name().toLowerCase(Locale.US));
+      writer.append(header.append(" [ns]"));
+      writer.newLine();
+      long total = completedCount.get();
+      for (long i = Math.max(0, total - COMPLETED); i < total; i++) {
+        int index = (int) (i % COMPLETED);
+        writer.append(String.valueOf(completedIds[index]));
+        for (long timestamp : completed[index]) {
+          writer.append(",").append(String.valueOf(timestamp));
+        }
+        writer.newLine();
+      }
+    } catch (IOException e) {
+      e.printStackTrace();
+    }
+  }
+
+  private static void writeSummary(BufferedWriter writer, String name, LatencyHistogram histogram)
+      throws IOException {
+    writer.append(
+        String.format(
+            Locale.US,
+            "%s,%d,%.2f,%.2f,%.2f,%.2f,%.2f",
+            name,
+            histogram.getCount(),
+            histogram.getMean() / 1e6,
+            histogram.getValueAtPercentile(50) / 1e6,
+            histogram.getValueAtPercentile(90) / 1e6,
+            histogram.getValueAtPercentile(99) / 1e6,
+            histogram.getMax() / 1e6));
+    writer.newLine();
+  }
+}
@@ -0,0 +1,166 @@
+package org.openbot.utils;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import org.json.JSONException;
+import org.json.JSONObject;
+import timber.log.Timber;
+
+/*
+Process-wide registry of counters, gauges and latency histograms.
+
+Metrics are looked up by name once (e.g. in a constructor or static field) and the returned object
+is kept; recording on it is lock-free and does not allocate. A snapshot of all metrics is taken
+periodically while reporting is started and handed to the registered listeners, which write it to
+the log folder or send it to the controller and the policy server.
+ */
+public class MetricsRegistry {
+  private static final MetricsRegistry instance = new MetricsRegistry();
+
+  private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+  private final Map<String, Gauge> gauges = new ConcurrentHashMap<>();
+  private final Map<String, LatencyHistogram> histograms = new ConcurrentHashMap<>();
+
+  private final List<SnapshotListener> listeners = new CopyOnWriteArrayList<>();
+  private final ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor();
+  private ScheduledFuture<?> reportTask;
+  // Callers of startReporting() that did not call stopReporting() yet
+  private int reportingClients = 0;
+
+  public static MetricsRegistry getInstance() {
+    return instance;
+  }
+
+  private MetricsRegistry() {}
+
+  public Counter counter(String name) {
+    Counter counter = counters.get(name);
+    return counter != null ? counter : counters.computeIfAbsent(name, k -> new Counter());
+  }
+
+  public Gauge gauge(String name) {
+    Gauge gauge = gauges.get(name);
+    return gauge != null ? gauge : gauges.computeIfAbsent(name, k -> new Gauge());
+  }
+
+  /** Histogram of durations in nanoseconds. */
+  public LatencyHistogram histogram(String name) {
+    LatencyHistogram histogram = histograms.get(name);
+    return histogram != null
+        ? histogram
+        : histograms.computeIfAbsent(name, k -> new LatencyHistogram());
+  }
+
+  public JSONObject snapshot() {
+    JSONObject snapshot = new JSONObject();
+    try {
+      JSONObject counterValues = new JSONObject();
+      for (Map.Entry<String, Counter> entry : counters.entrySet()) {
+        counterValues.put(entry.getKey(), entry.getValue().get());
+      }
+      JSONObject gaugeValues = new JSONObject();
+      for (Map.Entry<String, Gauge> entry : gauges.entrySet()) {
+        gaugeValues.put(entry.getKey(), entry.getValue().get());
+      }
+      JSONObject histogramValues = new JSONObject();
+      for (Map.Entry<String, LatencyHistogram> entry : histograms.entrySet()) {
+        LatencyHistogram histogram = entry.getValue();
+        if (histogram.getCount() == 0) continue;
+        histogramValues.put(
+            entry.getKey(),
+            new JSONObject()
+                .put("count", histogram.getCount())
+                .put("mean", histogram.getMean() / 1e6)
+                .put("p50", histogram.getValueAtPercentile(50) / 1e6)
+                .put("p90", histogram.getValueAtPercentile(90) / 1e6)
+                .put("p99", histogram.getValueAtPercentile(99) / 1e6)
+                .put("max", histogram.getMax() / 1e6));
+      }
+      snapshot.put("timestamp", System.currentTimeMillis());
+      snapshot.put("counters", counterValues);
+      snapshot.put("gauges", gaugeValues);
+      snapshot.put("histograms[ms]", histogramValues);
+    } catch (JSONException e) {
+      e.printStackTrace();
+    }
+    return snapshot;
+  }
+
+  public void addListener(SnapshotListener listener) {
+    listeners.add(listener);
+  }
+
+  public void removeListener(SnapshotListener listener) {
+    listeners.remove(listener);
+  }
+
+  /**
+   * Starts taking snapshots at the given period, unless reporting is already started. Each call
+   * must be paired with {@link #stopReporting()}; reporting stops once all callers have stopped it.
+   */
+  public synchronized void startReporting(long periodMs) {
+    reportingClients++;
+    if (reportTask != null) return;
+    reportTask =
+        reporter.scheduleAtFixedRate(this::report, periodMs, periodMs, TimeUnit.MILLISECONDS);
+  }
+
+  public synchronized void stopReporting() {
+    if (reportingClients == 0 || --reportingClients > 0) return;
+    if (reportTask != null) {
+      reportTask.cancel(false);
+      reportTask = null;
+    }
+  }
+
+  private void report() {
+    if (listeners.isEmpty()) return;
+    JSONObject snapshot = snapshot();
+    for (SnapshotListener listener : listeners) {
+      try {
+        listener.onSnapshot(snapshot);
+      } catch (Exception e) {
+        Timber.w(e, "Metrics listener failed");
+      }
+    }
+  }
+
+  public interface SnapshotListener {
+    void onSnapshot(JSONObject snapshot);
+  }
+
+  public static class Counter {
+    private final AtomicLong value = new AtomicLong();
+
+    public void inc() {
+      value.incrementAndGet();
+    }
+
+    public void add(long delta) {
+      value.addAndGet(delta);
+    }
+
+    public long get() {
+      return value.get();
+    }
+  }
+
+  public static class Gauge {
+    private final AtomicLong bits = new AtomicLong(Double.doubleToRawLongBits(0));
+
+    public void set(double value) {
+      bits.set(Double.doubleToRawLongBits(value));
+    }
+
+    public double get() {
+      return Double.longBitsToDouble(bits.get());
+    }
+  }
+}
@@ -0,0 +1,136 @@
+package org.openbot.vehicle;
+
+import android.os.SystemClock;
+import java.util.Timer;
+import java.util.TimerTask;
+import org.openbot.utils.LatencyTracer;
+
+/**
+ * Output stage between a policy (autopilot, object tracking, point goal navigation) and the
+ * vehicle. Policy outputs arrive whenever inference finishes; this stage sends commands to the
+ * vehicle at a fixed rate instead. The output moves towards the latest policy output with a limited
+ * slew rate, is extrapolated briefly along the recent trend and ramps down to a stop if the policy
+ * stops producing outputs.
+ */
+class ControlSmoother {
+  private static final long PERIOD_MS = 20; // 50 Hz
+  // Maximum change of each wheel control per second (full range is -1 ... 1)
+  private static final float MAX_SLEW_PER_SECOND = 4f;
+  // How far the trend of the last two policy outputs is extrapolated
+  private static final long MAX_EXTRAPOLATION_MS = 100;
+  // Policy outputs older than this are considered stale and the vehicle is stopped
+  private static final long STALE_TIMEOUT_MS = 500;
+  // Unchanged commands are repeated at least this often
+  private static final long KEEPALIVE_MS = 100;
+
+  private final Vehicle vehicle;
+  private Timer timer;
+
+  private float targetLeft;
+  private float targetRight;
+  private long targetTime;
+  private float slopeLeft;
+  private float slopeRight;
+  // Frame the latest policy output was computed from, until a command for it was sent
+  private long targetFrameId = LatencyTracer.NO_FRAME;
+
+  private float outputLeft;
+  private float outputRight;
+  private long lastTickTime;
+  private long lastSendTime;
+
+  ControlSmoother(Vehicle vehicle) {
+    this.vehicle = vehicle;
+  }
+
+  /**
+   * Sets a new policy output and starts the output stage if it is not running.
+   *
+   * @param frameId the {@link LatencyTracer} frame the output was computed from, so the command
+   *     sent for it is traced; {@link LatencyTracer#NO_FRAME} if none
+   */
+  synchronized void setTarget(Control control, long frameId) {
+    long now = SystemClock.elapsedRealtime();
+    long dt = now - targetTime;
+    if (timer != null && dt > 0 && dt < STALE_TIMEOUT_MS) {
+      slopeLeft = (control.getLeft() - targetLeft) / dt;
+      slopeRight = (control.getRight() - targetRight) / dt;
+    } else {
+      slopeLeft = 0;
+      slopeRight = 0;
+    }
+    targetLeft = control.getLeft();
+    targetRight = control.getRight();
+    targetTime = now;
+    targetFrameId = frameId;
+
+    if (timer == null) {
+      Control current = vehicle.getControl();
+      outputLeft = current.getLeft();
+      outputRight = current.getRight();
+      lastTickTime = now;
+      lastSendTime = 0;
+      timer = new Timer("ControlSmoother");
+      timer.scheduleAtFixedRate(new OutputTask(), 0, PERIOD_MS);
+    }
+  }
+
+  /** Stops the output stage without sending anything, e.g. when control is taken over manually. */
+  synchronized void stop() {
+    if (timer != null) {
+      timer.cancel();
+      timer = null;
+    }
+  }
+
+  private synchronized void tick() {
+    if (timer == null) return;
+    long now = SystemClock.elapsedRealtime();
+    long age = now - targetTime;
+
+    float desiredLeft = 0;
+    float desiredRight = 0;
+    boolean stale = age > STALE_TIMEOUT_MS;
+    if (!stale) {
+      long extrapolation = Math.min(age, MAX_EXTRAPOLATION_MS);
+      desiredLeft = clamp(targetLeft + slopeLeft * extrapolation, 1);
+      desiredRight = clamp(targetRight + slopeRight * extrapolation, 1);
+    }
+
+    float maxStep = MAX_SLEW_PER_SECOND * (now - lastTickTime) / 1000f;
+    lastTickTime = now;
+    // The state itself stays in the valid range, not just the commands sent.
+    float left = clamp(outputLeft + clamp(desiredLeft - outputLeft, maxStep), 1);
+    float right = clamp(outputRight + clamp(desiredRight - outputRight, maxStep), 1);
+
+    boolean changed = left != outputLeft || right != outputRight;
+    outputLeft = left;
+    outputRight = right;
+    // The first tick after a new policy output always sends, so its latency is traced.
+    long frameId = targetFrameId;
+    if (changed || now - lastSendTime >= KEEPALIVE_MS || frameId != LatencyTracer.NO_FRAME) {
+      lastSendTime = now;
+      targetFrameId = LatencyTracer.NO_FRAME;
+      LatencyTracer.getInstance().attach(frameId);
+      try {
+        vehicle.applyControl(new Control(left, right));
+      } finally {
+        LatencyTracer.getInstance().detach();
+      }
+    }
+
+    // Nothing left to do once the vehicle has come to a stop after the policy went quiet.
+    if (stale && left == 0 && right == 0) stop();
+  }
+
+  private static float clamp(float value, float limit) {
+    return Math.max(-limit, Math.min(limit, value));
+  }
+
+  private class OutputTask extends TimerTask {
+    @Override
+    public void run() {
+      tick();
+    }
+  }
+}
@@ -14,6 +14,8 @@ import org.openbot.env.SensorReading;
 import org.openbot.main.CommonRecyclerViewAdapter;
 import org.openbot.main.ScanDeviceAdapter;
 import org.openbot.utils.Enums;
+import org.openbot.utils.LatencyTracer;
+import org.openbot.utils.MetricsRegistry;
 
 public class Vehicle {
 
@@ -23,11 +25,14 @@ public class Vehicle {
   private int indicator = 0;
   private int speedMultiplier = 192; // 128,192,255
   private Control control = new Control(0, 0);
+  private final ControlSmoother controlSmoother = new ControlSmoother(this);
 
   private final SensorReading batteryVoltage = new SensorReading();
   private final SensorReading leftWheelRpm = new SensorReading();
   private final SensorReading rightWheelRpm = new SensorReading();
   private final SensorReading sonarReading = new SensorReading();
+  private final MetricsRegistry.Counter commandCounter =
+      MetricsRegistry.getInstance().counter("vehicle.commands");
 
   private float minMotorVoltage = 2.5f;
   private float lowBatteryVoltage = 9.0f;
@@ -279,12 +284,25 @@ public class Vehicle {
   }
 
   public void setControl(Control control) {
-    this.control = control;
-    sendControl();
+    controlSmoother.stop();
+    applyControl(control);
   }
 
   public void setControl(float left, float right) {
-    this.control = new Control(left, right);
+    setControl(new Control(left, right));
+  }
+
+  /**
+   * Sets the output of a policy (e.g. a neural network). Unlike setControl(), the command is not
+   * sent right away but smoothed and sent at a fixed rate, see {@link ControlSmoother}.
+   */
+  public void setPolicyControl(Control control) {
+    // The command is sent on the smoother's thread, which has no frame of its own.
+    controlSmoother.setTarget(control, LatencyTracer.getInstance().currentFrame());
+  }
+
+  void applyControl(Control control) {
+    this.control = control;
     sendControl();
   }
 
@@ -413,6 +431,8 @@ public class Vehicle {
   }
 
   public void sendControl() {
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.CONTROL);
+    commandCounter.inc();
 
     int left = (int) (getLeftSpeed());
     int right = (int) (getRightSpeed());
@@ -427,6 +447,7 @@ public class Vehicle {
       right = (int) ((control.getRight() - noise.getValue()) * speedMultiplier);
 
     sendStringToDevice(String.format(Locale.US, "c%d,%d\n", left, right));
+    LatencyTracer.getInstance().mark(LatencyTracer.Stage.SERIAL_WRITE);
   }
 
   protected void sendHeartbeat(int timeout_ms) {
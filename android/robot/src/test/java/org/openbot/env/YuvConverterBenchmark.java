@@ -0,0 +1,94 @@
+package org.openbot.env;
+
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.Random;
+import org.junit.Ignore;
+import org.junit.Test;
+
+/**
+ * Compares the YUV conversions of the app on a 640x480 frame with padded rows. Not part of the
+ * regular test run; remove the {@code @Ignore} to run it, e.g. with {@code ./gradlew
+ * :robot:testDebugUnitTest --tests '*YuvConverterBenchmark'}.
+ */
+@Ignore("Benchmark, run manually")
+public class YuvConverterBenchmark {
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final int ROW_STRIDE = 704;
+  private static final int WARMUP = 20;
+  private static final int ITERATIONS = 100;
+
+  @Test
+  public void benchmark() {
+    Random random = new Random(0);
+    byte[] y = new byte[ROW_STRIDE * HEIGHT];
+    byte[] u = new byte[ROW_STRIDE * HEIGHT / 2];
+    byte[] v = new byte[ROW_STRIDE * HEIGHT / 2];
+    random.nextBytes(y);
+    random.nextBytes(u);
+    random.nextBytes(v);
+    YuvConverter.Planes arrays =
+        new YuvConverter.Planes().setArrays(y, u, v, WIDTH, HEIGHT, ROW_STRIDE, ROW_STRIDE, 2);
+    YuvConverter.Planes buffers =
+        new YuvConverter.Planes()
+            .setBuffers(direct(y), direct(u), direct(v), WIDTH, HEIGHT, ROW_STRIDE, ROW_STRIDE, 2);
+    int[] full = new int[WIDTH * HEIGHT];
+    int[] crop = new int[160 * 90];
+    float scale = 160.f / 480.f;
+
+    run("per-pixel loop, full frame", () -> convertPerPixel(y, u, v, full));
+    for (YuvConverter.Backend backend : YuvConverter.Backend.values()) {
+      run(
+          backend + ", full frame",
+          () -> YuvConverter.convert(backend, arrays, 1, 0, 0, WIDTH, HEIGHT, full));
+      run(
+          backend + ", full frame, direct buffers",
+          () -> YuvConverter.convert(backend, buffers, 1, 0, 0, WIDTH, HEIGHT, full));
+    }
+    run(
+        "full frame, then 160x90 policy crop",
+        () -> {
+          YuvConverter.convert(arrays, full);
+          for (int j = 0; j < 90; j++) {
+            int sy = (int) ((30 + j + 0.5f) / scale);
+            for (int i = 0; i < 160; i++) {
+              crop[j * 160 + i] = full[sy * WIDTH + (int) ((i + 0.5f) / scale)];
+            }
+          }
+        });
+    run("160x90 policy crop only", () -> YuvConverter.convert(arrays, scale, 0, 30, 160, 90, crop));
+  }
+
+  /** The conversion loop the app used before YuvConverter. */
+  private static void convertPerPixel(byte[] y, byte[] u, byte[] v, int[] out) {
+    int yp = 0;
+    for (int j = 0; j < HEIGHT; j++) {
+      int pY = ROW_STRIDE * j;
+      int pUV = ROW_STRIDE * (j >> 1);
+      for (int i = 0; i < WIDTH; i++) {
+        int uvOffset = pUV + (i >> 1) * 2;
+        out[yp++] = YuvConverter.yuvToArgb(0xff & y[pY + i], 0xff & u[uvOffset], 0xff & v[uvOffset]);
+      }
+    }
+  }
+
+  private static void run(String name, Runnable conversion) {
+    for (int i = 0; i < WARMUP; i++) {
+      conversion.run();
+    }
+    long start = System.nanoTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      conversion.run();
+    }
+    double ms = (System.nanoTime() - start) / 1e6 / ITERATIONS;
+    System.out.println(String.format(Locale.US, "%-45s %8.3f ms", name, ms));
+  }
+
+  private static ByteBuffer direct(byte[] data) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data);
+    buffer.flip();
+    return buffer;
+  }
+}
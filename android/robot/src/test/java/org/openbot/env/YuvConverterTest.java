@@ -0,0 +1,127 @@
+package org.openbot.env;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import org.junit.Test;
+
+public class YuvConverterTest {
+  // Padded rows and interleaved chroma, as in the planes of a camera image
+  private static final int WIDTH = 640;
+  private static final int HEIGHT = 480;
+  private static final int Y_ROW_STRIDE = 704;
+  private static final int UV_ROW_STRIDE = 704;
+  private static final int UV_PIXEL_STRIDE = 2;
+
+  private final byte[] y = randomBytes(Y_ROW_STRIDE * HEIGHT, 1);
+  private final byte[] u = randomBytes(UV_ROW_STRIDE * HEIGHT / 2, 2);
+  private final byte[] v = randomBytes(UV_ROW_STRIDE * HEIGHT / 2, 3);
+
+  @Test
+  public void convert_serialAndParallelMatchReference() {
+    int[] expected = reference(1, 0, 0, WIDTH, HEIGHT);
+    for (YuvConverter.Backend backend : YuvConverter.Backend.values()) {
+      int[] out = new int[WIDTH * HEIGHT];
+      YuvConverter.convert(backend, arrayPlanes(), 1, 0, 0, WIDTH, HEIGHT, out);
+      assertArrayEquals(backend.name(), expected, out);
+    }
+  }
+
+  @Test
+  public void convert_scaledCropMatchesReference() {
+    float scale = 160.f / 480.f;
+    int[] expected = reference(scale, 0, 30, 160, 90);
+    for (YuvConverter.Backend backend : YuvConverter.Backend.values()) {
+      int[] out = new int[160 * 90];
+      YuvConverter.convert(backend, arrayPlanes(), scale, 0, 30, 160, 90, out);
+      assertArrayEquals(backend.name(), expected, out);
+    }
+  }
+
+  @Test
+  public void convert_directBuffersMatchArrays() {
+    YuvConverter.Planes planes =
+        new YuvConverter.Planes()
+            .setBuffers(
+                direct(y),
+                direct(u),
+                direct(v),
+                WIDTH,
+                HEIGHT,
+                Y_ROW_STRIDE,
+                UV_ROW_STRIDE,
+                UV_PIXEL_STRIDE);
+    for (YuvConverter.Backend backend : YuvConverter.Backend.values()) {
+      int[] out = new int[WIDTH * HEIGHT];
+      YuvConverter.convert(backend, planes, 1, 0, 0, WIDTH, HEIGHT, out);
+      assertArrayEquals(backend.name(), reference(1, 0, 0, WIDTH, HEIGHT), out);
+    }
+  }
+
+  @Test
+  public void convert_nv21MatchesLegacyLoop() {
+    int width = 320;
+    int height = 240;
+    byte[] nv21 = randomBytes(ImageUtils.getYUVByteSize(width, height), 4);
+    int[] expected = new int[width * height];
+    int frameSize = width * height;
+    for (int j = 0, yp = 0; j < height; j++) {
+      int uvp = frameSize + (j >> 1) * width;
+      int u = 0;
+      int v = 0;
+      for (int i = 0; i < width; i++, yp++) {
+        if ((i & 1) == 0) {
+          v = 0xff & nv21[uvp++];
+          u = 0xff & nv21[uvp++];
+        }
+        expected[yp] = YuvConverter.yuvToArgb(0xff & nv21[yp], u, v);
+      }
+    }
+
+    int[] out = new int[width * height];
+    ImageUtils.convertYUV420SPToARGB8888(nv21, width, height, out);
+    assertArrayEquals(expected, out);
+  }
+
+  @Test
+  public void yuvToArgb_clampsToBlackAndWhite() {
+    assertArrayEquals(
+        new int[] {0xff000000, 0xffffffff},
+        new int[] {YuvConverter.yuvToArgb(0, 128, 128), YuvConverter.yuvToArgb(255, 128, 128)});
+  }
+
+  private YuvConverter.Planes arrayPlanes() {
+    return new YuvConverter.Planes()
+        .setArrays(y, u, v, WIDTH, HEIGHT, Y_ROW_STRIDE, UV_ROW_STRIDE, UV_PIXEL_STRIDE);
+  }
+
+  /** Converts pixel by pixel, sampling the scaled image at pixel centers. */
+  private int[] reference(float scale, int cropLeft, int cropTop, int outWidth, int outHeight) {
+    int[] out = new int[outWidth * outHeight];
+    for (int j = 0; j < outHeight; j++) {
+      int sy = Math.min((int) ((cropTop + j + 0.5f) / scale), HEIGHT - 1);
+      for (int i = 0; i < outWidth; i++) {
+        int sx = Math.min((int) ((cropLeft + i + 0.5f) / scale), WIDTH - 1);
+        int uvIndex = (sy >> 1) * UV_ROW_STRIDE + (sx >> 1) * UV_PIXEL_STRIDE;
+        out[j * outWidth + i] =
+            YuvConverter.yuvToArgb(
+                0xff & y[sy * Y_ROW_STRIDE + sx], 0xff & u[uvIndex], 0xff & v[uvIndex]);
+      }
+    }
+    return out;
+  }
+
+  private static ByteBuffer direct(byte[] data) {
+    ByteBuffer buffer = ByteBuffer.allocateDirect(data.length);
+    buffer.put(data);
+    buffer.flip();
+    return buffer;
+  }
+
+  private static byte[] randomBytes(int length, long seed) {
+    byte[] data = new byte[length];
+    new Random(seed).nextBytes(data);
+    return data;
+  }
+}
@@ -0,0 +1,91 @@
+package org.openbot.projects;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class ProjectCacheTest {
+
+  @Test
+  public void minify_keepsRegexAndDivision() {
+    String code =
+        "var a = b / c / d;\n"
+            + "var r = /\\/\\/ not a comment/g;\n"
+            + "var s = a.replace(/[/]/, '');";
+    assertEquals(code, ProjectCache.minify(code));
+  }
+
+  @Test
+  public void minify_stripsCommentsAndKeepsLineBreaks() {
+    String source =
+        "// header\n"
+            + "var x = 1; /* inline */ var y = 2;\n"
+            + "\n"
+            + "/* multi\n"
+            + "   line */\n"
+            + "if (x)\n"
+            + "    y = x\n"
+            + "var s = \"// kept\";  // dropped\n";
+    assertEquals(
+        "var x = 1; var y = 2;\nif (x)\ny = x\nvar s = \"// kept\";\n",
+        ProjectCache.minify(source));
+  }
+
+  @Test
+  public void bindSensorReads_leavesSensorNamesInStrings() {
+    String code =
+        "Android.displaySensorData('Android.sonarReading()');\n"
+            + "var d = Android.sonarReading() + Android.speedReading();";
+    assertEquals(
+        "Android.displaySensorData('Android.sonarReading()');\n"
+            + "var d = BotSensors.read(0) + BotSensors.read(1);",
+        ProjectCache.bindSensorReads(code));
+  }
+
+  @Test
+  public void awaitPauses_awaitsTopLevelPausesOnly() {
+    String code =
+        "function turn() {\n"
+            + "Android.pause(5);\n"
+            + "}\n"
+            + "Android.pause(10);\n"
+            + "Android.displayString(\"Android.pause(1)\");\n"
+            + "turn();";
+    assertEquals(
+        "function turn() {\n"
+            + "Android.pause(5);\n"
+            + "}\n"
+            + ";(async function () {\n"
+            + "await botPause(10);\n"
+            + "Android.displayString(\"Android.pause(1)\");\n"
+            + "turn();\n"
+            + "})();",
+        ProjectCache.awaitPauses(code));
+  }
+
+  @Test
+  public void awaitPauses_withoutPausesIsUnchanged() {
+    String code = "var x = 5;\nAndroid.moveForward(x);";
+    assertEquals(code, ProjectCache.awaitPauses(code));
+  }
+
+  @Test
+  public void awaitPauses_hoistsVarsWithInitializers() {
+    String code =
+        "var count;\n"
+            + "var x = 5, y, s = \"a, b = c\";\n"
+            + "for (var i = 0; i < x; i++) {\n"
+            + "Android.pause(x);\n"
+            + "}";
+    assertEquals(
+        "var count;\n"
+            + "var x, y, s;\n"
+            + ";(async function () {\n"
+            + "x = 5, s = \"a, b = c\";\n"
+            + "for (var i = 0; i < x; i++) {\n"
+            + "await botPause(x);\n"
+            + "}\n"
+            + "})();",
+        ProjectCache.awaitPauses(code));
+  }
+}
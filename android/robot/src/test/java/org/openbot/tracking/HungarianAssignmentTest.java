@@ -0,0 +1,42 @@
+package org.openbot.tracking;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import org.junit.Test;
+
+public class HungarianAssignmentTest {
+  @Test
+  public void solve_square() {
+    double[][] cost = {
+      {4, 1, 3},
+      {2, 0, 5},
+      {3, 2, 2},
+    };
+    assertArrayEquals(new int[] {1, 0, 2}, HungarianAssignment.solve(cost));
+  }
+
+  @Test
+  public void solve_moreColumnsThanRows() {
+    double[][] cost = {
+      {0.9, 0.1, 0.8},
+      {0.2, 0.3, 1.0},
+    };
+    assertArrayEquals(new int[] {1, 0}, HungarianAssignment.solve(cost));
+  }
+
+  @Test
+  public void solve_moreRowsThanColumns() {
+    double[][] cost = {
+      {0.5, 1.0},
+      {0.1, 0.9},
+      {1.0, 0.2},
+    };
+    assertArrayEquals(new int[] {-1, 0, 1}, HungarianAssignment.solve(cost));
+  }
+
+  @Test
+  public void solve_empty() {
+    assertArrayEquals(new int[0], HungarianAssignment.solve(new double[0][0]));
+    assertArrayEquals(new int[] {-1, -1}, HungarianAssignment.solve(new double[2][0]));
+  }
+}
@@ -11,6 +11,7 @@ from .models import (
     get_model_info,
     get_models,
     getModelFiles,
+    get_model_files_etag,
     publishModel,
     deleteModelFile,
 )
@@ -26,7 +27,11 @@ from ..train import (
     create_tfrecord,
 )
 
+# Longest time a GET /models request is held open waiting for the model list to change
+MAX_MODELS_WAIT = 60
+
 event_cancelled = threading.Event()
+robot_metrics = dict()
 json_encoder = NumpyEncoder()
 rpc = JsonRpc()
 
@@ -49,8 +54,23 @@ async def handle_static(request: web.Request) -> web.StreamResponse:
 
 
 async def handle_models(request: web.Request) -> web.StreamResponse:
-    models = getModelFiles()
-    return web.json_response(models)
+    """List model files. With If-None-Match and a wait parameter (seconds) the request is held
+    until the list changes (long polling) and answered with 304 if it does not."""
+    loop = asyncio.get_event_loop()
+    if_none_match = request.headers.get("If-None-Match")
+    wait = min(float(request.query.get("wait", 0)), MAX_MODELS_WAIT)
+    deadline = loop.time() + wait
+
+    models = await loop.run_in_executor(None, getModelFiles)
+    etag = get_model_files_etag(models)
+    while etag == if_none_match and loop.time() < deadline:
+        await asyncio.sleep(1)
+        models = await loop.run_in_executor(None, getModelFiles)
+        etag = get_model_files_etag(models)
+
+    if etag == if_none_match:
+        return web.Response(status=304, headers={"ETag": etag})
+    return web.json_response(models, headers={"ETag": etag})
 
 
 async def handle_upload(request: web.Request) -> web.Response:
@@ -65,10 +85,18 @@ async def handle_upload(request: web.Request) -> web.Response:
     return web.Response(text="file not found")
 
 
+async def handle_metrics(request: web.Request) -> web.Response:
+    robot_metrics.clear()
+    robot_metrics.update(await request.json())
+    await rpc.notify("metrics", robot_metrics)
+    return web.json_response({"ok": True})
+
+
 async def init_api(app: web.Application):
     app.router.add_get("/test", handle_test)
     app.router.add_get("/models", handle_models)
     app.router.add_post("/upload", handle_upload)
+    app.router.add_post("/metrics", handle_metrics)
     app.router.add_get("/{path:.*/preview\\.gif}", handle_preview)
     app.router.add_get("/{path:.*\\.jpeg}", handle_static)
     app.router.add_get("/{path:.*\\.png}", handle_static)
@@ -87,6 +115,7 @@ async def init_api(app: web.Application):
         ("", publishModel),
         ("", deleteModelFile),
         ("", getHyperparameters),
+        ("", getMetrics),
         ("", getPrediction),
         ("", getSession),
         ("", moveSession),
@@ -100,6 +129,7 @@ async def init_api(app: web.Application):
         "modelFile",
         "session",
         "training",
+        "metrics",
     )
 
 
@@ -173,6 +203,10 @@ def getModels():
     return get_models()
 
 
+def getMetrics():
+    return robot_metrics
+
+
 def getHyperparameters():
     return Hyperparameters().__dict__
 
@@ -1,3 +1,5 @@
+import hashlib
+import json
 import os
 import glob
 import shutil
@@ -26,11 +28,42 @@ def get_model_info(name):
     )
 
 
+# path -> ((mtime_ns, size), sha256), so files are only hashed again when they change
+_file_hashes = dict()
+
+
+def file_sha256(path):
+    stat = os.stat(path)
+    key = (stat.st_mtime_ns, stat.st_size)
+    cached = _file_hashes.get(path)
+    if cached and cached[0] == key:
+        return cached[1]
+    sha256 = hashlib.sha256()
+    with open(path, "rb") as f:
+        for chunk in iter(lambda: f.read(1 << 20), b""):
+            sha256.update(chunk)
+    digest = sha256.hexdigest()
+    _file_hashes[path] = (key, digest)
+    return digest
+
+
 def getModelFiles():
-    return [
-        dict(name=os.path.basename(p), mtime=int(os.path.getmtime(p)))
-        for p in glob.glob(os.path.join(models_dir, "*.tflite"))
-    ]
+    models = []
+    for p in glob.glob(os.path.join(models_dir, "*.tflite")):
+        models.append(
+            dict(
+                name=os.path.basename(p),
+                mtime=int(os.path.getmtime(p)),
+                size=os.path.getsize(p),
+                sha256=file_sha256(p),
+            )
+        )
+    return sorted(models, key=lambda m: m["name"])
+
+
+def get_model_files_etag(models):
+    content = json.dumps(models, sort_keys=True).encode("utf-8")
+    return '"%s"' % hashlib.sha256(content).hexdigest()[:32]
 
 
 async def publishModel(params):